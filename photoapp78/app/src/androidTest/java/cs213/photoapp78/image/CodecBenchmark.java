@@ -0,0 +1,81 @@
+package cs213.photoapp78.image;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reports the stored size and the encode and decode times of each codec for a
+ * camera-sized image and a thumbnail. Results are written to logcat under the tag
+ * "CodecBenchmark".
+ */
+@RunWith(AndroidJUnit4.class)
+public class CodecBenchmark {
+    private static final String TAG = "CodecBenchmark";
+    private static final int RUNS = 5;
+
+    @Test
+    public void compareCodecs() throws Exception {
+        Codec[] codecs = {Codec.LOSSLESS, Codec.webp(95), Codec.webp(85), Codec.webp(75),
+                Codec.jpeg(95), Codec.jpeg(85), Codec.jpeg(75)};
+        Bitmap photo = createPhoto(4000, 3000);
+        Bitmap thumbnail = Thumbnails.scale(photo);
+
+        for (Codec codec : codecs) {
+            report(codec, "photo", photo);
+            report(codec, "thumbnail", thumbnail);
+        }
+    }
+
+    private static void report(Codec codec, String name, Bitmap bitmap) throws Exception {
+        byte[] bytes = codec.encode(bitmap);
+        long encodeTime = 0, decodeTime = 0;
+
+        for (int run = 0; run < RUNS; run++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            bytes = codec.encode(bitmap);
+            encodeTime += SystemClock.elapsedRealtimeNanos() - start;
+
+            start = SystemClock.elapsedRealtimeNanos();
+            Bitmap decoded = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+            decodeTime += SystemClock.elapsedRealtimeNanos() - start;
+
+            assertNotNull(decoded);
+            assertEquals(bitmap.getWidth(), decoded.getWidth());
+            decoded.recycle();
+        }
+
+        Log.i(TAG, String.format("%-8s %-9s %9d bytes  encode %7.1f ms  decode %7.1f ms", codec, name,
+                bytes.length, encodeTime / 1e6 / RUNS, decodeTime / 1e6 / RUNS));
+    }
+
+    /**
+     * Smooth gradients with sensor-like noise, which compress about as well as a photo
+     */
+    private static Bitmap createPhoto(int width, int height) {
+        Random random = new Random(42);
+        int[] row = new int[width];
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int red = (x * 255 / width + random.nextInt(9)) & 0xff;
+                int green = (y * 255 / height + random.nextInt(9)) & 0xff;
+                int blue = ((x + y) * 127 / (width + height) + 64 + random.nextInt(9)) & 0xff;
+                row[x] = 0xff000000 | red << 16 | green << 8 | blue;
+            }
+            bitmap.setPixels(row, 0, width, 0, y, width, 1);
+        }
+
+        return bitmap;
+    }
+}
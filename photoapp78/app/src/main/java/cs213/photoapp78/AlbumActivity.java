@@ -2,24 +2,27 @@ package cs213.photoapp78;
 
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.content.ClipData;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Bundle;
-import android.os.ParcelFileDescriptor;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.GridLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SimpleItemAnimator;
 import android.text.InputType;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.WindowManager;
-import android.widget.AdapterView;
 import android.widget.EditText;
-import android.widget.ListView;
+import android.widget.ProgressBar;
 
-import java.io.FileDescriptor;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import cs213.photoapp78.adapter.PhotoAdapter;
 import cs213.photoapp78.model.Album;
@@ -29,38 +32,74 @@ import cs213.photoapp78.model.Photo;
  * Album activity to handle functionality in an album.
  */
 public class AlbumActivity extends AppCompatActivity {
+    /**
+     * Number of photos read at once and number of pages kept in memory while browsing
+     */
+    private static final int PAGE_SIZE = 60, PAGES = 5;
+
     private ArrayList<Album> albums;
     private Album checkedAlbum;
-    private ListView listView;
-    private String path;
-    private int albumPosition = 0;
+    private PhotoAdapter adapter;
+    private PhotoPager pager;
+    private PhotoLibrary library;
 
     /**
-     * On create read the photos photos from the file and initialize the photo view.
+     * On create get the album from the photo library and initialize the photo view.
      * @param savedInstanceState as the saved instance state
      */
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_album);
-        path = this.getApplicationInfo().dataDir + "/data.dat";
+        library = PhotoLibrary.getInstance(this);
+        albums = library.getAlbums();
         Intent intent = getIntent();
-        albums = (ArrayList<Album>) intent.getSerializableExtra("albums");
-        albumPosition = intent.getIntExtra("albumPosition", 0);
-        checkedAlbum = albums.get(albumPosition);
+        checkedAlbum = library.getAlbumById(intent.getIntExtra("albumId", 0));
+        if (checkedAlbum == null) {
+            finish();
+            return;
+        }
 
-        PhotoAdapter adapter = new PhotoAdapter(this, R.layout.photo_view, checkedAlbum.getPhotos());
-        adapter.setNotifyOnChange(true);
-        listView = findViewById(R.id.listView);
-        listView.setAdapter(adapter);
-        listView.setItemChecked(0, true);
+        adapter = new PhotoAdapter();
+        pager = new PhotoPager(library, checkedAlbum, PAGE_SIZE, PAGES, new PhotoPager.Listener() {
+            @Override
+            public void onPhotosRead(List<Photo> photos) {
+                adapter.rebind(photos);
+            }
+        });
 
-        listView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        RecyclerView photoGrid = findViewById(R.id.photoGrid);
+        final GridLayoutManager layoutManager = new GridLayoutManager(this, PhotoAdapter.COLUMNS);
+        photoGrid.setLayoutManager(layoutManager);
+        // rebind changed cells in place instead of cross-fading them into new ones
+        ((SimpleItemAnimator) photoGrid.getItemAnimator()).setSupportsChangeAnimations(false);
+        photoGrid.setAdapter(adapter);
+        photoGrid.addOnScrollListener(new RecyclerView.OnScrollListener() {
             @Override
-            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-                listView.setItemChecked(position, true);
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                pager.setVisibleRange(layoutManager.findFirstVisibleItemPosition(), layoutManager.findLastVisibleItemPosition());
             }
         });
+        if (pager.size() > 0)
+            adapter.setCheckedId(pager.getId(0));
+    }
+
+    /**
+     * Shows the photos again, updating the cells of photos changed in other activities.
+     */
+    @Override
+    protected void onResume() {
+        super.onResume();
+        refresh();
+    }
+
+    /**
+     * Flushes photo edits to disk when leaving the album.
+     */
+    @Override
+    protected void onPause() {
+        super.onPause();
+        library.flush();
     }
 
     /**
@@ -68,31 +107,31 @@ public class AlbumActivity extends AppCompatActivity {
      * @param view  as view
      */
     public void openPhoto(View view) {
-        if (listView.getAdapter().getCount() == 0)
+        if (adapter.getCheckedPosition() == RecyclerView.NO_POSITION)
             return;
 
         Intent intent = new Intent(this, PhotoActivity.class);
 
-        intent.putExtra("albums", albums);
-        intent.putExtra("albumPosition", albumPosition);
-        intent.putExtra("photoPosition", listView.getCheckedItemPosition());
+        intent.putExtra("albumId", checkedAlbum.getId());
+        intent.putExtra("photoId", (int) adapter.getCheckedId());
         startActivity(intent);
     }
 
     /**
-     * Add the new photo by calling the Open document intent.
+     * Add new photos by calling the Open document intent. Several images can be picked at once.
      * @param view as view
      */
     public void addPhoto(View view) {
         Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
         intent.addCategory(Intent.CATEGORY_OPENABLE);
         intent.setType("image/*");
+        intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
 
         startActivityForResult(intent, 42);
     }
 
     /**
-     * Actually adds the photo here to the album and update the list view and saves the data.
+     * Imports the picked photos in the background, skipping captions already in the album.
      * @param requestCode as Request code in Int
      * @param resultCode result code as int
      * @param resultData as the Intent
@@ -103,35 +142,169 @@ public class AlbumActivity extends AppCompatActivity {
         if (requestCode == 42 && resultCode == Activity.RESULT_OK) {
 
             if (resultData != null) {
-                Uri uri = resultData.getData();
-                Bitmap bitmap = null;
-                try {
-                    ParcelFileDescriptor parcelFileDescriptor = getContentResolver().openFileDescriptor(uri, "r");
-                    FileDescriptor fileDescriptor = parcelFileDescriptor.getFileDescriptor();
-                    bitmap = BitmapFactory.decodeFileDescriptor(fileDescriptor);
-                    parcelFileDescriptor.close();
-                } catch (Exception exception) {
-                    exception.printStackTrace();
+                ArrayList<Uri> uris = new ArrayList<Uri>();
+                ClipData clipData = resultData.getClipData();
+
+                if (clipData != null) {
+                    for (int index = 0; index < clipData.getItemCount(); index++)
+                        uris.add(clipData.getItemAt(index).getUri());
+                } else if (resultData.getData() != null) {
+                    uris.add(resultData.getData());
                 }
 
-                String caption = uri.getLastPathSegment();
-                Photo photo = new Photo(caption, bitmap);
-                PhotoAdapter adapter = (PhotoAdapter) listView.getAdapter();
+                final HashSet<String> captions = new HashSet<String>();
+                for (Uri uri : uris)
+                    captions.add(uri.getLastPathSegment());
 
-                for (int index = 0; index < adapter.getCount(); index++)
-                    if (photo.equals(adapter.getItem(index))) {
-                        new AlertDialog.Builder(this)
-                                .setMessage("A photo with the caption \"" + caption + "\" already exists in this checkedAlbum.")
-                                .setPositiveButton("OK", null)
-                                .show();
+                final ArrayList<Uri> picked = uris;
+                pager.findCaptions(captions, new PhotoPager.CaptionListener() {
+                    @Override
+                    public void onCaptionsFound(Set<String> found) {
+                        skipTakenCaptions(picked, found);
+                    }
+                });
+            }
+        }
+    }
 
-                        return;
+    /**
+     * Imports the picked photos whose captions are not taken, telling how many were skipped.
+     * @param uris the picked images
+     * @param taken captions already in the album
+     */
+    private void skipTakenCaptions(List<Uri> uris, Set<String> taken) {
+        HashSet<String> captions = new HashSet<String>();
+        ArrayList<Uri> accepted = new ArrayList<Uri>();
+        String skipped = null;
+
+        for (Uri uri : uris) {
+            String caption = uri.getLastPathSegment();
+            if (taken.contains(caption) || !captions.add(caption))
+                skipped = caption;
+            else
+                accepted.add(uri);
+        }
+
+        if (skipped != null) {
+            String message = uris.size() == 1
+                    ? "A photo with the caption \"" + skipped + "\" already exists in this checkedAlbum."
+                    : (uris.size() - accepted.size()) + " photos were skipped because their captions already exist in this checkedAlbum.";
+            new AlertDialog.Builder(this)
+                    .setMessage(message)
+                    .setPositiveButton("OK", null)
+                    .show();
+        }
+
+        if (!accepted.isEmpty())
+            importPhotos(accepted);
+    }
+
+    /**
+     * Imports photos on background threads while showing the progress, then adds them to the album.
+     * @param uris the picked images
+     */
+    private void importPhotos(List<Uri> uris) {
+        final PhotoImporter importer = new PhotoImporter(getContentResolver(), library);
+        final ProgressBar progressBar = new ProgressBar(this, null, android.R.attr.progressBarStyleHorizontal);
+        progressBar.setMax(uris.size());
+
+        final AlertDialog progress = new AlertDialog.Builder(this)
+                .setTitle("Importing " + uris.size() + (uris.size() == 1 ? " photo" : " photos"))
+                .setView(progressBar)
+                .setCancelable(false)
+                .setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        importer.cancel();
+                    }
+                })
+                .show();
+
+        importer.start(uris, new PhotoImporter.Listener() {
+            @Override
+            public void onProgress(int done, int total) {
+                progressBar.setProgress(done);
+            }
+
+            @Override
+            public void onFinished(final ArrayList<Photo> photos, final ArrayList<Photo> duplicates, final int failed) {
+                progress.dismiss();
+
+                ArrayList<String> captions = new ArrayList<String>();
+                for (Photo photo : photos)
+                    captions.add(photo.getCaption());
+                // the album may have changed while the photos were imported
+                pager.findCaptions(captions, new PhotoPager.CaptionListener() {
+                    @Override
+                    public void onCaptionsFound(Set<String> found) {
+                        addImported(photos, duplicates, failed, found);
                     }
+                });
+            }
+        });
+    }
 
-                adapter.add(photo);
-                DataSaver.saveData(albums, path);
+    /**
+     * Adds imported photos to the album, asking first about photos that look like ones already in the library.
+     * @param photos the imported photos
+     * @param matches the photo of the library each imported photo looks like, or null
+     * @param failed number of images that could not be read
+     * @param taken captions already in the album, whose photos are left out
+     */
+    private void addImported(ArrayList<Photo> photos, ArrayList<Photo> matches, int failed, Set<String> taken) {
+        final ArrayList<Photo> all = new ArrayList<Photo>();
+        final ArrayList<Photo> unique = new ArrayList<Photo>();
+        Photo photo = null, duplicate = null;
+
+        for (int index = 0; index < photos.size(); index++) {
+            Photo imported = photos.get(index);
+            if (taken.contains(imported.getCaption()))
+                continue;
+
+            all.add(imported);
+            Photo match = matches.get(index);
+            if (match == null) {
+                unique.add(imported);
+            } else {
+                photo = imported;
+                duplicate = match;
             }
         }
+
+        if (failed > 0)
+            new AlertDialog.Builder(this)
+                    .setMessage(failed + (failed == 1 ? " photo" : " photos") + " could not be read.")
+                    .setPositiveButton("OK", null)
+                    .show();
+
+        if (duplicate == null) {
+            library.addPhotos(checkedAlbum, unique);
+            refresh();
+            return;
+        }
+
+        int duplicates = all.size() - unique.size();
+        String message = duplicates == 1
+                ? "\"" + photo.getCaption() + "\" is likely a duplicate of \"" + duplicate.getCaption() + "\". Add it anyway?"
+                : duplicates + " photos are likely duplicates of photos already in the library. Add them anyway?";
+
+        new AlertDialog.Builder(this)
+                .setMessage(message)
+                .setPositiveButton("Add", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        library.addPhotos(checkedAlbum, all);
+                        refresh();
+                    }
+                })
+                .setNegativeButton("Skip", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        library.addPhotos(checkedAlbum, unique);
+                        refresh();
+                    }
+                })
+                .show();
     }
 
     /**
@@ -139,9 +312,9 @@ public class AlbumActivity extends AppCompatActivity {
      * @param view as view
      */
     public void removePhoto(View view) {
-        final PhotoAdapter adapter = (PhotoAdapter) listView.getAdapter();
+        final Photo checkedPhoto = getCheckedPhoto();
 
-        if (adapter.getCount() == 0) {
+        if (adapter.getItemCount() == 0) {
             new AlertDialog.Builder(this)
                     .setMessage("This checkedAlbum does not have any photos.")
                     .setPositiveButton("OK", null)
@@ -149,19 +322,20 @@ public class AlbumActivity extends AppCompatActivity {
 
             return;
         }
+        if (checkedPhoto == null)
+            return;
 
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
-        final int checkedItemPosition = listView.getCheckedItemPosition();
-        final Photo checkedPhoto = adapter.getItem(checkedItemPosition);
 
         builder.setMessage("Are you sure you want to remove \"" + checkedPhoto.getCaption() + "\"?");
         builder.setPositiveButton("Yes",
                 new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialog, int id) {
-                        adapter.remove(checkedPhoto);
-                        DataSaver.saveData(albums, path);
-                        listView.setItemChecked(checkedItemPosition, true);
+                        int position = adapter.getCheckedPosition();
+                        library.removePhoto(checkedAlbum, checkedPhoto);
+                        refresh();
+                        checkAt(position);
                     }
                 });
 
@@ -190,9 +364,12 @@ public class AlbumActivity extends AppCompatActivity {
 
         final CharSequence[] albumNamesArray = albumNames.toArray(new CharSequence[albumNames.size()]);
         final AlertDialog.Builder builder = new AlertDialog.Builder(this);
-        final PhotoAdapter adapter = (PhotoAdapter) listView.getAdapter();
+        final Photo checkedPhoto = getCheckedPhoto();
         final Album destination = new Album(albumNamesArray[0].toString());
 
+        if (checkedPhoto == null)
+            return;
+
         builder.setSingleChoiceItems(albumNamesArray, 0, new DialogInterface.OnClickListener() {
             @Override
             public void onClick(DialogInterface dialog, int which) {
@@ -202,25 +379,17 @@ public class AlbumActivity extends AppCompatActivity {
                 .setPositiveButton("Copy", new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
-                        Photo photo = adapter.getItem(listView.getCheckedItemPosition());
-
-                        for (Album currentAlbum : albums) {
-                            if (currentAlbum.getName().equals(destination.getName())) {
-                                for (Photo currentPhoto : currentAlbum.getPhotos()) {
-                                    if (currentPhoto.equals(photo)) {
-                                        new AlertDialog.Builder(builder.getContext())
-                                                .setMessage("A photo with the caption \"" + photo.getCaption() + "\" already exists in \"" + currentAlbum.getName() + "\".")
-                                                .setPositiveButton("OK", null)
-                                                .show();
-
-                                        return;
-                                    }
-
-                                }
-                                currentAlbum.getPhotos().add(photo);
-                                DataSaver.saveData(albums, path);
-                            }
+                        Album target = library.getAlbum(destination.getName());
+
+                        if (target.getPhoto(checkedPhoto.getCaption()) != null) {
+                            new AlertDialog.Builder(builder.getContext())
+                                    .setMessage("A photo with the caption \"" + checkedPhoto.getCaption() + "\" already exists in \"" + target.getName() + "\".")
+                                    .setPositiveButton("OK", null)
+                                    .show();
+
+                            return;
                         }
+                        library.copyPhoto(checkedAlbum, checkedPhoto, target);
                     }
                 })
                 .setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
@@ -247,9 +416,12 @@ public class AlbumActivity extends AppCompatActivity {
 
         final CharSequence[] albumNamesArray = albumNames.toArray(new CharSequence[albumNames.size()]);
         final AlertDialog.Builder builder = new AlertDialog.Builder(this);
-        final PhotoAdapter adapter = (PhotoAdapter) listView.getAdapter();
+        final Photo checkedPhoto = getCheckedPhoto();
         final Album destination = new Album(albumNamesArray[0].toString());
 
+        if (checkedPhoto == null)
+            return;
+
         builder.setSingleChoiceItems(albumNamesArray, 0, new DialogInterface.OnClickListener() {
             @Override
             public void onClick(DialogInterface dialog, int which) {
@@ -259,26 +431,21 @@ public class AlbumActivity extends AppCompatActivity {
                 .setPositiveButton("Move", new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
-                        Photo photo = adapter.getItem(listView.getCheckedItemPosition());
-                        adapter.remove(photo);
-
-                        for (Album currentAlbum : albums) {
-                            if (currentAlbum.getName().equals(destination.getName())) {
-                                for (Photo currentPhoto : currentAlbum.getPhotos()) {
-                                    if (currentPhoto.equals(photo)) {
-                                        new AlertDialog.Builder(builder.getContext())
-                                                .setMessage("A photo with the caption \"" + photo.getCaption() + "\" already exists in \"" + currentAlbum.getName() + "\".")
-                                                .setPositiveButton("OK", null)
-                                                .show();
-
-                                        return;
-                                    }
-
-                                }
-                                currentAlbum.getPhotos().add(photo);
-                                DataSaver.saveData(albums, path);
-                            }
+                        Album target = library.getAlbum(destination.getName());
+
+                        if (target.getPhoto(checkedPhoto.getCaption()) != null) {
+                            new AlertDialog.Builder(builder.getContext())
+                                    .setMessage("A photo with the caption \"" + checkedPhoto.getCaption() + "\" already exists in \"" + target.getName() + "\".")
+                                    .setPositiveButton("OK", null)
+                                    .show();
+
+                            return;
                         }
+                        int position = adapter.getCheckedPosition();
+                        library.copyPhoto(checkedAlbum, checkedPhoto, target);
+                        library.removePhoto(checkedAlbum, checkedPhoto);
+                        refresh();
+                        checkAt(position);
                     }
                 })
                 .setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
@@ -297,31 +464,37 @@ public class AlbumActivity extends AppCompatActivity {
      */
     public void changeCaption(View view) {
         final AlertDialog.Builder builder = new AlertDialog.Builder(this);
-        final PhotoAdapter adapter = (PhotoAdapter) listView.getAdapter();
+        final Photo checkedPhoto = getCheckedPhoto();
         final EditText input = new EditText(this);
 
+        if (checkedPhoto == null)
+            return;
+
         input.setInputType(InputType.TYPE_CLASS_TEXT);
-        input.setText(adapter.getItem(listView.getCheckedItemPosition()).getCaption());
+        input.setText(checkedPhoto.getCaption());
         input.setSelection(input.getText().length());
         builder.setView(input);
 
         builder.setPositiveButton("Recaption", new DialogInterface.OnClickListener() {
             @Override
             public void onClick(DialogInterface dialog, int which) {
-                String photoCaption = input.getText().toString();
-
-                for (int index = 0; index < adapter.getCount(); index++)
-                    if (photoCaption.equals(adapter.getItem(index).getCaption())) {
-                        new AlertDialog.Builder(builder.getContext())
-                                .setMessage("An photo with the caption \"" + photoCaption + "\" already exists in this album.")
-                                .setPositiveButton("OK", null)
-                                .show();
+                final String photoCaption = input.getText().toString();
 
-                        return;
+                pager.findCaptions(Collections.singleton(photoCaption), new PhotoPager.CaptionListener() {
+                    @Override
+                    public void onCaptionsFound(Set<String> found) {
+                        if (!found.isEmpty()) {
+                            new AlertDialog.Builder(builder.getContext())
+                                    .setMessage("An photo with the caption \"" + photoCaption + "\" already exists in this album.")
+                                    .setPositiveButton("OK", null)
+                                    .show();
+
+                            return;
+                        }
+                        library.recaptionPhoto(checkedAlbum, checkedPhoto, photoCaption);
+                        refresh();
                     }
-                adapter.getItem(listView.getCheckedItemPosition()).setCaption(photoCaption);
-                adapter.notifyDataSetChanged();
-                DataSaver.saveData(albums, path);
+                });
             }
         });
         builder.setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
@@ -336,6 +509,35 @@ public class AlbumActivity extends AppCompatActivity {
         dialog.show();
     }
 
+    /**
+     * Shows the photos of the album as they are now.
+     */
+    private void refresh() {
+        pager.reload();
+        adapter.submit(pager);
+    }
+
+    /**
+     * Returns the checked photo as the pager read it, without reading the album. The
+     * library makes edits given it to the photo of the album.
+     * @return the photo, or null if none is checked or it was not read yet
+     */
+    private Photo getCheckedPhoto() {
+        return adapter.getCheckedItem();
+    }
+
+    /**
+     * Checks the photo that took the place of a removed one, or the last photo if the
+     * removed one was last. Called once the pager was reloaded.
+     * @param position position the removed photo had
+     */
+    private void checkAt(int position) {
+        if (position < 0 || pager.size() == 0)
+            adapter.setChecked(null);
+        else
+            adapter.setCheckedId(pager.getId(Math.min(position, pager.size() - 1)));
+    }
+
     /**
      * Handles the functionality for the up/Home button.
      * @param item takes the Menue Item
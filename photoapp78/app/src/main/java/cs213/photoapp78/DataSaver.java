@@ -1,12 +1,10 @@
 package cs213.photoapp78;
 
-import android.widget.ArrayAdapter;
-
+import java.io.File;
 import java.io.FileOutputStream;
-import java.io.ObjectOutputStream;
-import java.util.ArrayList;
+import java.io.IOException;
 
-import cs213.photoapp78.model.Album;
+import cs213.photoapp78.metrics.Metrics;
 
 /**
  * Created by Anil on 12/3/2017.
@@ -17,47 +15,55 @@ import cs213.photoapp78.model.Album;
  */
 public class DataSaver {
     /**
-     * Saves the data from the ArrayList for the albums
-     * @param albums all the albums
+     * Saves an encoded snapshot. It is written to a temporary file and synced to disk
+     * first, and then renamed to the data file, so the data file always holds a complete
+     * snapshot. The data file it replaces is kept as {@link #previous(String)}, to fall
+     * back on if the new one turns out to be damaged.
+     * @param snapshot the encoded snapshot
      * @param path path to data file
+     * @throws IOException if the data file could not be written
      */
-    public static void saveData(ArrayList<Album> albums, String path) {
+    public static void saveData(byte[] snapshot, String path) throws IOException {
+        Metrics.Section section = Metrics.begin("library.save");
+        File temp = new File(path + ".tmp");
+        FileOutputStream fileOutputStream = new FileOutputStream(temp);
+
         try {
-            FileOutputStream fileOutputStream = new FileOutputStream(path);
-            ObjectOutputStream objectOutputStream = new ObjectOutputStream(fileOutputStream);
+            fileOutputStream.write(snapshot);
+            fileOutputStream.getFD().sync();
+            Metrics.counter("library.bytesWritten").add(snapshot.length);
+        } finally {
+            fileOutputStream.close();
+            section.end();
+        }
 
-            objectOutputStream.writeObject(albums);
+        File data = new File(path);
+        if (data.isFile() && !data.renameTo(new File(previous(path)))) {
+            temp.delete();
+            throw new IOException("Could not keep " + path);
+        }
 
-            objectOutputStream.close();
-            fileOutputStream.close();
-        } catch (Exception exception) {
-            exception.printStackTrace();
+        if (!temp.renameTo(data)) {
+            temp.delete();
+            throw new IOException("Could not replace " + path);
         }
     }
 
     /**
-     * Saves the data from the ArrayAdapter for a give album
-     * @param arrayAdapter current arrayadapter
+     * Returns where the snapshot before the current one is kept
      * @param path path to data file
+     * @return path to the previous data file
      */
-    public static void saveData(ArrayAdapter<Album> arrayAdapter, String path) {
-        ArrayList<Album> albums = new ArrayList<Album>();
-
-        for (int index = 0; index < arrayAdapter.getCount(); index++)
-            albums.add(arrayAdapter.getItem(index));
-
-        try {
-
-
-            FileOutputStream fileOutputStream = new FileOutputStream(path);
-            ObjectOutputStream objectOutputStream = new ObjectOutputStream(fileOutputStream);
-
-            objectOutputStream.writeObject(albums);
+    public static String previous(String path) {
+        return path + ".prev";
+    }
 
-            objectOutputStream.close();
-            fileOutputStream.close();
-        } catch (Exception exception) {
-            exception.printStackTrace();
-        }
+    /**
+     * Returns where a data file that could not be read is set aside
+     * @param path path to data file
+     * @return path to the damaged data file
+     */
+    public static String damaged(String path) {
+        return path + ".bad";
     }
 }
@@ -1,94 +1,128 @@
 package cs213.photoapp78;
 
 import android.app.AlertDialog;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.GridLayoutManager;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SimpleItemAnimator;
 import android.text.InputType;
 import android.view.View;
 import android.view.WindowManager;
-import android.widget.AdapterView;
-import android.widget.ArrayAdapter;
 import android.widget.EditText;
 import android.widget.LinearLayout;
-import android.widget.ListView;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.ObjectInputStream;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
+import cs213.photoapp78.adapter.AlbumAdapter;
 import cs213.photoapp78.adapter.PhotoAdapter;
+import cs213.photoapp78.metrics.Metrics;
 import cs213.photoapp78.model.Album;
 import cs213.photoapp78.model.Photo;
-import cs213.photoapp78.model.Tag;
+import cs213.photoapp78.search.TagQuery;
 
 /**
  * MainActivity to run the photoapp
  * author Anil and Ayush
  */
 public class MainActivity extends AppCompatActivity {
+    private static final ExecutorService searcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "photo-search");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
     private ArrayList<Album> albums;
-    private ListView listView;
-    private String path;
+    private AlbumAdapter adapter;
+    private PhotoLibrary library;
 
     /**
-     * On create loads the albums from the data file and initializes the listview for albums.
+     * On create gets the albums from the photo library and initializes the list of albums.
      *
      * @param savedInstanceState as saved Instance state
      */
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        setContentView(R.layout.activity_main);
-
-        path = this.getApplicationInfo().dataDir + "/data.dat";
-
-        File data = new File(path);
-
-        /*boolean deleteFlag = false;
-
-        //to delete data file after changes to model.
-        //Android Device Monitor won't let me see contents of data folder even with rwxrwxrwx permissions
-        if (deleteFlag)
-            data.delete();*/
-
-        if (!data.exists() || !data.isFile()) {
-            try {
-                data.createNewFile();
-                albums = new ArrayList<Album>();
-                albums.add(new Album("stock"));
-
-                DataSaver.saveData(albums, path);
-            } catch (Exception exception) {
-                exception.printStackTrace();
-            }
-        }
-
-        // File exists, proceed to read it
+        Metrics.Section section = Metrics.begin("activity.main.create");
         try {
-            FileInputStream fileInputStream = new FileInputStream(path);
-            ObjectInputStream objectInputStream = new ObjectInputStream(fileInputStream);
-            albums = (ArrayList<Album>) objectInputStream.readObject();
-            objectInputStream.close();
-            fileInputStream.close();
-        } catch (Exception exception) {
-            exception.printStackTrace();
+            setContentView(R.layout.activity_main);
+
+            library = PhotoLibrary.getInstance(this);
+            albums = library.getAlbums();
+
+            adapter = new AlbumAdapter();
+            RecyclerView albumList = findViewById(R.id.albumList);
+            albumList.setLayoutManager(new LinearLayoutManager(this));
+            ((SimpleItemAnimator) albumList.getItemAnimator()).setSupportsChangeAnimations(false);
+            albumList.setAdapter(adapter);
+            if (!albums.isEmpty())
+                adapter.setChecked(albums.get(0));
+        } finally {
+            section.end();
         }
+    }
 
-        ArrayAdapter<Album> adapter = new ArrayAdapter<>(this, R.layout.album_view, albums);
-        adapter.setNotifyOnChange(true);
-        listView = findViewById(R.id.listView);
-        listView.setAdapter(adapter);
-        listView.setItemChecked(0, true);
+    /**
+     * Shows the albums again, updating the rows of albums changed in other activities.
+     */
+    @Override
+    protected void onResume() {
+        super.onResume();
+        adapter.submit(albums);
+    }
 
-        listView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
-            @Override
-            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-                listView.setItemChecked(position, true);
-            }
-        });
+    /**
+     * Prints a JSON snapshot of the {@link Metrics} for
+     * {@code adb shell dumpsys activity cs213.photoapp78/.MainActivity}. Passing
+     * {@code reset} after the command sets the metrics back to zero once printed.
+     *
+     * @param prefix prefix of every line
+     * @param fd     descriptor of the output
+     * @param writer writer of the output
+     * @param args   arguments given after the activity
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        writer.print(prefix);
+        writer.println(Metrics.toJson());
+
+        if (args != null && args.length > 0 && "reset".equals(args[0]))
+            Metrics.reset();
+    }
+
+    /**
+     * Flushes album edits to disk when leaving the album list.
+     */
+    @Override
+    protected void onPause() {
+        super.onPause();
+        library.flush();
     }
 
     /**
@@ -97,9 +131,9 @@ public class MainActivity extends AppCompatActivity {
      * @param view current view
      */
     public void removeAlbum(View view) {
-        final ArrayAdapter<Album> adapter = (ArrayAdapter<Album>) listView.getAdapter();
+        final Album checkedAlbum = adapter.getCheckedItem();
 
-        if (adapter.getCount() == 0) {
+        if (adapter.getItemCount() == 0) {
             new AlertDialog.Builder(this)
                     .setMessage("There are no albums.")
                     .setPositiveButton("OK", null)
@@ -107,19 +141,20 @@ public class MainActivity extends AppCompatActivity {
 
             return;
         }
+        if (checkedAlbum == null)
+            return;
 
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
-        final int checkedItemPosition = listView.getCheckedItemPosition();
-        final Album checkedAlbum = adapter.getItem(checkedItemPosition);
 
         builder.setMessage("Are you sure you want to remove \"" + checkedAlbum.getName() + "\"?");
         builder.setPositiveButton("Yes",
                 new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialog, int id) {
-                        adapter.remove(checkedAlbum);
-                        DataSaver.saveData(adapter, path);
-                        listView.setItemChecked(checkedItemPosition, true);
+                        int position = albums.indexOf(checkedAlbum);
+                        library.removeAlbum(checkedAlbum);
+                        adapter.setChecked(albums.isEmpty() ? null : albums.get(Math.min(position, albums.size() - 1)));
+                        adapter.submit(albums);
                     }
                 });
 
@@ -141,7 +176,6 @@ public class MainActivity extends AppCompatActivity {
      */
     public void addAlbum(View view) {
         final AlertDialog.Builder builder = new AlertDialog.Builder(this);
-        final ArrayAdapter<Album> adapter = (ArrayAdapter<Album>) listView.getAdapter();
         final EditText input = new EditText(this);
 
         input.setInputType(InputType.TYPE_CLASS_TEXT);
@@ -151,20 +185,18 @@ public class MainActivity extends AppCompatActivity {
             @Override
             public void onClick(DialogInterface dialog, int which) {
                 String albumName = input.getText().toString();
-                Album newAlbum = new Album(albumName);
 
-                for (int index = 0; index < adapter.getCount(); index++)
-                    if (newAlbum.equals(adapter.getItem(index))) {
-                        new AlertDialog.Builder(builder.getContext())
-                                .setMessage("An album with the name \"" + albumName + "\" already exists.")
-                                .setPositiveButton("OK", null)
-                                .show();
+                if (library.getAlbum(albumName) != null) {
+                    new AlertDialog.Builder(builder.getContext())
+                            .setMessage("An album with the name \"" + albumName + "\" already exists.")
+                            .setPositiveButton("OK", null)
+                            .show();
 
-                        return;
-                    }
+                    return;
+                }
 
-                adapter.add(newAlbum);
-                DataSaver.saveData(adapter, path);
+                library.addAlbum(new Album(albumName));
+                adapter.submit(albums);
             }
         });
         builder.setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
@@ -186,11 +218,14 @@ public class MainActivity extends AppCompatActivity {
      */
     public void renameAlbum(View view) {
         final AlertDialog.Builder builder = new AlertDialog.Builder(this);
-        final ArrayAdapter<Album> adapter = (ArrayAdapter<Album>) listView.getAdapter();
+        final Album checkedAlbum = adapter.getCheckedItem();
         final EditText input = new EditText(this);
 
+        if (checkedAlbum == null)
+            return;
+
         input.setInputType(InputType.TYPE_CLASS_TEXT);
-        input.setText(adapter.getItem(listView.getCheckedItemPosition()).getName());
+        input.setText(checkedAlbum.getName());
         input.setSelection(input.getText().length());
         builder.setView(input);
 
@@ -199,18 +234,16 @@ public class MainActivity extends AppCompatActivity {
             public void onClick(DialogInterface dialog, int which) {
                 String albumName = input.getText().toString();
 
-                for (int index = 0; index < adapter.getCount(); index++)
-                    if (albumName.equals(adapter.getItem(index).getName())) {
-                        new AlertDialog.Builder(builder.getContext())
-                                .setMessage("An album_view with the name \"" + albumName + "\" already exists.")
-                                .setPositiveButton("OK", null)
-                                .show();
+                if (library.getAlbum(albumName) != null) {
+                    new AlertDialog.Builder(builder.getContext())
+                            .setMessage("An album_view with the name \"" + albumName + "\" already exists.")
+                            .setPositiveButton("OK", null)
+                            .show();
 
-                        return;
-                    }
-                adapter.getItem(listView.getCheckedItemPosition()).setName(albumName);
-                adapter.notifyDataSetChanged();
-                DataSaver.saveData(adapter, path);
+                    return;
+                }
+                library.renameAlbum(checkedAlbum, albumName);
+                adapter.submit(albums);
             }
         });
         builder.setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
@@ -231,18 +264,20 @@ public class MainActivity extends AppCompatActivity {
      * @param view current view
      */
     public void openAlbum(View view) {
-        if (listView.getAdapter().getCount() == 0)
+        Album checkedAlbum = adapter.getCheckedItem();
+        if (checkedAlbum == null)
             return;
 
         Intent intent = new Intent(this, AlbumActivity.class);
 
-        intent.putExtra("albums", albums);
-        intent.putExtra("albumPosition", listView.getCheckedItemPosition());
+        intent.putExtra("albumId", checkedAlbum.getId());
         startActivity(intent);
     }
 
     /**
-     * Searches all albums for relevant photos
+     * Searches all albums for relevant photos. The first search builds the tag index, which
+     * reads every album, so searches run in the background and the results are shown once
+     * they are found.
      *
      * @param view current view
      */
@@ -259,70 +294,55 @@ public class MainActivity extends AppCompatActivity {
         locationInput.setHint("Location");
         layout.addView(locationInput);
 
+        final EditText queryInput = new EditText(this);
+        queryInput.setHint("Or a query, e.g. person=alice AND NOT location=paris");
+        layout.addView(queryInput);
+
         builder.setView(layout)
                 .setPositiveButton("Search", new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(final DialogInterface dialog, int which) {
-                        ArrayList<Photo> searchResults = new ArrayList<>();
                         String personString = personInput.getText().toString(),
-                                locationString = locationInput.getText().toString();
-                        boolean alreadyAdded = false;
-
-                        for (Album currentAlbum : albums) {
-                            for (Photo currentPhoto : currentAlbum.getPhotos()) {
-                                for (Tag currentTag : currentPhoto.getTags()) {
-                                    String tagValue = currentTag.getValue();
-
-                                    if (!tagValue.isEmpty()) {
-                                        if (!personString.isEmpty() && tagValue.contains(personString) ||
-                                                !locationString.isEmpty() && tagValue.contains(locationString)) {
-                                            for (Photo currentAddedPhoto : searchResults) {
-                                                if (currentAddedPhoto.equals(currentPhoto)) {
-                                                    alreadyAdded = true;
-                                                    break;
-                                                }
-                                            }
-
-                                            if (!alreadyAdded) {
-                                                searchResults.add(currentPhoto);
-                                                alreadyAdded = false;
-                                                break;
-                                            }
-                                        }
+                                locationString = locationInput.getText().toString(),
+                                queryString = queryInput.getText().toString();
+                        TagQuery query;
+
+                        if (!queryString.trim().isEmpty()) {
+                            try {
+                                query = TagQuery.parse(queryString);
+                            } catch (ParseException exception) {
+                                new AlertDialog.Builder(builder.getContext())
+                                        .setMessage(exception.getMessage() + " at position " + (exception.getErrorOffset() + 1) + ".")
+                                        .setPositiveButton("OK", null)
+                                        .show();
+
+                                return;
+                            }
+                        } else if (!personString.isEmpty() && !locationString.isEmpty())
+                            query = TagQuery.or(TagQuery.contains("person", personString),
+                                    TagQuery.contains("location", locationString));
+                        else if (!personString.isEmpty())
+                            query = TagQuery.contains("person", personString);
+                        else if (!locationString.isEmpty())
+                            query = TagQuery.contains("location", locationString);
+                        else
+                            query = TagQuery.or();
+
+                        final TagQuery search = query;
+                        searcher.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                final List<Photo> searchResults = search.search(library.getTagIndex());
+
+                                handler.post(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        if (!isFinishing())
+                                            showSearchResults(builder.getContext(), dialog, searchResults);
                                     }
-                                }
+                                });
                             }
-                        }
-
-                        if (searchResults.isEmpty()) {
-                            new AlertDialog.Builder(builder.getContext())
-                                    .setMessage("No search results for your query.")
-                                    .setPositiveButton("OK", null)
-                                    .show();
-
-                            return;
-                        } else {
-                            AlertDialog.Builder searchBuilder = new AlertDialog.Builder(builder.getContext());
-                            PhotoAdapter photoAdapter = new PhotoAdapter(builder.getContext(), R.layout.photo_view, searchResults);
-                            ListView searchView = new ListView(builder.getContext());
-                            searchView.setAdapter(photoAdapter);
-
-                            searchBuilder.setView(searchView)
-                                    .setPositiveButton("Search Again", new DialogInterface.OnClickListener() {
-                                        @Override
-                                        public void onClick(DialogInterface dialogInterface, int i) {
-                                            searchAlbums(null);
-                                        }
-                                    })
-                                    .setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
-                                        @Override
-                                        public void onClick(DialogInterface dialogInterface, int i) {
-                                            dialog.cancel();
-                                        }
-                                    });
-
-                            searchBuilder.show();
-                        }
+                        });
                     }
                 })
                 .setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
@@ -336,4 +356,45 @@ public class MainActivity extends AppCompatActivity {
         dialog.getWindow().setSoftInputMode(WindowManager.LayoutParams.SOFT_INPUT_STATE_VISIBLE);
         dialog.show();
     }
+
+    /**
+     * Shows the photos found by a search, or says that there are none
+     *
+     * @param context       context of the search dialog
+     * @param dialog        the search dialog
+     * @param searchResults the photos found
+     */
+    private void showSearchResults(Context context, final DialogInterface dialog, List<Photo> searchResults) {
+        if (searchResults.isEmpty()) {
+            new AlertDialog.Builder(context)
+                    .setMessage("No search results for your query.")
+                    .setPositiveButton("OK", null)
+                    .show();
+
+            return;
+        }
+
+        AlertDialog.Builder searchBuilder = new AlertDialog.Builder(context);
+        PhotoAdapter photoAdapter = new PhotoAdapter();
+        RecyclerView searchView = new RecyclerView(context);
+        searchView.setLayoutManager(new GridLayoutManager(context, PhotoAdapter.COLUMNS));
+        searchView.setAdapter(photoAdapter);
+        photoAdapter.submit(searchResults);
+
+        searchBuilder.setView(searchView)
+                .setPositiveButton("Search Again", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int i) {
+                        searchAlbums(null);
+                    }
+                })
+                .setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int i) {
+                        dialog.cancel();
+                    }
+                });
+
+        searchBuilder.show();
+    }
 }
@@ -4,6 +4,7 @@ import android.app.AlertDialog;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.os.Bundle;
+import android.util.DisplayMetrics;
 import android.support.v7.app.AppCompatActivity;
 import android.text.InputType;
 import android.view.MenuItem;
@@ -11,11 +12,11 @@ import android.view.View;
 import android.view.WindowManager;
 import android.widget.ArrayAdapter;
 import android.widget.EditText;
-import android.widget.ImageView;
 import android.widget.ListView;
 
-import java.util.ArrayList;
 
+import cs213.photoapp78.image.ImageLoader;
+import cs213.photoapp78.image.PhotoPrefetcher;
 import cs213.photoapp78.model.Album;
 import cs213.photoapp78.model.Photo;
 import cs213.photoapp78.model.Tag;
@@ -24,13 +25,13 @@ import cs213.photoapp78.model.Tag;
  * Activity to implement the functionality in the photo view.
  */
 public class PhotoActivity extends AppCompatActivity {
-    private ArrayList<Album> albums;
     private Album album;
     private Photo photo;
     private ListView listView;
-    private ImageView imageView;
-    private String path;
-    private int albumPosition, photoPosition;
+    private TiledImageView imageView;
+    private PhotoLibrary library;
+    private PhotoPrefetcher prefetcher;
+    private int photoPosition, displayWidth, displayHeight;
 
     /**
      * On create get the photo and update the photo view.
@@ -41,13 +42,15 @@ public class PhotoActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_photo);
 
-        path = this.getApplicationInfo().dataDir + "/data.dat";
+        library = PhotoLibrary.getInstance(this);
         Intent intent = getIntent();
-        albums = (ArrayList<Album>) intent.getSerializableExtra("albums");
-        albumPosition = intent.getIntExtra("albumPosition", 0);
-        album = albums.get(albumPosition);
-        photoPosition = intent.getIntExtra("photoPosition", 0);
-        photo = album.getPhotos().get(photoPosition);
+        album = library.getAlbumById(intent.getIntExtra("albumId", 0));
+        photo = album == null ? null : album.getPhoto(intent.getIntExtra("photoId", 0));
+        if (photo == null) {
+            finish();
+            return;
+        }
+        photoPosition = album.indexOf(photo);
 
         ArrayAdapter<Tag> adapter = new ArrayAdapter<>(this, R.layout.album_view, photo.getTags());
         adapter.setNotifyOnChange(true);
@@ -55,8 +58,31 @@ public class PhotoActivity extends AppCompatActivity {
         listView.setAdapter(adapter);
         listView.setItemChecked(0, true);
 
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        displayWidth = metrics.widthPixels;
+        displayHeight = metrics.heightPixels;
+        prefetcher = new PhotoPrefetcher(ImageLoader.getInstance(), displayWidth, displayHeight, 2);
+
         imageView = findViewById(R.id.photo);
-        imageView.setImageBitmap(photo.getBitmap());
+        showPhoto(1);
+    }
+
+    /**
+     * Cancels the prefetches of neighbouring photos.
+     */
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        prefetcher.cancel();
+    }
+
+    /**
+     * Flushes tag edits to disk when leaving the photo.
+     */
+    @Override
+    protected void onPause() {
+        super.onPause();
+        library.flush();
     }
 
     /**
@@ -94,8 +120,8 @@ public class PhotoActivity extends AppCompatActivity {
 
                                 return;
                             }
-                        adapter.add(tag);
-                        DataSaver.saveData(albums, path);
+                        library.addTag(album, photo, tag);
+                        adapter.notifyDataSetChanged();
                     }
                 })
                 .setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
@@ -135,8 +161,8 @@ public class PhotoActivity extends AppCompatActivity {
                 new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialog, int id) {
-                        adapter.remove(checkedTag);
-                        DataSaver.saveData(albums, path);
+                        library.removeTag(album, photo, checkedTag);
+                        adapter.notifyDataSetChanged();
                         listView.setItemChecked(checkedItemPosition, true);
                     }
                 });
@@ -159,7 +185,7 @@ public class PhotoActivity extends AppCompatActivity {
     public void previousPhoto(View view) {
         photoPosition = photoPosition > 0 ? photoPosition - 1 : album.getPhotoCount() - 1;
         photo = album.getPhotos().get(photoPosition);
-        imageView.setImageBitmap(photo.getBitmap());
+        showPhoto(-1);
         ArrayAdapter<Tag> adapter = new ArrayAdapter<>(this, R.layout.album_view, photo.getTags());
         listView.setAdapter(adapter);
         listView.setItemChecked(0, true);
@@ -172,12 +198,22 @@ public class PhotoActivity extends AppCompatActivity {
     public void nextPhoto(View view) {
         photoPosition = photoPosition < album.getPhotoCount() - 1 ? photoPosition + 1 : 0;
         photo = album.getPhotos().get(photoPosition);
-        imageView.setImageBitmap(photo.getBitmap());
+        showPhoto(1);
         ArrayAdapter<Tag> adapter = new ArrayAdapter<>(this, R.layout.album_view, photo.getTags());
         listView.setAdapter(adapter);
         listView.setItemChecked(0, true);
     }
 
+    /**
+     * Shows the current photo at screen resolution, decoding tiles of it once zoomed
+     * in, and prefetches its neighbours
+     * @param direction 1 when moving forward through the album, -1 when moving back
+     */
+    private void showPhoto(int direction) {
+        imageView.setImage(photo.getImage(), displayWidth, displayHeight);
+        prefetcher.prefetch(album.getPhotos(), photoPosition, direction);
+    }
+
     /**
      * Handles the functionality for the up/Home button. Gets back to album.
      * @param item as Menu Item
@@ -190,8 +226,7 @@ public class PhotoActivity extends AppCompatActivity {
             case android.R.id.home:
                 Intent intent = new Intent(this, AlbumActivity.class);
 
-                intent.putExtra("albums", albums);
-                intent.putExtra("albumPosition", albumPosition);
+                intent.putExtra("albumId", album.getId());
                 startActivity(intent);
                 return true;
         }
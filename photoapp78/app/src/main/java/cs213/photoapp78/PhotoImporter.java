@@ -0,0 +1,205 @@
+package cs213.photoapp78;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cs213.photoapp78.metrics.Metrics;
+import cs213.photoapp78.model.Photo;
+import cs213.photoapp78.model.SerializableBitmap;
+
+/**
+ * Imports a batch of picked images on a pool of background threads, one per core. Each
+ * image is copied into the blob store as it was picked, then thumbnailed and hashed from
+ * a subsampled decode, independently of the others. Only twice as many images as there
+ * are threads are handed to the pool at a time, which bounds the memory held by images
+ * waiting to be processed.
+ * <p>
+ * Once all images are done, each photo is looked up in the library for a duplicate,
+ * still in the background, as the first lookup builds the duplicate index. The finished
+ * photos are passed back on the main thread in the order they were picked, so they can
+ * be added to an album in a single edit with
+ * {@link PhotoLibrary#addPhotos(cs213.photoapp78.model.Album, List)}.
+ */
+public class PhotoImporter {
+    private static final String TAG = "PhotoImporter";
+
+    private final ContentResolver resolver;
+    private final PhotoLibrary library;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final int threads;
+    private volatile boolean cancelled;
+
+    /**
+     * Receives the progress of an import on the main thread.
+     */
+    public interface Listener {
+        /**
+         * Called each time an image is done
+         *
+         * @param done  number of images done
+         * @param total number of images in the batch
+         */
+        void onProgress(int done, int total);
+
+        /**
+         * Called once all images are done, unless the import was cancelled
+         *
+         * @param photos     the imported photos in the order they were picked
+         * @param duplicates for each imported photo, the most similar photo of the library,
+         *                   or null if none is similar enough
+         * @param failed     number of images that could not be read
+         */
+        void onFinished(ArrayList<Photo> photos, ArrayList<Photo> duplicates, int failed);
+    }
+
+    /**
+     * Creates an importer reading images through the given resolver
+     *
+     * @param resolver resolver of the picked image uris
+     * @param library  library to look for duplicates in
+     */
+    public PhotoImporter(ContentResolver resolver, PhotoLibrary library) {
+        this.resolver = resolver;
+        this.library = library;
+        this.threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Starts importing the images in the background
+     *
+     * @param uris     the picked images
+     * @param listener listener notified on the main thread
+     */
+    public void start(final List<Uri> uris, final Listener listener) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                importAll(uris, listener);
+            }
+        }, "photo-import");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the import. Images already being processed are finished and discarded.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    private void importAll(List<Uri> uris, final Listener listener) {
+        final int total = uris.size();
+        final Photo[] results = new Photo[total];
+        final AtomicInteger done = new AtomicInteger();
+        final Semaphore slots = new Semaphore(threads * 2);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private int count;
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "photo-import-" + ++count);
+            }
+        });
+
+        try {
+            for (int index = 0; index < total && !cancelled; index++) {
+                slots.acquire();
+
+                final int position = index;
+                final Uri uri = uris.get(index);
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (!cancelled)
+                                results[position] = importPhoto(uri);
+                        } catch (Exception exception) {
+                            Log.w(TAG, "Could not import " + uri, exception);
+                            Metrics.counter("import.failures").increment();
+                        } finally {
+                            slots.release();
+                        }
+
+                        final int count = done.incrementAndGet();
+                        handler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (!cancelled)
+                                    listener.onProgress(count, total);
+                            }
+                        });
+                    }
+                });
+            }
+
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException exception) {
+            Log.w(TAG, "Import interrupted", exception);
+            executor.shutdownNow();
+            return;
+        }
+
+        final ArrayList<Photo> photos = new ArrayList<Photo>(total);
+        final ArrayList<Photo> duplicates = new ArrayList<Photo>(total);
+        for (Photo photo : results)
+            if (photo != null && !cancelled) {
+                photos.add(photo);
+                duplicates.add(library.findDuplicate(photo));
+            }
+
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!cancelled)
+                    listener.onFinished(photos, duplicates, total - photos.size());
+            }
+        });
+    }
+
+    /**
+     * Copies one image into the blob store and creates its thumbnail. Runs on a pool thread.
+     *
+     * @param uri the image
+     * @return the photo, not yet added to any album
+     * @throws IOException if the image could not be read or stored
+     */
+    private Photo importPhoto(Uri uri) throws IOException {
+        ParcelFileDescriptor parcelFileDescriptor = resolver.openFileDescriptor(uri, "r");
+        if (parcelFileDescriptor == null)
+            throw new IOException("Could not open " + uri);
+
+        Metrics.Section section = Metrics.begin("import.photo");
+        InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(parcelFileDescriptor);
+        try {
+            return new Photo(uri.getLastPathSegment(), new SerializableBitmap(in));
+        } finally {
+            in.close();
+            section.end();
+        }
+    }
+}
@@ -0,0 +1,1176 @@
+package cs213.photoapp78;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import cs213.photoapp78.image.Codec;
+import cs213.photoapp78.image.StorageTier;
+import cs213.photoapp78.metrics.Metrics;
+import cs213.photoapp78.model.Album;
+import cs213.photoapp78.model.Photo;
+import cs213.photoapp78.model.PhotoTable;
+import cs213.photoapp78.model.Tag;
+import cs213.photoapp78.search.DuplicateIndex;
+import cs213.photoapp78.search.TagIndex;
+import cs213.photoapp78.storage.BlobStore;
+import cs213.photoapp78.storage.Journal;
+import cs213.photoapp78.storage.LibraryFile;
+import cs213.photoapp78.storage.PersistenceExecutor;
+
+/**
+ * App-scoped holder of the albums. The data file is read once per process and every
+ * activity works on the same live list, so only album and photo ids need to be passed
+ * between them. Ids are handed out here when albums and photos are added and never
+ * change afterwards.
+ * <p>
+ * All edits go through this class. Each one is recorded in the {@link Journal}, and a
+ * {@link PersistenceExecutor} writes the records in the background, folding the journal
+ * into a new snapshot of the data file once it outgrows the snapshot. The snapshot is a
+ * {@link LibraryFile}, which is memory-mapped when it is read.
+ * <p>
+ * Each photo is held once in a {@link PhotoTable}, however many albums it is in. A photo
+ * leaves the table with its last album, and its image blobs are deleted by the next
+ * snapshot, once no saved data can refer to them any more.
+ * <p>
+ * The perceptual hashes of all photos are kept in a {@link DuplicateIndex}, so an import
+ * can be checked against the whole library for a copy of the same picture.
+ * <p>
+ * Loading only reads the names and photo counts of the albums. The photos of an album are
+ * read from the mapped library file when the album is first used, and the tag and
+ * duplicate indexes are built when a search or an import first needs them.
+ */
+public class PhotoLibrary {
+    private static final String TAG = "PhotoLibrary";
+    private static final long MIN_COMPACTION_LENGTH = 64 * 1024;
+    private static final long WRITE_DELAY_MILLIS = 500;
+    private static final long BLOB_MIN_AGE_MILLIS = 60 * 60 * 1000;
+    private static final int DUPLICATE_DISTANCE = 6;
+    private static PhotoLibrary instance;
+
+    private final ArrayList<Album> albums = new ArrayList<Album>();
+    private final String path;
+    private final String legacyPath;
+    private final Journal journal;
+    private final PersistenceExecutor saver;
+    private final HashMap<Integer, Album> albumsById = new HashMap<Integer, Album>();
+    private final HashMap<String, Album> albumsByName = new HashMap<String, Album>();
+    private final PhotoTable photos = new PhotoTable();
+    private final TagIndex tagIndex = new TagIndex();
+    private final DuplicateIndex duplicates = new DuplicateIndex();
+    private final Album.Loader loader = new Album.Loader() {
+        @Override
+        public void load(Album album) {
+            loadAlbum(album);
+        }
+    };
+    private LibraryFile file;
+    private boolean indexed;
+    private int nextAlbumId = 1;
+    private int nextPhotoId = 1;
+    private long generation;
+    private long snapshotLength;
+    private volatile boolean snapshotRequested;
+    /**
+     * Whether the albums were read completely from a snapshot, so every blob in use is
+     * known to the library and the others can be deleted
+     */
+    private boolean snapshotRead;
+    /**
+     * Whether a library was found but none of its snapshots could be read, or the one read
+     * turned out to be damaged. Nothing is written then, so the files are left for
+     * recovery.
+     */
+    private boolean unreadable;
+
+    private PhotoLibrary(String path, String legacyPath, Journal journal) {
+        this.path = path;
+        this.legacyPath = legacyPath;
+        this.journal = journal;
+        this.saver = new PersistenceExecutor(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write();
+                } catch (IOException exception) {
+                    // fails the flush waiting for this write
+                    throw new IllegalStateException("Could not save the library", exception);
+                }
+            }
+        }, WRITE_DELAY_MILLIS);
+    }
+
+    /**
+     * Returns the library, reading it from the data file on first use.
+     *
+     * @param context any context of the app
+     * @return the library shared by all activities
+     */
+    public static synchronized PhotoLibrary getInstance(Context context) {
+        if (instance == null) {
+            Resources resources = context.getResources();
+            StorageTier.THUMBNAIL.setCodec(Codec.forName(resources.getString(R.string.thumbnail_codec)));
+            StorageTier.ORIGINAL.setCodec(Codec.forName(resources.getString(R.string.original_codec)));
+
+            String dataDir = context.getApplicationInfo().dataDir;
+            BlobStore.initialize(dataDir + "/blobs");
+            instance = open(dataDir);
+        }
+
+        return instance;
+    }
+
+    /**
+     * Reads the library kept in a directory, without a context. The blob store must have
+     * been initialized.
+     *
+     * @param dataDir directory of the data files
+     * @return a new library object, not shared with {@link #getInstance(Context)}
+     */
+    static PhotoLibrary open(String dataDir) {
+        PhotoLibrary library = new PhotoLibrary(dataDir + "/library.dat", dataDir + "/data.dat",
+                new Journal(new File(dataDir + "/journal.dat")));
+        Metrics.Section section = Metrics.begin("library.load");
+        try {
+            library.load();
+        } finally {
+            section.end();
+        }
+        return library;
+    }
+
+    /**
+     * Returns all albums
+     *
+     * @return the live list of albums
+     */
+    public ArrayList<Album> getAlbums() {
+        return albums;
+    }
+
+    /**
+     * Returns the album at the given position
+     *
+     * @param position position of the album
+     * @return the album
+     */
+    public Album getAlbum(int position) {
+        return albums.get(position);
+    }
+
+    /**
+     * Returns the album with the given id
+     *
+     * @param id id of the album
+     * @return the album, or null if there is none
+     */
+    public synchronized Album getAlbumById(int id) {
+        return albumsById.get(id);
+    }
+
+    /**
+     * Returns the album with the given name
+     *
+     * @param name name of the album
+     * @return the album, or null if there is none
+     */
+    public synchronized Album getAlbum(String name) {
+        return albumsByName.get(name);
+    }
+
+    /**
+     * Returns the photo with the given id
+     *
+     * @param id id of the photo
+     * @return the photo, or null if no album holds it or no album holding it was used yet
+     */
+    public synchronized Photo getPhoto(int id) {
+        return photos.get(id);
+    }
+
+    /**
+     * Reads photos to show without keeping them in the library. Photos already in memory
+     * are returned as they are, and the others are read from the library file as copies
+     * that are garbage once unused, so browsing an album does not read all of it. Edits
+     * given a copy are made to the photo of the album.
+     * <p>
+     * Photos stored before thumbnails existed are kept in the photo table instead, as
+     * {@link #loadAlbum(Album)} would, since the thumbnail created when they are shown is
+     * only written, and its blob only kept, by the next snapshot if the table holds it.
+     *
+     * @param ids  ids of photos, e.g. from {@link Album#getPhotoIds()}
+     * @param from position of the first id to read
+     * @param to   position after the last id to read
+     * @return the photos, with null for ids of photos no longer in the library or found
+     * damaged in the library file
+     */
+    public synchronized List<Photo> readPhotos(int[] ids, int from, int to) {
+        Metrics.Section section = Metrics.begin("library.readPhotos");
+        ArrayList<Photo> read = new ArrayList<Photo>(to - from);
+
+        try {
+            for (int position = from; position < to; position++) {
+                Photo photo = photos.get(ids[position]);
+
+                if (photo == null && file != null) {
+                    int record = file.findPhoto(ids[position]);
+                    if (record >= 0) {
+                        try {
+                            photo = file.readPhoto(record);
+                        } catch (IOException exception) {
+                            // the file is set aside once its check in the background fails
+                            Log.e(TAG, "Could not read photo " + ids[position], exception);
+                            read.add(null);
+                            continue;
+                        }
+                        if (photo.getImage().getThumbnailKey() == null)
+                            photos.put(photo, file.getPhotoReferences(record));
+                    }
+                }
+                read.add(photo);
+            }
+        } finally {
+            section.end();
+        }
+
+        return read;
+    }
+
+    /**
+     * Finds which of the given captions photos of an album already have. Only the captions
+     * are read of photos not in memory, so an album not used yet is not read whole.
+     *
+     * @param album    the album
+     * @param captions the captions to look for
+     * @return the captions found in the album
+     */
+    public synchronized Set<String> findCaptions(Album album, Collection<String> captions) {
+        HashSet<String> found = new HashSet<String>();
+        if (album.isLoaded()) {
+            for (String caption : captions)
+                if (album.getPhoto(caption) != null)
+                    found.add(caption);
+            return found;
+        }
+
+        Metrics.Section section = Metrics.begin("library.findCaptions");
+        HashSet<String> wanted = new HashSet<String>(captions);
+        try {
+            for (int id : album.getPhotoIds()) {
+                Photo photo = photos.get(id);
+                String caption;
+
+                if (photo != null)
+                    caption = photo.getCaption();
+                else {
+                    int record = file.findPhoto(id);
+                    if (record < 0)
+                        continue;
+
+                    try {
+                        caption = file.getPhotoCaption(record);
+                    } catch (IOException exception) {
+                        Log.e(TAG, "Could not read the caption of photo " + id, exception);
+                        continue;
+                    }
+                }
+
+                if (wanted.contains(caption))
+                    found.add(caption);
+            }
+        } finally {
+            section.end();
+        }
+
+        return found;
+    }
+
+    /**
+     * Returns the number of albums holding a photo
+     *
+     * @param photo the photo
+     * @return the number of albums
+     */
+    public synchronized int getReferences(Photo photo) {
+        return photos.getReferences(photo);
+    }
+
+    /**
+     * Looks for a photo in any album showing the same picture as the given one, even if
+     * it was rescaled or re-encoded. The first lookup reads every album to build the index,
+     * so lookups are made off the main thread, as {@link PhotoImporter} does.
+     *
+     * @param photo a photo about to be added
+     * @return the most similar photo of the library, or null if none is similar enough
+     */
+    public synchronized Photo findDuplicate(Photo photo) {
+        if (!photo.getImage().hasPerceptualHash())
+            return null;
+
+        ensureIndexed();
+        Metrics.Section section = Metrics.begin("search.duplicates");
+        try {
+            int id = duplicates.findNearest(photo.getImage().getPerceptualHash(), DUPLICATE_DISTANCE);
+            return id < 0 ? null : photos.get(id);
+        } finally {
+            section.end();
+        }
+    }
+
+    /**
+     * Returns the index of the tags of all photos, kept up to date by the edits made
+     * through this library
+     *
+     * @return the tag index
+     */
+    public synchronized TagIndex getTagIndex() {
+        ensureIndexed();
+        return tagIndex;
+    }
+
+    /**
+     * Adds a new album
+     *
+     * @param album the new album
+     */
+    public synchronized void addAlbum(Album album) {
+        album.setId(nextAlbumId++);
+        albums.add(album);
+        albumsById.put(album.getId(), album);
+        albumsByName.put(album.getName(), album);
+
+        try {
+            journal.addAlbum(album);
+        } catch (IOException exception) {
+            Log.e(TAG, "Could not journal adding album " + album.getName(), exception);
+            snapshotRequested = true;
+        }
+        saver.markDirty();
+    }
+
+    /**
+     * Removes an album with all its photos
+     *
+     * @param album the album
+     */
+    public synchronized void removeAlbum(Album album) {
+        int position = albums.indexOf(album);
+        albums.remove(position);
+        albumsById.remove(album.getId());
+        if (albumsByName.get(album.getName()) == album)
+            albumsByName.remove(album.getName());
+
+        for (Photo photo : album.getPhotos()) {
+            release(photo);
+            if (indexed)
+                tagIndex.removePhoto(photo);
+        }
+
+        try {
+            journal.removeAlbum(position);
+        } catch (IOException exception) {
+            Log.e(TAG, "Could not journal removing album " + position, exception);
+            snapshotRequested = true;
+        }
+        saver.markDirty();
+    }
+
+    /**
+     * Renames an album
+     *
+     * @param album the album
+     * @param name  the new name
+     */
+    public synchronized void renameAlbum(Album album, String name) {
+        if (albumsByName.get(album.getName()) == album)
+            albumsByName.remove(album.getName());
+        album.setName(name);
+        albumsByName.put(name, album);
+
+        try {
+            journal.renameAlbum(albums.indexOf(album), name);
+        } catch (IOException exception) {
+            Log.e(TAG, "Could not journal renaming album " + name, exception);
+            snapshotRequested = true;
+        }
+        saver.markDirty();
+    }
+
+    /**
+     * Adds a photo to the end of an album. An album not used yet is not read for this.
+     *
+     * @param album the album
+     * @param photo the new photo
+     */
+    public synchronized void addPhoto(Album album, Photo photo) {
+        photo.setId(nextPhotoId++);
+        album.appendPhoto(photo);
+        retain(photo);
+        if (indexed)
+            tagIndex.addPhoto(photo);
+
+        try {
+            journal.addPhoto(albums.indexOf(album), photo);
+        } catch (IOException exception) {
+            Log.e(TAG, "Could not journal adding photo " + photo.getId(), exception);
+            snapshotRequested = true;
+        }
+        saver.markDirty();
+    }
+
+    /**
+     * Adds several photos to the end of an album as one edit, which is saved completely
+     * or not at all. An album not used yet is not read for this.
+     *
+     * @param album  the album
+     * @param photos the new photos
+     */
+    public synchronized void addPhotos(Album album, List<Photo> photos) {
+        if (photos.isEmpty())
+            return;
+
+        for (Photo photo : photos) {
+            photo.setId(nextPhotoId++);
+            album.appendPhoto(photo);
+            retain(photo);
+            if (indexed)
+                tagIndex.addPhoto(photo);
+        }
+
+        try {
+            journal.addPhotos(albums.indexOf(album), photos);
+        } catch (IOException exception) {
+            Log.e(TAG, "Could not journal adding " + photos.size() + " photos", exception);
+            snapshotRequested = true;
+        }
+        saver.markDirty();
+    }
+
+    /**
+     * Adds a photo of one album to the end of another. Both albums share the photo.
+     *
+     * @param source      the album holding the photo
+     * @param photo       the photo, or a copy of it from {@link #readPhotos(int[], int, int)}
+     * @param destination the album to add the photo to
+     */
+    public synchronized void copyPhoto(Album source, Photo photo, Album destination) {
+        photo = resolve(source, photo);
+        destination.addPhoto(photo);
+        retain(photo);
+        if (indexed)
+            tagIndex.addPhoto(photo);
+
+        try {
+            journal.copyPhoto(albums.indexOf(source), source.indexOf(photo), albums.indexOf(destination));
+        } catch (IOException exception) {
+            Log.e(TAG, "Could not journal copying photo " + photo.getId(), exception);
+            snapshotRequested = true;
+        }
+        saver.markDirty();
+    }
+
+    /**
+     * Removes a photo from an album
+     *
+     * @param album the album
+     * @param photo the photo, or a copy of it from {@link #readPhotos(int[], int, int)}
+     */
+    public synchronized void removePhoto(Album album, Photo photo) {
+        photo = resolve(album, photo);
+        int position = album.indexOf(photo);
+        album.removePhoto(position);
+        release(photo);
+        if (indexed)
+            tagIndex.removePhoto(photo);
+
+        try {
+            journal.removePhoto(albums.indexOf(album), position);
+        } catch (IOException exception) {
+            Log.e(TAG, "Could not journal removing photo " + position, exception);
+            snapshotRequested = true;
+        }
+        saver.markDirty();
+    }
+
+    /**
+     * Changes the caption of a photo
+     *
+     * @param album   an album holding the photo
+     * @param photo   the photo, or a copy of it from {@link #readPhotos(int[], int, int)}
+     * @param caption the new caption
+     */
+    public synchronized void recaptionPhoto(Album album, Photo photo, String caption) {
+        photo = resolve(album, photo);
+        String previous = photo.getCaption();
+        photo.setCaption(caption);
+
+        for (Album other : albums)
+            if (other.contains(photo))
+                other.captionChanged(photo, previous);
+
+        try {
+            journal.recaptionPhoto(albums.indexOf(album), album.indexOf(photo), caption);
+        } catch (IOException exception) {
+            Log.e(TAG, "Could not journal recaptioning photo " + photo.getId(), exception);
+            snapshotRequested = true;
+        }
+        saver.markDirty();
+    }
+
+    /**
+     * Adds a tag to a photo
+     *
+     * @param album an album holding the photo
+     * @param photo the photo, or a copy of it from {@link #readPhotos(int[], int, int)}
+     * @param tag   the new tag
+     */
+    public synchronized void addTag(Album album, Photo photo, Tag tag) {
+        photo = resolve(album, photo);
+        photo.getTags().add(tag);
+        if (indexed)
+            tagIndex.addTag(photo, tag);
+
+        try {
+            journal.addTag(albums.indexOf(album), album.indexOf(photo), tag);
+        } catch (IOException exception) {
+            Log.e(TAG, "Could not journal adding a tag to photo " + photo.getId(), exception);
+            snapshotRequested = true;
+        }
+        saver.markDirty();
+    }
+
+    /**
+     * Removes a tag from a photo
+     *
+     * @param album an album holding the photo
+     * @param photo the photo, or a copy of it from {@link #readPhotos(int[], int, int)}
+     * @param tag   the tag
+     */
+    public synchronized void removeTag(Album album, Photo photo, Tag tag) {
+        photo = resolve(album, photo);
+        int position = photo.getTags().indexOf(tag);
+        photo.getTags().remove(position);
+        if (indexed)
+            tagIndex.removeTag(photo, tag);
+
+        try {
+            journal.removeTag(albums.indexOf(album), album.indexOf(photo), position);
+        } catch (IOException exception) {
+            Log.e(TAG, "Could not journal removing a tag from photo " + photo.getId(), exception);
+            snapshotRequested = true;
+        }
+        saver.markDirty();
+    }
+
+    /**
+     * Starts writing pending edits right away, e.g. when an activity is paused.
+     */
+    public void flush() {
+        saver.flush();
+    }
+
+    /**
+     * Writes pending edits and waits until they are on disk
+     *
+     * @param timeout how long to wait
+     * @param unit    unit of the timeout
+     * @return true if the edits were written in time, false if they were not, the write
+     * failed, or they were discarded because the library could not be read
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public boolean awaitFlush(long timeout, TimeUnit unit) throws InterruptedException {
+        return saver.awaitFlush(timeout, unit);
+    }
+
+    /**
+     * Writes pending edits and stops the persistence thread once they are written. The
+     * library must not be edited afterwards. The library of {@link #getInstance(Context)}
+     * lives as long as the process and is never closed.
+     */
+    void close() {
+        saver.flush();
+        saver.shutdown();
+    }
+
+    /**
+     * Returns the executor writing the edits, so tests can count the writes.
+     *
+     * @return the persistence executor
+     */
+    public PersistenceExecutor getSaver() {
+        return saver;
+    }
+
+    /**
+     * Writes the collected journal records and writes a new snapshot of the albums once
+     * the journal has grown larger than the last snapshot. Runs on the persistence thread.
+     * A journal that cannot be written is replaced by a snapshot, so the write only fails
+     * if that cannot be written either.
+     *
+     * @throws IOException if the edits could not be written, or are not written because
+     *                     the library could not be read
+     */
+    private void write() throws IOException {
+        if (unreadable) {
+            journal.discardPending();
+            throw new IOException("Library could not be read, not saving any changes");
+        }
+
+        try {
+            journal.flush();
+        } catch (IOException exception) {
+            Log.w(TAG, "Could not write the journal, taking a snapshot instead", exception);
+            snapshotRequested = true;
+        }
+
+        if (snapshotRequested || journal.getLength() > Math.max(MIN_COMPACTION_LENGTH, snapshotLength)) {
+            Metrics.Section section = Metrics.begin("library.compact");
+            try {
+                compact();
+            } finally {
+                section.end();
+            }
+        }
+    }
+
+    /**
+     * Writes all albums to a new snapshot and starts an empty journal for it. The albums
+     * are encoded while edits are locked out, right after the journal records collected up
+     * to then were written. The previous snapshot and its journal are kept, so loading can
+     * fall back on them if the new snapshot turns out to be damaged. A crash before the
+     * journal is reset leaves a journal of the previous generation, which is ignored on
+     * the next load. Once the snapshot is written, blobs of photos in neither snapshot are
+     * deleted, unless the library was not read from a snapshot, as blobs of photos that
+     * could not be read would count as unused then.
+     * <p>
+     * Albums not used since loading are copied from the previous library file without
+     * being kept in memory, and the new file is mapped in place of the previous one.
+     *
+     * @throws IOException if the snapshot could not be encoded or written
+     */
+    private void compact() throws IOException {
+        byte[] snapshot;
+        HashSet<String> live = new HashSet<String>();
+        long next;
+
+        synchronized (this) {
+            next = generation + 1;
+            try {
+                // the journal kept for the previous snapshot must hold every edit up to this one
+                journal.flush();
+            } catch (IOException exception) {
+                Log.w(TAG, "Could not write the journal before the snapshot", exception);
+            }
+
+            try {
+                ArrayList<Photo> all = photos.getPhotos();
+                HashMap<Integer, Integer> unread = new HashMap<Integer, Integer>();
+
+                for (Album album : albums) {
+                    if (album.isLoaded())
+                        continue;
+
+                    for (int id : album.getPhotoIds()) {
+                        if (photos.get(id) != null || unread.containsKey(id))
+                            continue;
+
+                        int record = file.findPhoto(id);
+                        if (record >= 0) {
+                            all.add(file.readPhoto(record));
+                            unread.put(id, file.getPhotoReferences(record));
+                        }
+                    }
+                }
+
+                Collections.sort(all, new Comparator<Photo>() {
+                    @Override
+                    public int compare(Photo first, Photo second) {
+                        return first.getId() < second.getId() ? -1 : first.getId() == second.getId() ? 0 : 1;
+                    }
+                });
+
+                int[] references = new int[all.size()];
+                for (int index = 0; index < references.length; index++)
+                    references[index] = unread.containsKey(all.get(index).getId())
+                            ? unread.get(all.get(index).getId()) : photos.getReferences(all.get(index));
+
+                snapshot = LibraryFile.encode(albums, all, references, next, nextAlbumId, nextPhotoId);
+
+                for (Photo photo : all) {
+                    live.add(photo.getImage().getKey());
+                    if (photo.getImage().getThumbnailKey() != null)
+                        live.add(photo.getImage().getThumbnailKey());
+                }
+
+                for (int record = 0; file != null && record < file.getPhotoCount(); record++)
+                    for (String key : file.getPhotoKeys(record))
+                        if (key != null)
+                            live.add(key);
+            } catch (IOException exception) {
+                Log.e(TAG, "Could not encode the snapshot", exception);
+                throw exception;
+            }
+            journal.discardPending();
+            snapshotRequested = false;
+        }
+
+        try {
+            DataSaver.saveData(snapshot, path);
+            generation = next;
+            snapshotLength = snapshot.length;
+            journal.reset(next);
+            // a legacy data file is only replaced by a snapshot of all of it
+            if (snapshotRead)
+                new File(legacyPath).delete();
+        } catch (IOException exception) {
+            Log.e(TAG, "Could not save the snapshot", exception);
+            snapshotRequested = true;
+            saver.markDirty();
+            throw exception;
+        }
+
+        try {
+            LibraryFile mapped = LibraryFile.open(new File(path));
+            mapped.verify();
+            synchronized (this) {
+                file = mapped;
+            }
+        } catch (IOException exception) {
+            // keep reading unused albums from the previous mapping
+            Log.w(TAG, "Could not map the new snapshot", exception);
+        }
+
+        if (snapshotRead)
+            BlobStore.getInstance().sweep(live, BLOB_MIN_AGE_MILLIS);
+    }
+
+    /**
+     * Reads the albums from the library file, or from the previous one and both journals
+     * if it is damaged. Only the header and the record tables of the file are checked
+     * here, and the data area in the background by
+     * {@link #verifySnapshot(LibraryFile, File)}. A damaged library file is set aside
+     * rather than kept as the previous one by the next snapshot. If no library file can be read, the library stays
+     * empty and nothing is written, and the journal is left as it is.
+     */
+    private void load() {
+        File data = new File(path);
+        File previous = new File(DataSaver.previous(path));
+        File damaged = new File(DataSaver.damaged(path));
+        boolean fallback = false;
+
+        if (data.isFile() || previous.isFile() || damaged.isFile()) {
+            try {
+                readSnapshot(LibraryFile.open(data));
+                snapshotLength = data.length();
+            } catch (IOException exception) {
+                Log.e(TAG, "Library file is unreadable, falling back to the previous snapshot", exception);
+                albums.clear();
+                file = null;
+                fallback = true;
+
+                if (data.isFile() && !data.renameTo(damaged))
+                    Log.w(TAG, "Could not set aside " + data);
+
+                try {
+                    readSnapshot(LibraryFile.open(previous));
+                    snapshotLength = previous.length();
+                } catch (IOException previousException) {
+                    Log.e(TAG, "Previous library file is unreadable too, not saving any changes", previousException);
+                    albums.clear();
+                    file = null;
+                    unreadable = true;
+                    return;
+                }
+            }
+            snapshotRead = true;
+
+            final LibraryFile loaded = file;
+            final File source = fallback ? previous : data;
+            saver.execute(new Runnable() {
+                @Override
+                public void run() {
+                    verifySnapshot(loaded, source);
+                }
+            });
+        } else if (new File(legacyPath).isFile()) {
+            snapshotLength = new File(legacyPath).length();
+            if (!readLegacySnapshot()) {
+                unreadable = true;
+                return;
+            }
+            snapshotRead = true;
+            snapshotRequested = true;
+        } else {
+            Album stock = new Album("stock");
+            stock.setId(nextAlbumId++);
+            albums.add(stock);
+            albumsById.put(stock.getId(), stock);
+            albumsByName.put(stock.getName(), stock);
+            try {
+                compact();
+            } catch (IOException exception) {
+                // tried again by the next write
+                snapshotRequested = true;
+                saver.markDirty();
+            }
+            return;
+        }
+
+        ArrayList<Album> snapshot = new ArrayList<Album>(albums);
+        try {
+            // the previous snapshot is first brought up to the damaged one by its journal
+            if (fallback && journal.replayPrevious(generation, albums))
+                generation++;
+            journal.replay(generation, albums);
+        } catch (Exception exception) {
+            Log.e(TAG, "Could not replay the journal", exception);
+            snapshotRequested = true;
+        }
+
+        if (fallback)
+            snapshotRequested = true;
+
+        if (assignIds())
+            snapshotRequested = true;
+
+        countReferences(snapshot);
+
+        for (Album album : albums) {
+            albumsById.put(album.getId(), album);
+            albumsByName.put(album.getName(), album);
+        }
+
+        if (snapshotRequested || journal.getLength() > Math.max(MIN_COMPACTION_LENGTH, snapshotLength)) {
+            snapshotRequested = true;
+            saver.markDirty();
+        }
+    }
+
+    /**
+     * Checks the snapshot read by {@link #load()} in full, which opening it left out. Runs on
+     * the persistence thread before any write, so no snapshot is copied from a damaged one.
+     * A damaged snapshot is set aside for the next load to fall back on the one before,
+     * and nothing more is written, as the albums may have been misread.
+     *
+     * @param snapshot the snapshot read
+     * @param source   the file it was read from
+     */
+    private void verifySnapshot(LibraryFile snapshot, File source) {
+        try {
+            snapshot.verify();
+        } catch (IOException exception) {
+            Log.e(TAG, "Library file is damaged, not saving any changes", exception);
+            unreadable = true;
+            snapshotRead = false;
+
+            if (!source.renameTo(new File(DataSaver.damaged(path))))
+                Log.w(TAG, "Could not set aside " + source);
+        }
+    }
+
+    /**
+     * Reads the albums of a snapshot. Only their names and photo ids are read here, and the
+     * photos of an album are read by {@link #loadAlbum(Album)} on first use.
+     *
+     * @param file the mapped snapshot
+     * @throws IOException if the names or photo ids are damaged
+     */
+    private void readSnapshot(LibraryFile file) throws IOException {
+        this.file = file;
+        generation = file.getGeneration();
+        nextAlbumId = file.getNextAlbumId();
+        nextPhotoId = file.getNextPhotoId();
+
+        for (int index = 0; index < file.getAlbumCount(); index++) {
+            Album album = new Album(file.getAlbumName(index), file.getAlbumPhotoIds(index), loader);
+            album.setId(file.getAlbumId(index));
+            albums.add(album);
+        }
+    }
+
+    /**
+     * Reads the photos of an album from the library file. Each photo is read once and
+     * shared by all albums holding it, and it enters the photo table with the number of
+     * albums holding it according to the file. Photos found damaged are left out, and the
+     * background check of the file then keeps anything from being written.
+     *
+     * @param album an album created by {@link #readSnapshot(LibraryFile)}
+     */
+    private synchronized void loadAlbum(Album album) {
+        if (album.isLoaded())
+            return;
+
+        Metrics.Section section = Metrics.begin("library.loadAlbum");
+        int[] ids = album.getPhotoIds();
+        ArrayList<Photo> loaded = new ArrayList<Photo>(ids.length);
+
+        try {
+            for (int id : ids) {
+                Photo photo = photos.get(id);
+
+                if (photo == null) {
+                    int record = file.findPhoto(id);
+                    if (record < 0)
+                        continue;
+
+                    try {
+                        photo = file.readPhoto(record);
+                    } catch (IOException exception) {
+                        Log.e(TAG, "Could not read photo " + id, exception);
+                        continue;
+                    }
+                    photos.put(photo, file.getPhotoReferences(record));
+                }
+                loaded.add(photo);
+            }
+
+            album.setPhotos(loaded);
+        } finally {
+            section.end();
+        }
+    }
+
+    /**
+     * Corrects the reference counts of the photos after the journal was replayed. Replayed
+     * edits change the albums directly, so the counts read from the library file are
+     * adjusted by the photos each changed album held before and holds now. Albums the
+     * journal did not touch are still unread and keep the counts of the file.
+     *
+     * @param snapshot the albums as read from the snapshot, before the replay
+     */
+    private void countReferences(ArrayList<Album> snapshot) {
+        HashSet<Album> current = new HashSet<Album>(albums);
+        HashMap<Integer, Integer> changes = new HashMap<Integer, Integer>();
+        HashMap<Integer, Photo> held = new HashMap<Integer, Photo>();
+
+        for (int position = 0; file != null && position < snapshot.size(); position++) {
+            Album album = snapshot.get(position);
+
+            if (album.isLoaded() || !current.contains(album)) {
+                // reads the photos of removed albums, so all counted photos are in the table
+                album.getPhotos();
+                try {
+                    for (int id : file.getAlbumPhotoIds(position))
+                        changes.put(id, (changes.containsKey(id) ? changes.get(id) : 0) - 1);
+                } catch (IOException exception) {
+                    // read before by readSnapshot, so the mapping itself went bad
+                    Log.e(TAG, "Could not count the photos of album " + album.getName() + ", not saving any changes",
+                            exception);
+                    unreadable = true;
+                }
+            }
+        }
+
+        for (Album album : albums) {
+            if (!album.isLoaded())
+                continue;
+
+            for (Photo photo : album.getPhotos()) {
+                changes.put(photo.getId(), (changes.containsKey(photo.getId()) ? changes.get(photo.getId()) : 0) + 1);
+                held.put(photo.getId(), photo);
+            }
+        }
+
+        for (Integer id : changes.keySet()) {
+            Photo photo = held.containsKey(id) ? held.get(id) : photos.get(id);
+            if (photo != null)
+                photos.put(photo, photos.getReferences(photo) + changes.get(id));
+        }
+    }
+
+    /**
+     * Builds the tag index and the duplicate index on first use. This reads the photos of
+     * every album, so it is left until a search or an import needs the indexes. Photos
+     * imported before hashes existed get theirs in the background afterwards.
+     */
+    private void ensureIndexed() {
+        if (indexed)
+            return;
+
+        Metrics.Section section = Metrics.begin("library.buildIndexes");
+        final ArrayList<Photo> unhashed = new ArrayList<Photo>();
+        try {
+            for (Album album : albums)
+                for (Photo photo : album.getPhotos())
+                    tagIndex.addPhoto(photo);
+
+            for (Photo photo : photos.getPhotos()) {
+                if (photo.getImage().hasPerceptualHash())
+                    duplicates.add(photo.getId(), photo.getImage().getPerceptualHash());
+                else
+                    unhashed.add(photo);
+            }
+            indexed = true;
+        } finally {
+            section.end();
+        }
+
+        if (!unhashed.isEmpty()) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    hash(unhashed);
+                }
+            }, "hash-backfill");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Reads a data file written before the library file existed. The next snapshot
+     * replaces it with a library file, and only then is the data file deleted.
+     *
+     * @return true if the whole file was read, false if it could not be, leaving the
+     * albums empty
+     */
+    private boolean readLegacySnapshot() {
+        try {
+            FileInputStream fileInputStream = new FileInputStream(legacyPath);
+
+            try {
+                ObjectInputStream objectInputStream = new ObjectInputStream(fileInputStream);
+                albums.addAll((ArrayList<Album>) objectInputStream.readObject());
+
+                try {
+                    generation = objectInputStream.readLong();
+                } catch (EOFException legacyData) {
+                    generation = 0;
+                }
+
+                try {
+                    HashMap<Integer, Photo> table = new HashMap<Integer, Photo>();
+                    for (Photo photo : (ArrayList<Photo>) objectInputStream.readObject())
+                        table.put(photo.getId(), photo);
+
+                    for (Album album : albums)
+                        album.resolve(table);
+                } catch (EOFException legacyData) {
+                    // the albums hold their photos themselves
+                }
+            } finally {
+                fileInputStream.close();
+            }
+            return true;
+        } catch (Exception exception) {
+            Log.e(TAG, "Could not read the legacy data file, not saving any changes", exception);
+            albums.clear();
+            generation = 0;
+            return false;
+        }
+    }
+
+    /**
+     * Computes the perceptual hashes of photos imported before hashes existed and writes
+     * them with the next snapshot. Runs on a background thread after loading.
+     *
+     * @param unhashed photos without a hash
+     */
+    private void hash(ArrayList<Photo> unhashed) {
+        for (Photo photo : unhashed) {
+            long hash;
+            try {
+                hash = photo.getImage().computePerceptualHash();
+            } catch (IOException exception) {
+                Log.w(TAG, "Could not hash photo " + photo.getId(), exception);
+                continue;
+            }
+
+            synchronized (this) {
+                photo.getImage().setPerceptualHash(hash);
+                if (photos.get(photo.getId()) == photo)
+                    duplicates.add(photo.getId(), hash);
+            }
+        }
+
+        snapshotRequested = true;
+        saver.markDirty();
+    }
+
+    /**
+     * Returns the photo of an album that an edit is made to, reading the album if needed
+     *
+     * @param album an album holding the photo
+     * @param photo the photo, or a copy of it
+     * @return the photo held by the album
+     */
+    private Photo resolve(Album album, Photo photo) {
+        Photo held = album.getPhoto(photo.getId());
+        return held != null ? held : photo;
+    }
+
+    /**
+     * Counts a new album reference to a photo, indexing its hash when it enters the library
+     *
+     * @param photo the photo
+     */
+    private void retain(Photo photo) {
+        if (photos.retain(photo) && indexed && photo.getImage().hasPerceptualHash())
+            duplicates.add(photo.getId(), photo.getImage().getPerceptualHash());
+    }
+
+    /**
+     * Drops an album reference to a photo, removing its hash with the last reference
+     *
+     * @param photo the photo
+     */
+    private void release(Photo photo) {
+        if (photos.release(photo) && indexed)
+            duplicates.remove(photo.getId());
+    }
+
+    /**
+     * Continues the id counters after the highest loaded ids and gives ids to albums and
+     * photos read from data written before ids existed. A photo shared by several albums
+     * is a single object after loading, so it gets a single id. Albums whose photos were
+     * not read yet only hold photos below the counter stored in the library file.
+     *
+     * @return true if any ids were assigned and need to be written to a new snapshot
+     */
+    private boolean assignIds() {
+        for (Album album : albums) {
+            nextAlbumId = Math.max(nextAlbumId, album.getId() + 1);
+            if (!album.isLoaded())
+                continue;
+
+            for (Photo photo : album.getPhotos())
+                nextPhotoId = Math.max(nextPhotoId, photo.getId() + 1);
+        }
+
+        boolean assigned = false;
+        for (Album album : albums) {
+            if (album.getId() == 0) {
+                album.setId(nextAlbumId++);
+                assigned = true;
+            }
+            if (!album.isLoaded())
+                continue;
+
+            for (Photo photo : album.getPhotos())
+                if (photo.getId() == 0) {
+                    photo.setId(nextPhotoId++);
+                    assigned = true;
+                }
+            album.reindex();
+        }
+
+        return assigned;
+    }
+}
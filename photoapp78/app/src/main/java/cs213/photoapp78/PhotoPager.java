@@ -0,0 +1,303 @@
+package cs213.photoapp78;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import cs213.photoapp78.model.Album;
+import cs213.photoapp78.model.Photo;
+
+/**
+ * Reads the photos of an album in pages around the part on screen, so an album of tens
+ * of thousands of photos can be browsed without reading all of them. Only the ids of the
+ * photos are held for the whole album. Pages are read on a background thread with
+ * {@link PhotoLibrary#readPhotos(int[], int, int)} when a photo of theirs is first
+ * shown, the pages next to the visible range are read ahead, and once more pages are
+ * resident than the window allows, the ones farthest from the visible range are dropped.
+ * <p>
+ * Albums that were edited are read completely by the library, since edits need all
+ * their photos; the pager then returns those photos instead of copies.
+ * <p>
+ * All methods must be called on the main thread.
+ */
+public class PhotoPager {
+    private static final ExecutorService reader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "photo-pager");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final PhotoLibrary library;
+    private final Album album;
+    private final int pageSize, maxPages;
+    private final Listener listener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final HashMap<Integer, Photo> resident = new HashMap<Integer, Photo>();
+    private final HashSet<Integer> pages = new HashSet<Integer>();
+    private final HashMap<Integer, int[]> reading = new HashMap<Integer, int[]>();
+    private int[] ids;
+    private int centre;
+
+    /**
+     * Receives the photos of pages that were read.
+     */
+    public interface Listener {
+        /**
+         * Called on the main thread when a page was read
+         *
+         * @param photos the photos read, to show in place of placeholders
+         */
+        void onPhotosRead(List<Photo> photos);
+    }
+
+    /**
+     * Receives the captions found by {@link #findCaptions(Collection, CaptionListener)}.
+     */
+    public interface CaptionListener {
+        /**
+         * Called on the main thread with the captions found
+         *
+         * @param found the captions photos of the album already have
+         */
+        void onCaptionsFound(Set<String> found);
+    }
+
+    /**
+     * Creates a pager over an album, holding no photos yet
+     *
+     * @param library  the library holding the album
+     * @param album    the album
+     * @param pageSize number of photos read at once
+     * @param maxPages number of pages kept in memory, at least the number visible at
+     *                 once plus two
+     * @param listener notified when pages were read
+     */
+    public PhotoPager(PhotoLibrary library, Album album, int pageSize, int maxPages, Listener listener) {
+        this.library = library;
+        this.album = album;
+        this.pageSize = pageSize;
+        this.maxPages = maxPages;
+        this.listener = listener;
+        this.ids = album.getPhotoIds();
+    }
+
+    /**
+     * Returns the number of photos
+     *
+     * @return the size of the album when last reloaded
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * Returns the id of the photo at a position
+     *
+     * @param position the position
+     * @return the id
+     */
+    public int getId(int position) {
+        return ids[position];
+    }
+
+    /**
+     * Returns the photo at a position if its page is in memory, without reading it
+     *
+     * @param position the position
+     * @return the photo, or null
+     */
+    public Photo peek(int position) {
+        return resident.get(ids[position]);
+    }
+
+    /**
+     * Returns the photos as a list whose positions do not change when the pager is
+     * reloaded. Getting a photo whose page is not in memory starts reading the page and
+     * returns null; the listener receives the photo once it was read.
+     *
+     * @return the photos in album order
+     */
+    public List<Photo> getPhotos() {
+        final int[] ids = this.ids;
+
+        return new AbstractList<Photo>() {
+            @Override
+            public Photo get(int position) {
+                Photo photo = resident.get(ids[position]);
+                if (photo == null && ids == PhotoPager.this.ids)
+                    read(position / pageSize);
+                return photo;
+            }
+
+            @Override
+            public int size() {
+                return ids.length;
+            }
+        };
+    }
+
+    /**
+     * Looks for captions among the photos of the album on the background thread, without
+     * reading the photos, e.g. to skip imports whose caption is taken
+     *
+     * @param captions the captions to look for
+     * @param listener receives the captions found
+     */
+    public void findCaptions(Collection<String> captions, final CaptionListener listener) {
+        final ArrayList<String> wanted = new ArrayList<String>(captions);
+
+        reader.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Set<String> found = library.findCaptions(album, wanted);
+
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onCaptionsFound(found);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Reads ahead around the visible photos and drops pages far from them
+     *
+     * @param first position of the first visible photo
+     * @param last  position of the last visible photo
+     */
+    public void setVisibleRange(int first, int last) {
+        if (first < 0 || last < first)
+            return;
+
+        centre = (first + last) / 2 / pageSize;
+        int lastPage = (ids.length - 1) / pageSize;
+        for (int page = Math.max(0, first / pageSize - 1); page <= Math.min(lastPage, last / pageSize + 1); page++)
+            read(page);
+
+        evict();
+    }
+
+    /**
+     * Takes up the current photos of the album after it was edited. Photos kept in
+     * memory are replaced by the ones of the library if it holds them by now, photos no
+     * longer in the album are dropped, and pages whose photos moved are read again where
+     * photos are missing.
+     */
+    public void reload() {
+        ids = album.getPhotoIds();
+        pages.clear();
+        HashMap<Integer, Photo> kept = new HashMap<Integer, Photo>();
+
+        for (int page = 0; page * pageSize < ids.length; page++) {
+            boolean complete = true;
+
+            for (int position = page * pageSize; position < end(page); position++) {
+                Photo photo = resident.get(ids[position]);
+                if (photo == null) {
+                    complete = false;
+                    continue;
+                }
+
+                Photo held = library.getPhoto(ids[position]);
+                kept.put(ids[position], held != null ? held : photo);
+            }
+
+            if (complete)
+                pages.add(page);
+        }
+
+        resident.clear();
+        resident.putAll(kept);
+        evict();
+    }
+
+    private void read(final int page) {
+        final int[] ids = this.ids;
+        if (pages.contains(page) || reading.get(page) == ids)
+            return;
+
+        reading.put(page, ids);
+        final int from = page * pageSize;
+        final int to = Math.min(ids.length, from + pageSize);
+
+        reader.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<Photo> read = library.readPhotos(ids, from, to);
+
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (reading.get(page) == ids)
+                            reading.remove(page);
+                        // a page read before a reload still holds the right photo for each id
+                        ArrayList<Photo> photos = new ArrayList<Photo>(read.size());
+                        for (int index = 0; index < read.size(); index++) {
+                            Photo photo = read.get(index);
+                            if (photo != null && !resident.containsKey(ids[from + index])) {
+                                resident.put(ids[from + index], photo);
+                                photos.add(photo);
+                            }
+                        }
+
+                        if (ids == PhotoPager.this.ids)
+                            pages.add(page);
+                        evict();
+                        if (!photos.isEmpty())
+                            listener.onPhotosRead(photos);
+                    }
+                });
+            }
+        });
+    }
+
+    private void evict() {
+        while (pages.size() > maxPages) {
+            int farthest = -1;
+            for (int page : pages)
+                if (farthest < 0 || Math.abs(page - centre) > Math.abs(farthest - centre))
+                    farthest = page;
+
+            pages.remove(farthest);
+            for (int position = farthest * pageSize; position < end(farthest); position++)
+                resident.remove(ids[position]);
+        }
+
+        // photos of pages read for positions that have moved since
+        if (resident.size() > maxPages * pageSize) {
+            HashMap<Integer, Photo> kept = new HashMap<Integer, Photo>();
+            for (int page : pages)
+                for (int position = page * pageSize; position < end(page); position++)
+                    kept.put(ids[position], resident.get(ids[position]));
+
+            resident.clear();
+            resident.putAll(kept);
+        }
+    }
+
+    private int end(int page) {
+        return Math.min(ids.length, (page + 1) * pageSize);
+    }
+}
@@ -0,0 +1,365 @@
+package cs213.photoapp78;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.AttributeSet;
+import android.util.LruCache;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import cs213.photoapp78.image.ImageLoader;
+import cs213.photoapp78.metrics.Metrics;
+import cs213.photoapp78.model.SerializableBitmap;
+
+/**
+ * View showing a photo that can be zoomed by pinching or double tapping and panned by
+ * dragging.
+ * <p>
+ * The photo is first shown from a copy decoded for the display. Zoomed in beyond the
+ * resolution of that copy, only the tiles of the photo on screen are decoded, with a
+ * {@link BitmapRegionDecoder} at the sample size of the zoom and on the threads of the
+ * {@link ImageLoader}. Decoded tiles are kept in a cache sized by the view, and tiles
+ * scrolled off screen are cancelled before they are decoded, so showing a photo costs
+ * memory in proportion to the screen rather than to the photo.
+ * <p>
+ * All methods must be called on the main thread.
+ */
+public class TiledImageView extends View {
+    /**
+     * Width and height of a decoded tile in pixels
+     */
+    private static final int TILE_SIZE = 256;
+    /**
+     * Largest zoom in view pixels per photo pixel, unless the photo is smaller than the
+     * view
+     */
+    private static final float MAX_SCALE = 2;
+
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final ScaleGestureDetector scaleDetector;
+    private final GestureDetector gestureDetector;
+    private final HashMap<String, ImageLoader.Request> requests = new HashMap<String, ImageLoader.Request>();
+    private final HashSet<String> visible = new HashSet<String>();
+    private final RectF destination = new RectF();
+    private LruCache<String, Bitmap> tiles;
+    private SerializableBitmap image;
+    private Bitmap preview;
+    private BitmapRegionDecoder decoder;
+    private ImageLoader.Request previewRequest, decoderRequest;
+    private int imageWidth, imageHeight;
+    private float scale, minScale, translateX, translateY;
+
+    public TiledImageView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+
+        scaleDetector = new ScaleGestureDetector(context, new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+            @Override
+            public boolean onScale(ScaleGestureDetector detector) {
+                zoom(scale * detector.getScaleFactor(), detector.getFocusX(), detector.getFocusY());
+                return true;
+            }
+        });
+
+        gestureDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
+            @Override
+            public boolean onDown(MotionEvent event) {
+                return true;
+            }
+
+            @Override
+            public boolean onScroll(MotionEvent down, MotionEvent event, float distanceX, float distanceY) {
+                translateX -= distanceX;
+                translateY -= distanceY;
+                clamp();
+                invalidate();
+                return true;
+            }
+
+            @Override
+            public boolean onDoubleTap(MotionEvent event) {
+                zoom(scale > minScale ? minScale : Math.max(1, minScale * 2), event.getX(), event.getY());
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Shows a photo fitted into the view, dropping the tiles of the previous one
+     *
+     * @param image         the photo
+     * @param previewWidth  width of the display, which the first copy is decoded for
+     * @param previewHeight height of the display
+     */
+    public void setImage(final SerializableBitmap image, final int previewWidth, final int previewHeight) {
+        release();
+        this.image = image;
+        imageWidth = image.getWidth();
+        imageHeight = image.getHeight();
+
+        preview = image.peekBitmap(previewWidth, previewHeight);
+        if (preview == null)
+            previewRequest = ImageLoader.getInstance().submit(new Callable<Bitmap>() {
+                @Override
+                public Bitmap call() {
+                    final Bitmap bitmap = image.getBitmap(previewWidth, previewHeight);
+
+                    post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (TiledImageView.this.image == image)
+                                showPreview(bitmap);
+                        }
+                    });
+                    return bitmap;
+                }
+            }, ImageLoader.PRIORITY_VISIBLE);
+
+        fit();
+        invalidate();
+    }
+
+    @Override
+    protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+        super.onSizeChanged(width, height, oldWidth, oldHeight);
+
+        // room for the tiles partly on screen, and as many again for the ones around them
+        int maxBytes = 2 * 4 * (width + 2 * TILE_SIZE) * (height + 2 * TILE_SIZE);
+        tiles = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap tile) {
+                return tile.getAllocationByteCount();
+            }
+        };
+        fit();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        release();
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        boolean handled = scaleDetector.onTouchEvent(event);
+        handled |= gestureDetector.onTouchEvent(event);
+        return handled || super.onTouchEvent(event);
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (preview == null || imageWidth <= 0 || imageHeight <= 0)
+            return;
+
+        destination.set(translateX, translateY, translateX + imageWidth * scale, translateY + imageHeight * scale);
+        canvas.drawBitmap(preview, null, destination, paint);
+
+        int sampleSize = 1;
+        while (sampleSize * 2 * scale <= 1)
+            sampleSize *= 2;
+
+        visible.clear();
+        if (sampleSize < imageWidth / preview.getWidth())
+            drawTiles(canvas, sampleSize);
+
+        // tiles scrolled off screen or of another zoom are not worth decoding anymore
+        for (Iterator<Map.Entry<String, ImageLoader.Request>> iterator = requests.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<String, ImageLoader.Request> entry = iterator.next();
+            if (!visible.contains(entry.getKey())) {
+                ImageLoader.getInstance().cancel(entry.getValue());
+                iterator.remove();
+            }
+        }
+    }
+
+    private void drawTiles(Canvas canvas, int sampleSize) {
+        if (decoder == null) {
+            openDecoder();
+            return;
+        }
+
+        int span = TILE_SIZE * sampleSize;
+        int left = Math.max(0, (int) (-translateX / scale) / span);
+        int top = Math.max(0, (int) (-translateY / scale) / span);
+        int right = Math.min((imageWidth - 1) / span, (int) ((getWidth() - translateX) / scale) / span);
+        int bottom = Math.min((imageHeight - 1) / span, (int) ((getHeight() - translateY) / scale) / span);
+
+        for (int row = top; row <= bottom; row++)
+            for (int column = left; column <= right; column++) {
+                String key = sampleSize + ":" + column + "," + row;
+                visible.add(key);
+
+                int x = column * span, y = row * span;
+                Bitmap tile = tiles.get(key);
+                if (tile == null) {
+                    decodeTile(key, new Rect(x, y, Math.min(imageWidth, x + span), Math.min(imageHeight, y + span)), sampleSize);
+                    continue;
+                }
+
+                destination.set(translateX + x * scale, translateY + y * scale,
+                        translateX + Math.min(imageWidth, x + span) * scale,
+                        translateY + Math.min(imageHeight, y + span) * scale);
+                canvas.drawBitmap(tile, null, destination, paint);
+            }
+    }
+
+    private void decodeTile(final String key, final Rect region, final int sampleSize) {
+        if (requests.containsKey(key))
+            return;
+
+        final BitmapRegionDecoder decoder = this.decoder;
+        requests.put(key, ImageLoader.getInstance().submit(new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() {
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inSampleSize = sampleSize;
+                options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+                final Bitmap tile;
+                Metrics.Section section = Metrics.begin("tile.decode");
+                try {
+                    synchronized (decoder) {
+                        tile = decoder.isRecycled() ? null : decoder.decodeRegion(region, options);
+                    }
+                } finally {
+                    section.end();
+                }
+
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (TiledImageView.this.decoder != decoder)
+                            return;
+
+                        requests.remove(key);
+                        if (tile != null) {
+                            tiles.put(key, tile);
+                            invalidate();
+                        }
+                    }
+                });
+                return tile;
+            }
+        }, ImageLoader.PRIORITY_VISIBLE));
+    }
+
+    private void openDecoder() {
+        // opened once per photo, and not again if its format cannot be decoded in parts
+        if (decoderRequest != null)
+            return;
+
+        final SerializableBitmap image = this.image;
+        decoderRequest = ImageLoader.getInstance().submit(new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() throws IOException {
+                final BitmapRegionDecoder opened = image.newRegionDecoder();
+
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (TiledImageView.this.image != image) {
+                            recycle(opened);
+                            return;
+                        }
+
+                        decoder = opened;
+                        invalidate();
+                    }
+                });
+                return null;
+            }
+        }, ImageLoader.PRIORITY_VISIBLE);
+    }
+
+    private void showPreview(Bitmap bitmap) {
+        previewRequest = null;
+        preview = bitmap;
+        if (bitmap != null && (imageWidth <= 0 || imageHeight <= 0)) {
+            // images stored before their size was recorded
+            imageWidth = bitmap.getWidth();
+            imageHeight = bitmap.getHeight();
+            fit();
+        }
+        invalidate();
+    }
+
+    private void fit() {
+        if (imageWidth <= 0 || imageHeight <= 0 || getWidth() == 0 || getHeight() == 0)
+            return;
+
+        minScale = Math.min((float) getWidth() / imageWidth, (float) getHeight() / imageHeight);
+        scale = minScale;
+        clamp();
+    }
+
+    private void zoom(float target, float focusX, float focusY) {
+        float next = Math.max(minScale, Math.min(Math.max(minScale, MAX_SCALE), target));
+
+        // keep the point under the focus where it is
+        translateX = focusX - (focusX - translateX) * next / scale;
+        translateY = focusY - (focusY - translateY) * next / scale;
+        scale = next;
+        clamp();
+        invalidate();
+    }
+
+    private void clamp() {
+        float width = imageWidth * scale, height = imageHeight * scale;
+
+        translateX = width <= getWidth() ? (getWidth() - width) / 2 : Math.max(getWidth() - width, Math.min(0, translateX));
+        translateY = height <= getHeight() ? (getHeight() - height) / 2 : Math.max(getHeight() - height, Math.min(0, translateY));
+    }
+
+    private void release() {
+        ImageLoader loader = ImageLoader.getInstance();
+        for (ImageLoader.Request request : requests.values())
+            loader.cancel(request);
+        requests.clear();
+
+        if (previewRequest != null)
+            loader.cancel(previewRequest);
+        if (decoderRequest != null)
+            loader.cancel(decoderRequest);
+        previewRequest = decoderRequest = null;
+
+        if (decoder != null)
+            recycle(decoder);
+        decoder = null;
+        if (tiles != null)
+            tiles.evictAll();
+        image = null;
+        preview = null;
+    }
+
+    /**
+     * Recycles a decoder once a tile being decoded with it is done, without waiting on
+     * the main thread
+     */
+    private static void recycle(final BitmapRegionDecoder decoder) {
+        ImageLoader.getInstance().submit(new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() {
+                synchronized (decoder) {
+                    decoder.recycle();
+                }
+                return null;
+            }
+        }, ImageLoader.PRIORITY_VISIBLE);
+    }
+}
@@ -0,0 +1,49 @@
+package cs213.photoapp78.adapter;
+
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import cs213.photoapp78.R;
+import cs213.photoapp78.model.Album;
+
+/**
+ * Adapter to show albums as rows with their name and number of photos. A row is only
+ * bound again when either of them changes.
+ */
+public class AlbumAdapter extends DiffingAdapter<Album, AlbumAdapter.ViewHolder> {
+
+    @Override
+    protected long getId(Album album) {
+        return album.getId();
+    }
+
+    @Override
+    protected Object getContent(Album album) {
+        return album.toString();
+    }
+
+    @Override
+    protected ViewHolder newViewHolder(ViewGroup parent) {
+        return new ViewHolder(LayoutInflater.from(parent.getContext()).inflate(R.layout.album_view, parent, false));
+    }
+
+    @Override
+    protected void bind(ViewHolder holder, Album album) {
+        holder.text.setText(album.toString());
+    }
+
+    /**
+     * Holds the text view of a row.
+     */
+    static class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView text;
+
+        ViewHolder(View view) {
+            super(view);
+            text = (TextView) view;
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package cs213.photoapp78.adapter;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.Checkable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import cs213.photoapp78.metrics.Metrics;
+
+/**
+ * RecyclerView adapter over a snapshot of a list that is updated by diffing. Each
+ * {@link #submit(List)} copies the list together with the id and the displayed content
+ * of every item, compares the copy with the snapshot on screen on a background thread,
+ * and then applies only the insertions, removals, moves and changes it found. An edit of
+ * one item thus rebinds one view, instead of every visible view decoding its image again.
+ * <p>
+ * Lists too large to hold in memory are submitted as a view that returns null for items
+ * not read yet, together with the ids of all items, see
+ * {@link #submit(List, long[], Object[])}. Such items are bound as placeholders and
+ * bound again by {@link #rebind(Collection)} once read.
+ * <p>
+ * Items have stable ids, and one of them may be checked by tapping it. The checked item
+ * is tracked by id, so it stays checked while other items come and go.
+ * <p>
+ * All methods must be called on the main thread.
+ *
+ * @param <T>  type of the items
+ * @param <VH> type of the view holders
+ */
+public abstract class DiffingAdapter<T, VH extends RecyclerView.ViewHolder> extends RecyclerView.Adapter<VH> {
+    private static final Object CHECKED = new Object();
+    private static final ExecutorService differ = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "list-differ");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private Snapshot<T> snapshot = new Snapshot<T>(new ArrayList<T>(), new long[0], new Object[0]);
+    private int generation;
+    private long checkedId = RecyclerView.NO_ID;
+
+    /**
+     * Items as they were when submitted, with their ids and the contents they were last
+     * shown with, so the diff does not see edits made to the live items afterwards.
+     */
+    private static final class Snapshot<T> {
+        final List<T> items;
+        final long[] ids;
+        final Object[] contents;
+
+        Snapshot(List<T> items, long[] ids, Object[] contents) {
+            this.items = items;
+            this.ids = ids;
+            this.contents = contents;
+        }
+    }
+
+    /**
+     * Creates an empty adapter
+     */
+    protected DiffingAdapter() {
+        setHasStableIds(true);
+    }
+
+    /**
+     * Returns the id of an item, which must never change while the item is shown
+     *
+     * @param item the item
+     * @return its id
+     */
+    protected abstract long getId(T item);
+
+    /**
+     * Returns what the view of an item shows, for instance its caption. The view is bound
+     * again when this is no longer equal to what it was when the view was last bound.
+     *
+     * @param item the item
+     * @return the content, compared with {@link Object#equals(Object)}
+     */
+    protected abstract Object getContent(T item);
+
+    /**
+     * Creates the view holder of an item
+     *
+     * @param parent the RecyclerView
+     * @return a new view holder
+     */
+    protected abstract VH newViewHolder(ViewGroup parent);
+
+    /**
+     * Shows an item in a view holder. The checked state is set by the adapter.
+     *
+     * @param holder the view holder
+     * @param item   the item, or null for an item not read yet
+     */
+    protected abstract void bind(VH holder, T item);
+
+    /**
+     * Shows a new version of the list. The first list, and any list replacing an empty
+     * one or emptying the adapter, is shown at once; otherwise the changes are computed in
+     * the background and applied when done, unless another list was submitted meanwhile.
+     *
+     * @param items the items; the list itself is copied and may change afterwards
+     */
+    public void submit(List<T> items) {
+        show(take(items));
+    }
+
+    /**
+     * Shows a new version of a list without copying it, like {@link #submit(List)}
+     *
+     * @param items    the items, which must not change afterwards; an item not read yet
+     *                 is returned as null
+     * @param ids      ids of all items
+     * @param contents contents of all items, null for the ones not read yet, which are
+     *                 taken to be unchanged
+     */
+    protected void submit(List<T> items, long[] ids, Object[] contents) {
+        show(new Snapshot<T>(items, ids, contents));
+    }
+
+    private void show(final Snapshot<T> next) {
+        final Snapshot<T> previous = snapshot;
+        // bound views update the contents on the main thread while the diff runs
+        final Object[] shown = previous.contents.clone();
+        final int submitted = ++generation;
+
+        if (previous.ids.length == 0 || next.ids.length == 0) {
+            snapshot = next;
+            notifyDataSetChanged();
+            return;
+        }
+
+        differ.execute(new Runnable() {
+            @Override
+            public void run() {
+                Metrics.Section section = Metrics.begin("adapter.diff");
+                final DiffUtil.DiffResult result;
+                try {
+                    result = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+                        @Override
+                        public int getOldListSize() {
+                            return previous.ids.length;
+                        }
+
+                        @Override
+                        public int getNewListSize() {
+                            return next.ids.length;
+                        }
+
+                        @Override
+                        public boolean areItemsTheSame(int oldPosition, int newPosition) {
+                            return previous.ids[oldPosition] == next.ids[newPosition];
+                        }
+
+                        @Override
+                        public boolean areContentsTheSame(int oldPosition, int newPosition) {
+                            Object content = shown[oldPosition];
+                            return content == null || next.contents[newPosition] == null
+                                    || content.equals(next.contents[newPosition]);
+                        }
+                    });
+                } finally {
+                    section.end();
+                }
+
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // a newer list was diffed against the same snapshot and replaces this one
+                        if (submitted != generation)
+                            return;
+
+                        snapshot = next;
+                        result.dispatchUpdatesTo(DiffingAdapter.this);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Returns the item at a position of the list on screen
+     *
+     * @param position the position
+     * @return the item
+     */
+    public T getItem(int position) {
+        return snapshot.items.get(position);
+    }
+
+    /**
+     * Returns the checked item
+     *
+     * @return the item, or null if none is checked, it is no longer in the list or it was
+     * not read yet
+     */
+    public T getCheckedItem() {
+        int position = getCheckedPosition();
+        return position < 0 ? null : snapshot.items.get(position);
+    }
+
+    /**
+     * Returns the position of the checked item
+     *
+     * @return the position, or {@link RecyclerView#NO_POSITION} if none is checked or it
+     * is no longer in the list
+     */
+    public int getCheckedPosition() {
+        return indexOf(checkedId);
+    }
+
+    /**
+     * Returns the id of the checked item
+     *
+     * @return the id, or {@link RecyclerView#NO_ID} if none is checked
+     */
+    public long getCheckedId() {
+        return checkedId;
+    }
+
+    /**
+     * Checks an item, which may also be one of a list not yet shown
+     *
+     * @param item the item, or null to check none
+     */
+    public void setChecked(T item) {
+        setCheckedId(item == null ? RecyclerView.NO_ID : getId(item));
+    }
+
+    /**
+     * Checks the item with the given id, which may also be one of a list not yet shown
+     *
+     * @param id the id, or {@link RecyclerView#NO_ID} to check none
+     */
+    public void setCheckedId(long id) {
+        if (id == checkedId)
+            return;
+
+        int previous = indexOf(checkedId);
+        checkedId = id;
+        if (previous >= 0)
+            notifyItemChanged(previous, CHECKED);
+
+        int position = indexOf(id);
+        if (position >= 0)
+            notifyItemChanged(position, CHECKED);
+    }
+
+    /**
+     * Binds the views of items again, for instance once items shown as placeholders
+     * were read
+     *
+     * @param items the items
+     */
+    public void rebind(Collection<T> items) {
+        HashSet<Long> ids = new HashSet<Long>();
+        for (T item : items)
+            ids.add(getId(item));
+
+        for (int position = 0; position < snapshot.ids.length; position++)
+            if (ids.contains(snapshot.ids[position]))
+                notifyItemChanged(position);
+    }
+
+    @Override
+    public int getItemCount() {
+        return snapshot.ids.length;
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return snapshot.ids[position];
+    }
+
+    @Override
+    public VH onCreateViewHolder(ViewGroup parent, int viewType) {
+        final VH holder = newViewHolder(parent);
+
+        holder.itemView.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                int position = holder.getAdapterPosition();
+                if (position != RecyclerView.NO_POSITION)
+                    setCheckedId(snapshot.ids[position]);
+            }
+        });
+
+        return holder;
+    }
+
+    @Override
+    public void onBindViewHolder(VH holder, int position) {
+        T item = snapshot.items.get(position);
+        bind(holder, item);
+        if (item != null)
+            snapshot.contents[position] = getContent(item);
+        showChecked(holder, position);
+    }
+
+    @Override
+    public void onBindViewHolder(VH holder, int position, List<Object> payloads) {
+        boolean checkedOnly = !payloads.isEmpty();
+        for (Object payload : payloads)
+            if (payload != CHECKED)
+                checkedOnly = false;
+
+        if (checkedOnly)
+            showChecked(holder, position);
+        else
+            onBindViewHolder(holder, position);
+    }
+
+    private void showChecked(VH holder, int position) {
+        if (holder.itemView instanceof Checkable)
+            ((Checkable) holder.itemView).setChecked(snapshot.ids[position] == checkedId);
+    }
+
+    private int indexOf(long id) {
+        if (id == RecyclerView.NO_ID)
+            return RecyclerView.NO_POSITION;
+
+        long[] ids = snapshot.ids;
+        for (int position = 0; position < ids.length; position++)
+            if (ids[position] == id)
+                return position;
+
+        return RecyclerView.NO_POSITION;
+    }
+
+    private Snapshot<T> take(List<T> items) {
+        ArrayList<T> copy = new ArrayList<T>(items);
+        long[] ids = new long[copy.size()];
+        Object[] contents = new Object[copy.size()];
+
+        for (int position = 0; position < ids.length; position++) {
+            ids[position] = getId(copy.get(position));
+            contents[position] = getContent(copy.get(position));
+        }
+
+        return new Snapshot<T>(copy, ids, contents);
+    }
+}
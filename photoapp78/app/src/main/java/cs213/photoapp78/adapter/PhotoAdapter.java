@@ -1,70 +1,86 @@
 package cs213.photoapp78.adapter;
 
-import android.app.Activity;
-import android.content.Context;
+import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
 
-import java.util.List;
-
+import cs213.photoapp78.PhotoPager;
 import cs213.photoapp78.R;
+import cs213.photoapp78.image.ImageLoader;
 import cs213.photoapp78.model.Photo;
 
 /**
- * Adapter to hold the photo view and its details.
+ * Adapter to show photos as grid cells with their thumbnail and caption. A cell is only
+ * bound again when its caption changes. Photos of a {@link PhotoPager} that were not
+ * read yet are shown as empty cells.
  */
-public class PhotoAdapter extends ArrayAdapter<Photo> {
-
-    private Context context;
-
+public class PhotoAdapter extends DiffingAdapter<Photo, PhotoAdapter.ViewHolder> {
     /**
-     * initializes the photoAdapter
-     * @param context
-     * @param resourceId
-     * @param items
+     * Number of columns of the grid
      */
-    public PhotoAdapter(Context context, int resourceId, List<Photo> items) {
-        super(context, resourceId, items);
-        this.context = context;
-    }
+    public static final int COLUMNS = 3;
 
     /**
-     * Returns the view as requested.
-     * @param position
-     * @param convertView
-     * @param parent
-     * @return view
+     * Shows the photos of a pager as it is now, reading only the pages shown
+     *
+     * @param pager the pager
      */
-    public View getView(int position, View convertView, ViewGroup parent) {
-        ViewHolder holder = null;
-        Photo photo = getItem(position);
+    public void submit(PhotoPager pager) {
+        long[] ids = new long[pager.size()];
+        Object[] contents = new Object[ids.length];
 
-        LayoutInflater inflater = (LayoutInflater) context
-                .getSystemService(Activity.LAYOUT_INFLATER_SERVICE);
-        if (convertView == null) {
-            convertView = inflater.inflate(R.layout.photo_view, null);
-            holder = new ViewHolder();
-            holder.caption = (TextView) convertView.findViewById(R.id.caption);
-            holder.photo = (ImageView) convertView.findViewById(R.id.photo);
-            convertView.setTag(holder);
-        } else
-            holder = (ViewHolder) convertView.getTag();
+        for (int position = 0; position < ids.length; position++) {
+            ids[position] = pager.getId(position);
+            Photo photo = pager.peek(position);
+            if (photo != null)
+                contents[position] = getContent(photo);
+        }
 
-        holder.caption.setText(photo.getCaption());
-        holder.photo.setImageBitmap(photo.getBitmap());
+        submit(pager.getPhotos(), ids, contents);
+    }
+
+    @Override
+    protected long getId(Photo photo) {
+        return photo.getId();
+    }
 
-        return convertView;
+    @Override
+    protected Object getContent(Photo photo) {
+        return photo.getCaption();
+    }
+
+    @Override
+    protected ViewHolder newViewHolder(ViewGroup parent) {
+        return new ViewHolder(LayoutInflater.from(parent.getContext()).inflate(R.layout.photo_view, parent, false));
+    }
+
+    @Override
+    protected void bind(ViewHolder holder, Photo photo) {
+        if (photo == null) {
+            ImageLoader.getInstance().cancel(holder.photo);
+            holder.caption.setText("");
+            holder.photo.setImageResource(android.R.drawable.ic_menu_report_image);
+            return;
+        }
+
+        holder.caption.setText(photo.getCaption());
+        ImageLoader.getInstance().loadThumbnail(holder.photo, photo);
     }
 
     /**
-     * Holds the photo and catptions privately.
+     * Holds the photo and caption views of a cell.
      */
-    private class ViewHolder {
-        ImageView photo;
-        TextView caption;
+    static class ViewHolder extends RecyclerView.ViewHolder {
+        final ImageView photo;
+        final TextView caption;
+
+        ViewHolder(View view) {
+            super(view);
+            photo = view.findViewById(R.id.photo);
+            caption = view.findViewById(R.id.caption);
+        }
     }
 }
@@ -0,0 +1,148 @@
+package cs213.photoapp78.image;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import cs213.photoapp78.metrics.Metrics;
+
+/**
+ * Process-wide cache of decoded bitmaps, bounded by the bytes the bitmaps occupy.
+ * Entries are keyed by the blob key of the image and the size it was decoded at, and
+ * the least recently used ones are evicted first.
+ */
+public class BitmapCache {
+    private static BitmapCache instance;
+
+    private final LruCache<String, Bitmap> cache;
+
+    /**
+     * Creates a cache holding at most the given number of bytes
+     *
+     * @param maxBytes the byte budget
+     */
+    public BitmapCache(int maxBytes) {
+        cache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getAllocationByteCount();
+            }
+        };
+    }
+
+    /**
+     * Returns the shared cache, which may use an eighth of the heap
+     *
+     * @return the cache shared by adapters and activities
+     */
+    public static synchronized BitmapCache getInstance() {
+        if (instance == null)
+            instance = new BitmapCache((int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8));
+
+        return instance;
+    }
+
+    /**
+     * Builds the cache key of an image decoded at a given size
+     *
+     * @param blobKey blob key of the encoded image
+     * @param width   requested width
+     * @param height  requested height
+     * @return the cache key
+     */
+    public static String key(String blobKey, int width, int height) {
+        return blobKey + '/' + width + 'x' + height;
+    }
+
+    /**
+     * Returns a cached bitmap and marks it as recently used
+     *
+     * @param key the cache key
+     * @return the bitmap, or null if it is not cached
+     */
+    public Bitmap get(String key) {
+        Bitmap bitmap = cache.get(key);
+        Metrics.counter(bitmap != null ? "bitmap.cache.hits" : "bitmap.cache.misses").increment();
+        return bitmap;
+    }
+
+    /**
+     * Adds a bitmap, evicting the least recently used ones if it does not fit
+     *
+     * @param key    the cache key
+     * @param bitmap the bitmap
+     */
+    public void put(String key, Bitmap bitmap) {
+        cache.put(key, bitmap);
+    }
+
+    /**
+     * Drops a bitmap from the cache
+     *
+     * @param key the cache key
+     */
+    public void remove(String key) {
+        cache.remove(key);
+    }
+
+    /**
+     * Drops all bitmaps, e.g. when the system is low on memory
+     */
+    public void clear() {
+        cache.evictAll();
+    }
+
+    /**
+     * Returns the number of bytes held by cached bitmaps
+     *
+     * @return size in bytes
+     */
+    public int getSize() {
+        return cache.size();
+    }
+
+    /**
+     * Returns the byte budget of the cache
+     *
+     * @return maximum size in bytes
+     */
+    public int getMaxSize() {
+        return cache.maxSize();
+    }
+
+    /**
+     * Returns how often a lookup found its bitmap
+     *
+     * @return number of hits
+     */
+    public int getHitCount() {
+        return cache.hitCount();
+    }
+
+    /**
+     * Returns how often a lookup had to fall back to decoding
+     *
+     * @return number of misses
+     */
+    public int getMissCount() {
+        return cache.missCount();
+    }
+
+    /**
+     * Returns how many bitmaps were evicted to stay within the budget
+     *
+     * @return number of evictions
+     */
+    public int getEvictionCount() {
+        return cache.evictionCount();
+    }
+
+    /**
+     * Returns a summary of the cache statistics
+     *
+     * @return a string representation of this cache
+     */
+    public String toString() {
+        return "BitmapCache[size=" + getSize() + "/" + getMaxSize() + ", hits=" + getHitCount()
+                + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + "]";
+    }
+}
@@ -0,0 +1,154 @@
+package cs213.photoapp78.image;
+
+import android.graphics.Bitmap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encoding used to store a decoded image. Every codec has a name, which is recorded with
+ * the stored image and maps back to the codec through {@link #forName(String)}. Stored
+ * images are decoded by {@link android.graphics.BitmapFactory}, which recognizes the
+ * format by itself, so a codec only has to encode.
+ * <p>
+ * Imported images are stored as they are. The images the app encodes itself use the codec
+ * of their {@link StorageTier}.
+ */
+public abstract class Codec {
+    /**
+     * Name recorded for images stored exactly as they were imported
+     */
+    public static final String ORIGINAL = "original";
+
+    /**
+     * Lossless PNG, which older versions of the app stored every image as
+     */
+    public static final Codec LOSSLESS = new CompressCodec("png", Bitmap.CompressFormat.PNG, 100);
+
+    private final String name;
+
+    /**
+     * Creates a codec
+     *
+     * @param name name recorded with the images it encodes
+     */
+    protected Codec(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the lossy WebP codec of the given quality
+     *
+     * @param quality quality from 0 to 100
+     * @return the codec
+     */
+    public static Codec webp(int quality) {
+        return compress("webp", Bitmap.CompressFormat.WEBP, quality);
+    }
+
+    /**
+     * Returns the JPEG codec of the given quality
+     *
+     * @param quality quality from 0 to 100
+     * @return the codec
+     */
+    public static Codec jpeg(int quality) {
+        return compress("jpeg", Bitmap.CompressFormat.JPEG, quality);
+    }
+
+    /**
+     * Returns the codec of a name, as recorded with a stored image or configured for a
+     * {@link StorageTier}
+     *
+     * @param name "png", or "webp" or "jpeg" followed by a colon and the quality, e.g.
+     *             "jpeg:85"
+     * @return the codec
+     * @throws IllegalArgumentException if the name is not one of a codec
+     */
+    public static Codec forName(String name) {
+        if (LOSSLESS.getName().equals(name))
+            return LOSSLESS;
+
+        int separator = name.indexOf(':');
+        if (separator >= 0) {
+            String format = name.substring(0, separator);
+            int quality;
+            try {
+                quality = Integer.parseInt(name.substring(separator + 1));
+            } catch (NumberFormatException exception) {
+                throw new IllegalArgumentException("Unknown codec " + name, exception);
+            }
+
+            if (format.equals("webp"))
+                return webp(quality);
+            if (format.equals("jpeg"))
+                return jpeg(quality);
+        }
+
+        throw new IllegalArgumentException("Unknown codec " + name);
+    }
+
+    private static Codec compress(String format, Bitmap.CompressFormat compressFormat, int quality) {
+        if (quality < 0 || quality > 100)
+            throw new IllegalArgumentException("Quality " + quality + " is not between 0 and 100");
+
+        return new CompressCodec(format + ":" + quality, compressFormat, quality);
+    }
+
+    /**
+     * Returns the name recorded with the images this codec encodes
+     *
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Encodes an image
+     *
+     * @param bitmap the image
+     * @param out    stream the encoded image is written to
+     * @throws IOException if the image could not be encoded or written
+     */
+    public abstract void encode(Bitmap bitmap, OutputStream out) throws IOException;
+
+    /**
+     * Encodes an image into memory
+     *
+     * @param bitmap the image
+     * @return the encoded image
+     * @throws IOException if the image could not be encoded
+     */
+    public byte[] encode(Bitmap bitmap) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        encode(bitmap, stream);
+        return stream.toByteArray();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * Codec backed by {@link Bitmap#compress(Bitmap.CompressFormat, int, OutputStream)}.
+     */
+    private static class CompressCodec extends Codec {
+        private final Bitmap.CompressFormat format;
+        private final int quality;
+
+        CompressCodec(String name, Bitmap.CompressFormat format, int quality) {
+            super(name);
+            this.format = format;
+            this.quality = quality;
+        }
+
+        @Override
+        public void encode(Bitmap bitmap, OutputStream out) throws IOException {
+            if (!bitmap.compress(format, quality, out))
+                throw new IOException("Could not encode the image as " + getName());
+        }
+    }
+}
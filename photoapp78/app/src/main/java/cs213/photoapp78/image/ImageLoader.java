@@ -0,0 +1,263 @@
+package cs213.photoapp78.image;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.widget.ImageView;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cs213.photoapp78.model.Photo;
+
+/**
+ * Decodes images for views on a small pool of background threads.
+ * <p>
+ * Each {@link ImageView} has at most one request in flight. Binding a view again, as
+ * happens when a list row is recycled during a fling, cancels its previous request: a
+ * queued request is dropped and a running one has its result thrown away. Queued
+ * requests run by priority and, within a priority, newest first, since the rows bound
+ * last are the ones on screen.
+ * <p>
+ * Views must only be bound from the main thread.
+ */
+public class ImageLoader {
+    private static final String TAG = "ImageLoader";
+
+    /**
+     * Priority of images on screen
+     */
+    public static final int PRIORITY_VISIBLE = 2;
+    /**
+     * Priority of images decoded ahead of being shown
+     */
+    public static final int PRIORITY_PREFETCH = 1;
+
+    private static ImageLoader instance;
+
+    private final ThreadPoolExecutor executor;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Map<ImageView, Request> requests = new HashMap<ImageView, Request>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    private ImageLoader(int threads) {
+        executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            private int count;
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "image-loader-" + ++count);
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the shared loader, using up to four threads
+     *
+     * @return the image loader
+     */
+    public static synchronized ImageLoader getInstance() {
+        if (instance == null)
+            instance = new ImageLoader(Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors())));
+
+        return instance;
+    }
+
+    /**
+     * Shows the thumbnail of a photo, straight from the {@link BitmapCache} if it is there
+     * and otherwise once it has been decoded in the background.
+     *
+     * @param view  view to show the thumbnail in
+     * @param photo the photo
+     */
+    public void loadThumbnail(ImageView view, final Photo photo) {
+        cancel(view);
+
+        Bitmap cached = photo.getImage().peekThumbnail();
+        if (cached != null) {
+            view.setImageBitmap(cached);
+            return;
+        }
+
+        view.setImageResource(android.R.drawable.ic_menu_report_image);
+        load(view, new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() {
+                return photo.getThumbnail();
+            }
+        }, PRIORITY_VISIBLE);
+    }
+
+    /**
+     * Shows a photo scaled for a display of the given size, straight from the
+     * {@link BitmapCache} if it is there and otherwise once it has been decoded in the
+     * background. The view keeps its current image until then.
+     *
+     * @param view   view to show the photo in
+     * @param photo  the photo
+     * @param width  width of the display
+     * @param height height of the display
+     */
+    public void loadPhoto(ImageView view, final Photo photo, final int width, final int height) {
+        cancel(view);
+
+        Bitmap cached = photo.getImage().peekBitmap(width, height);
+        if (cached != null) {
+            view.setImageBitmap(cached);
+            return;
+        }
+
+        load(view, new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() {
+                return photo.getImage().getBitmap(width, height);
+            }
+        }, PRIORITY_VISIBLE);
+    }
+
+    /**
+     * Decodes an image in the background and shows it in the view unless the view is
+     * bound to something else first.
+     *
+     * @param view     view to show the image in
+     * @param decoder  decodes the image on a worker thread
+     * @param priority one of the PRIORITY constants
+     */
+    public void load(ImageView view, Callable<Bitmap> decoder, int priority) {
+        cancel(view);
+
+        Request request = new Request(view, decoder, priority, sequence.incrementAndGet());
+        requests.put(view, request);
+        executor.execute(request);
+    }
+
+    /**
+     * Decodes an image in the background without showing it, e.g. to warm the
+     * {@link BitmapCache}.
+     *
+     * @param decoder  decodes the image on a worker thread
+     * @param priority one of the PRIORITY constants
+     * @return the request, which can be passed to {@link #cancel(Request)}
+     */
+    public Request submit(Callable<Bitmap> decoder, int priority) {
+        Request request = new Request(null, decoder, priority, sequence.incrementAndGet());
+        executor.execute(request);
+        return request;
+    }
+
+    /**
+     * Cancels the request of a view, if it has one
+     *
+     * @param view the view
+     */
+    public void cancel(ImageView view) {
+        Request request = requests.remove(view);
+        if (request != null)
+            cancel(request);
+    }
+
+    /**
+     * Cancels a request. It is dropped from the queue if it has not started yet.
+     *
+     * @param request the request
+     */
+    public void cancel(Request request) {
+        request.cancelled = true;
+        executor.remove(request);
+        if (request.view != null && requests.get(request.view) == request)
+            requests.remove(request.view);
+    }
+
+    /**
+     * A single decode, ordered by priority and then newest first.
+     */
+    public class Request implements Runnable, Comparable<Request> {
+        private final ImageView view;
+        private final Callable<Bitmap> decoder;
+        private final int priority;
+        private final long sequence;
+        private volatile boolean cancelled, done;
+
+        private Request(ImageView view, Callable<Bitmap> decoder, int priority, long sequence) {
+            this.view = view;
+            this.decoder = decoder;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled)
+                return;
+
+            Bitmap decoded;
+            try {
+                decoded = decoder.call();
+            } catch (Exception exception) {
+                Log.w(TAG, "Could not decode an image", exception);
+                decoded = null;
+            } finally {
+                done = true;
+            }
+
+            if (cancelled || view == null)
+                return;
+
+            // the entry holds the view, so it is removed whether or not there is an image
+            final Bitmap bitmap = decoded;
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (requests.get(view) != Request.this)
+                        return;
+
+                    requests.remove(view);
+                    if (bitmap != null)
+                        view.setImageBitmap(bitmap);
+                }
+            });
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            if (priority != other.priority)
+                return priority > other.priority ? -1 : 1;
+
+            return sequence > other.sequence ? -1 : sequence < other.sequence ? 1 : 0;
+        }
+
+        /**
+         * Checks whether the request was cancelled
+         *
+         * @return true if the request was cancelled, false otherwise
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Checks whether the decode has finished
+         *
+         * @return true if the decoder has run, false otherwise
+         */
+        public boolean isDone() {
+            return done;
+        }
+    }
+}
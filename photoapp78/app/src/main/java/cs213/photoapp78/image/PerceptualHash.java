@@ -0,0 +1,64 @@
+package cs213.photoapp78.image;
+
+import android.graphics.Bitmap;
+
+/**
+ * Difference hash of an image. The image is shrunk to 9x8 grey pixels and every bit tells
+ * whether a pixel is brighter than its right neighbour, so re-encoded, rescaled or
+ * slightly edited copies of a photo get hashes only a few bits apart.
+ */
+public class PerceptualHash {
+    private static final int WIDTH = 9, HEIGHT = 8;
+
+    /**
+     * Hashes a decoded image. A thumbnail gives the same hash as the full image at a
+     * fraction of the cost.
+     *
+     * @param bitmap the image
+     * @return the 64 bit hash
+     */
+    public static long dHash(Bitmap bitmap) {
+        Bitmap small = Bitmap.createScaledBitmap(bitmap, WIDTH, HEIGHT, true);
+        int[] pixels = new int[WIDTH * HEIGHT];
+        small.getPixels(pixels, 0, WIDTH, 0, 0, WIDTH, HEIGHT);
+
+        if (small != bitmap)
+            small.recycle();
+
+        return dHash(pixels);
+    }
+
+    /**
+     * Hashes 9x8 ARGB pixels in row order
+     *
+     * @param pixels the pixels
+     * @return the 64 bit hash
+     */
+    public static long dHash(int[] pixels) {
+        long hash = 0;
+
+        for (int y = 0; y < HEIGHT; y++)
+            for (int x = 0; x < WIDTH - 1; x++) {
+                hash <<= 1;
+                if (luminance(pixels[y * WIDTH + x]) > luminance(pixels[y * WIDTH + x + 1]))
+                    hash |= 1;
+            }
+
+        return hash;
+    }
+
+    /**
+     * Returns the number of bits two hashes differ in
+     *
+     * @param first  a hash
+     * @param second another hash
+     * @return the Hamming distance, 0 to 64
+     */
+    public static int distance(long first, long second) {
+        return Long.bitCount(first ^ second);
+    }
+
+    private static int luminance(int pixel) {
+        return ((pixel >> 16 & 0xff) * 299 + (pixel >> 8 & 0xff) * 587 + (pixel & 0xff) * 114) / 1000;
+    }
+}
@@ -0,0 +1,110 @@
+package cs213.photoapp78.image;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import cs213.photoapp78.model.Photo;
+import cs213.photoapp78.model.SerializableBitmap;
+
+/**
+ * Decodes the photos around the one on screen into the {@link BitmapCache}, so stepping
+ * to the next or previous photo only has to swap in a ready bitmap.
+ * <p>
+ * The photos ahead in the direction of travel are decoded first, then the ones behind,
+ * wrapping around the ends of the album. Prefetches that fall out of the window are
+ * cancelled, and all of them are when the direction changes.
+ */
+public class PhotoPrefetcher {
+    private final ImageLoader loader;
+    private final int width, height, depth;
+    private final Map<SerializableBitmap, ImageLoader.Request> requests =
+            new IdentityHashMap<SerializableBitmap, ImageLoader.Request>();
+    private int direction = 1;
+
+    /**
+     * Creates a prefetcher for a display of the given size
+     *
+     * @param loader loader running the decodes
+     * @param width  width of the display
+     * @param height height of the display
+     * @param depth  how many photos to prefetch on each side
+     */
+    public PhotoPrefetcher(ImageLoader loader, int width, int height, int depth) {
+        this.loader = loader;
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+    }
+
+    /**
+     * Prefetches the neighbours of the photo at the given position
+     *
+     * @param photos    photos of the album
+     * @param position  position of the photo on screen
+     * @param direction 1 after stepping forward, -1 after stepping back
+     */
+    public void prefetch(List<Photo> photos, int position, int direction) {
+        if (direction != this.direction) {
+            cancel();
+            this.direction = direction;
+        }
+
+        int count = photos.size();
+        ArrayList<SerializableBitmap> window = new ArrayList<SerializableBitmap>();
+
+        for (int step = 1; step <= depth && step < count; step++)
+            addOnce(window, photos.get(wrap(position + step * direction, count)).getImage());
+        for (int step = 1; step <= depth && step < count; step++)
+            addOnce(window, photos.get(wrap(position - step * direction, count)).getImage());
+
+        Iterator<Map.Entry<SerializableBitmap, ImageLoader.Request>> iterator = requests.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<SerializableBitmap, ImageLoader.Request> entry = iterator.next();
+
+            if (entry.getValue().isDone() || !window.contains(entry.getKey())) {
+                loader.cancel(entry.getValue());
+                iterator.remove();
+            }
+        }
+
+        // the loader runs the newest request first, so submit the most wanted one last
+        for (int index = window.size() - 1; index >= 0; index--) {
+            final SerializableBitmap image = window.get(index);
+
+            if (requests.containsKey(image) || image.peekBitmap(width, height) != null)
+                continue;
+
+            requests.put(image, loader.submit(new Callable<Bitmap>() {
+                @Override
+                public Bitmap call() {
+                    return image.getBitmap(width, height);
+                }
+            }, ImageLoader.PRIORITY_PREFETCH));
+        }
+    }
+
+    /**
+     * Cancels all outstanding prefetches
+     */
+    public void cancel() {
+        for (ImageLoader.Request request : requests.values())
+            loader.cancel(request);
+
+        requests.clear();
+    }
+
+    private static void addOnce(ArrayList<SerializableBitmap> window, SerializableBitmap image) {
+        if (!window.contains(image))
+            window.add(image);
+    }
+
+    private static int wrap(int position, int count) {
+        return ((position % count) + count) % count;
+    }
+}
@@ -0,0 +1,43 @@
+package cs213.photoapp78.image;
+
+/**
+ * The kinds of images the app encodes itself, each with its own {@link Codec}. The codecs
+ * are configured in the app's resources and can be changed at runtime, e.g. to trade
+ * quality for space; images already stored keep the codec they were written with, which
+ * is recorded with them.
+ */
+public enum StorageTier {
+    /**
+     * Full resolution, for images whose original bytes are not available, as the inline
+     * images of old data files
+     */
+    ORIGINAL(Codec.LOSSLESS),
+    /**
+     * Photo list icons, see {@link Thumbnails#SIZE}
+     */
+    THUMBNAIL(Codec.jpeg(85));
+
+    private volatile Codec codec;
+
+    StorageTier(Codec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Returns the codec new images of this tier are encoded with
+     *
+     * @return the codec
+     */
+    public Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Changes the codec new images of this tier are encoded with
+     *
+     * @param codec the codec
+     */
+    public void setCodec(Codec codec) {
+        this.codec = codec;
+    }
+}
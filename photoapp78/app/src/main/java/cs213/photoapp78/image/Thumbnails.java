@@ -0,0 +1,116 @@
+package cs213.photoapp78.image;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.File;
+import java.io.IOException;
+
+import cs213.photoapp78.storage.BlobStore;
+
+/**
+ * Creates the small pre-scaled images shown in photo lists. Thumbnails are stored in the
+ * {@link BlobStore} with the codec of {@link StorageTier#THUMBNAIL} when a photo is
+ * imported, so lists never have to decode a full-resolution image.
+ */
+public class Thumbnails {
+    /**
+     * Longest edge of a thumbnail in pixels, enough for a 64dp row icon on xxhdpi screens
+     */
+    public static final int SIZE = 192;
+
+    /**
+     * Decodes a stored image at a reduced sample size and stores its thumbnail
+     *
+     * @param file  file holding the encoded image
+     * @param codec codec to store the thumbnail with
+     * @return blob key of the thumbnail
+     * @throws IOException if the image could not be decoded or the thumbnail stored
+     */
+    public static String create(File file, Codec codec) throws IOException {
+        Bitmap bitmap = decodeSampled(file, SIZE, SIZE, Bitmap.Config.RGB_565);
+        if (bitmap == null)
+            throw new IOException("Could not decode " + file);
+
+        return store(scale(bitmap), codec);
+    }
+
+    /**
+     * Scales an image down to thumbnail size
+     *
+     * @param bitmap the full image
+     * @return the thumbnail, or the image itself if it is small enough already
+     */
+    public static Bitmap scale(Bitmap bitmap) {
+        return scale(bitmap, SIZE);
+    }
+
+    /**
+     * Scales an image down so its longest edge is at most the given size
+     *
+     * @param bitmap the image
+     * @param size   longest edge in pixels
+     * @return the scaled image, or the image itself if it is small enough already
+     */
+    public static Bitmap scale(Bitmap bitmap, int size) {
+        int width = bitmap.getWidth(), height = bitmap.getHeight();
+        if (width <= size && height <= size)
+            return bitmap;
+
+        float scale = (float) size / Math.max(width, height);
+        return Bitmap.createScaledBitmap(bitmap, Math.max(1, Math.round(width * scale)),
+                Math.max(1, Math.round(height * scale)), true);
+    }
+
+    /**
+     * Encodes an image and stores it
+     *
+     * @param image the image
+     * @param codec codec to encode the image with
+     * @return blob key of the encoded image
+     * @throws IOException if the image could not be encoded or stored
+     */
+    public static String store(Bitmap image, Codec codec) throws IOException {
+        return BlobStore.getInstance().put(codec.encode(image));
+    }
+
+    /**
+     * Decodes an image no smaller than the requested size, skipping as many pixels as the
+     * requested size allows while reading it.
+     *
+     * @param file   file holding the encoded image
+     * @param width  requested width
+     * @param height requested height
+     * @param config pixel format of the decoded bitmap
+     * @return the decoded bitmap, or null if the file could not be decoded
+     */
+    public static Bitmap decodeSampled(File file, int width, int height, Bitmap.Config config) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, width, height);
+        options.inJustDecodeBounds = false;
+        options.inPreferredConfig = config;
+        return BitmapFactory.decodeFile(file.getPath(), options);
+    }
+
+    /**
+     * Returns the largest power of two the image can be subsampled by while both
+     * dimensions stay at least as large as requested.
+     *
+     * @param width           width of the image
+     * @param height          height of the image
+     * @param requestedWidth  requested width
+     * @param requestedHeight requested height
+     * @return the sample size for {@link BitmapFactory.Options#inSampleSize}
+     */
+    public static int calculateInSampleSize(int width, int height, int requestedWidth, int requestedHeight) {
+        int sampleSize = 1;
+
+        while (width / (sampleSize * 2) >= requestedWidth && height / (sampleSize * 2) >= requestedHeight)
+            sampleSize *= 2;
+
+        return sampleSize;
+    }
+}
@@ -0,0 +1,42 @@
+package cs213.photoapp78.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running total of events or bytes, see {@link Metrics#counter(String)}.
+ */
+public final class Counter {
+    private final AtomicLong value = new AtomicLong();
+
+    Counter() {
+    }
+
+    /**
+     * Adds one
+     */
+    public void increment() {
+        value.incrementAndGet();
+    }
+
+    /**
+     * Adds an amount
+     *
+     * @param amount the amount, e.g. a number of bytes
+     */
+    public void add(long amount) {
+        value.addAndGet(amount);
+    }
+
+    /**
+     * Returns the total
+     *
+     * @return the sum of everything added since the counter was created or reset
+     */
+    public long get() {
+        return value.get();
+    }
+
+    void reset() {
+        value.set(0);
+    }
+}
@@ -0,0 +1,98 @@
+package cs213.photoapp78.metrics;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of latencies, see {@link Metrics#histogram(String)}. Latencies are counted
+ * in buckets whose bounds double from one microsecond up, so percentiles are accurate to
+ * within a factor of two while recording costs a few atomic increments and no
+ * allocation.
+ */
+public final class Histogram {
+    private static final int BUCKETS = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    Histogram() {
+    }
+
+    /**
+     * Records a latency
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+
+        long micros = nanos / 1000;
+        buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+
+        long previous = max.get();
+        while (nanos > previous && !max.compareAndSet(previous, nanos))
+            previous = max.get();
+    }
+
+    /**
+     * Returns the number of latencies recorded
+     *
+     * @return the count
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Returns a percentile of the latencies recorded
+     *
+     * @param percent the percentile, from 0 to 100
+     * @return the upper bound of the bucket holding the percentile in nanoseconds, never
+     * more than the largest latency, or 0 if none were recorded
+     */
+    public long getPercentile(double percent) {
+        long count = this.count.get();
+        if (count == 0)
+            return 0;
+
+        long rank = (long) Math.ceil(count * percent / 100);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += buckets.get(bucket);
+            if (seen >= rank && seen > 0)
+                return Math.min(max.get(), (1L << bucket) * 1000);
+        }
+
+        return max.get();
+    }
+
+    void reset() {
+        for (int bucket = 0; bucket < BUCKETS; bucket++)
+            buckets.set(bucket, 0);
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    void appendJson(StringBuilder json) {
+        long count = this.count.get();
+
+        json.append("{\"count\":").append(count)
+                .append(",\"mean_ms\":").append(millis(count == 0 ? 0 : total.get() / count))
+                .append(",\"p50_ms\":").append(millis(getPercentile(50)))
+                .append(",\"p90_ms\":").append(millis(getPercentile(90)))
+                .append(",\"p99_ms\":").append(millis(getPercentile(99)))
+                .append(",\"max_ms\":").append(millis(max.get()))
+                .append('}');
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.US, "%.3f", nanos / 1e6);
+    }
+}
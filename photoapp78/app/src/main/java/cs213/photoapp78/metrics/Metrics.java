@@ -0,0 +1,156 @@
+package cs213.photoapp78.metrics;
+
+import android.os.Trace;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide counters and latency histograms of the hot paths: loading and saving the
+ * library, decoding images, searching and importing. Metrics are created on first use
+ * and kept until the process ends, and updating them takes no locks, so any thread may
+ * record them.
+ * <p>
+ * {@link #begin(String)} times a section of code into the histogram of that name and
+ * marks it as a trace section too, so the same names show up in systrace and in the
+ * snapshot returned by {@link #toJson()}. The snapshot can be pulled from a running app
+ * with {@code adb shell dumpsys activity cs213.photoapp78/.MainActivity}.
+ */
+public final class Metrics {
+    private static final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+    private static final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+    private static volatile long since = System.currentTimeMillis();
+
+    private Metrics() {
+    }
+
+    /**
+     * A timed section of code, ended by {@link #end()} on the thread that began it.
+     */
+    public static final class Section {
+        private final Histogram histogram;
+        private final long start;
+
+        private Section(Histogram histogram) {
+            this.histogram = histogram;
+            this.start = System.nanoTime();
+        }
+
+        /**
+         * Ends the section and records how long it took
+         */
+        public void end() {
+            histogram.record(System.nanoTime() - start);
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Returns the counter of the given name, creating it if needed
+     *
+     * @param name dotted name of the counter, e.g. {@code bitmap.cache.hits}
+     * @return the counter
+     */
+    public static Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            counters.putIfAbsent(name, new Counter());
+            counter = counters.get(name);
+        }
+
+        return counter;
+    }
+
+    /**
+     * Returns the histogram of the given name, creating it if needed
+     *
+     * @param name dotted name of the histogram, e.g. {@code library.load}
+     * @return the histogram
+     */
+    public static Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histograms.putIfAbsent(name, new Histogram());
+            histogram = histograms.get(name);
+        }
+
+        return histogram;
+    }
+
+    /**
+     * Begins a timed section. Sections must be ended in the reverse order they were begun
+     * in, so callers end them in a {@code finally} block.
+     *
+     * @param name name of the histogram and trace section
+     * @return the section to end
+     */
+    public static Section begin(String name) {
+        Trace.beginSection(name);
+        return new Section(histogram(name));
+    }
+
+    /**
+     * Sets every counter and histogram back to zero
+     */
+    public static void reset() {
+        for (Counter counter : counters.values())
+            counter.reset();
+        for (Histogram histogram : histograms.values())
+            histogram.reset();
+        since = System.currentTimeMillis();
+    }
+
+    /**
+     * Takes a snapshot of every metric, sorted by name, for example
+     * <pre>
+     * {"since":1512345678901,"elapsed_ms":5230,
+     *  "counters":{"bitmap.cache.hits":42,...},
+     *  "histograms":{"library.load":{"count":1,"mean_ms":8.214,...},...}}
+     * </pre>
+     *
+     * @return the snapshot as a JSON object
+     */
+    public static String toJson() {
+        long now = System.currentTimeMillis();
+        StringBuilder json = new StringBuilder();
+
+        json.append("{\"since\":").append(since)
+                .append(",\"elapsed_ms\":").append(now - since)
+                .append(",\"counters\":{");
+        String separator = "";
+        for (Map.Entry<String, Counter> entry : new TreeMap<String, Counter>(counters).entrySet()) {
+            json.append(separator);
+            appendString(json, entry.getKey());
+            json.append(':').append(entry.getValue().get());
+            separator = ",";
+        }
+
+        json.append("},\"histograms\":{");
+        separator = "";
+        for (Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(histograms).entrySet()) {
+            json.append(separator);
+            appendString(json, entry.getKey());
+            json.append(':');
+            entry.getValue().appendJson(json);
+            separator = ",";
+        }
+
+        return json.append("}}").toString();
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int index = 0; index < value.length(); index++) {
+            char c = value.charAt(index);
+            if (c == '"' || c == '\\')
+                json.append('\\').append(c);
+            else if (c < 0x20)
+                json.append(String.format("\\u%04x", (int) c));
+            else
+                json.append(c);
+        }
+        json.append('"');
+    }
+}
@@ -1,17 +1,46 @@
 package cs213.photoapp78.model;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
+ * An album refers to its photos by id. The photos themselves are written once, in the
+ * library's {@link PhotoTable}, and a read album is given its photos by
+ * {@link #resolve(Map)}.
+ * <p>
+ * An album read from a library file only knows the ids of its photos until they are
+ * needed. The name and the number of photos are available right away, and the first
+ * call needing the photos themselves has the {@link Loader} read them.
+ *
  * @author Anil Tilve
  * @author Ayush Joshi
  */
 public class Album implements Serializable {
 
     private static final long serialVersionUID = 1891567810783724951L;
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("id", int.class),
+            new ObjectStreamField("name", String.class),
+            new ObjectStreamField("photoIds", int[].class),
+            // older data files hold the photos themselves
+            new ObjectStreamField("photos", ArrayList.class)
+    };
+    private int id;
     private String name;
-    private ArrayList<Photo> photos;
+    private transient volatile ArrayList<Photo> photos;
+    private transient int[] photoIds;
+    private transient Loader loader;
+    private transient HashMap<Integer, Photo> photosById;
+    private transient HashMap<String, Photo> photosByCaption;
 
     /**
      * Constructor
@@ -21,6 +50,37 @@ public class Album implements Serializable {
         photos = new ArrayList<Photo>();
     }
 
+    /**
+     * Creates an album whose photos are read on first use
+     *
+     * @param name     name of the album
+     * @param photoIds ids of the photos in album order
+     * @param loader   reads the photos
+     */
+    public Album(String name, int[] photoIds, Loader loader) {
+        this.name = name;
+        this.photoIds = photoIds;
+        this.loader = loader;
+    }
+
+    /**
+     * Returns the id of this album_view, unique among all albums of the library
+     *
+     * @return the id, or 0 if the album_view was not added to the library yet
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Sets the id of this album_view. Called once by the library when the album_view is added.
+     *
+     * @param id the new id
+     */
+    public void setId(int id) {
+        this.id = id;
+    }
+
     /**
      * Gets the name of this album_view
      *
@@ -42,38 +102,289 @@ public class Album implements Serializable {
     /**
      * Gets the photos in this album_view
      *
-     * @return an arraylist of photos
+     * @return a read-only list of photos
      */
-    public ArrayList<Photo> getPhotos() {
-        return this.photos;
+    public List<Photo> getPhotos() {
+        load();
+        return Collections.unmodifiableList(this.photos);
     }
 
     /**
-     * Returns the number of photos in this album_view
+     * Returns the number of photos in this album_view, without reading the photos
      *
      * @return the number of photos in this album_view
      */
     public int getPhotoCount() {
-        return this.photos.size();
+        ArrayList<Photo> photos = this.photos;
+        return photos != null ? photos.size() : photoIds.length;
+    }
+
+    /**
+     * Returns the ids of the photos in this album_view, without reading the photos
+     *
+     * @return the ids in album_view order
+     */
+    public int[] getPhotoIds() {
+        ArrayList<Photo> photos = this.photos;
+        if (photos == null)
+            return photoIds.clone();
+
+        int[] ids = new int[photos.size()];
+        for (int index = 0; index < ids.length; index++)
+            ids[index] = photos.get(index).getId();
+        return ids;
+    }
+
+    /**
+     * Checks whether the photos of this album_view have been read
+     *
+     * @return true if the photos are in memory, false if only their ids are
+     */
+    public boolean isLoaded() {
+        return photos != null;
+    }
+
+    /**
+     * Gives an album_view created with {@link #Album(String, int[], Loader)} its photos.
+     * Called by the loader.
+     *
+     * @param loaded the photos, in the order of the ids
+     */
+    public void setPhotos(List<Photo> loaded) {
+        photosById = null;
+        photosByCaption = null;
+        photos = new ArrayList<Photo>(loaded);
+    }
+
+    /**
+     * Returns the photo with the given id
+     *
+     * @param id id of the photo
+     * @return the photo, or null if it is not in this album_view
+     */
+    public Photo getPhoto(int id) {
+        index();
+        return photosById.get(id);
+    }
+
+    /**
+     * Returns the photo with the given caption
+     *
+     * @param caption caption of the photo
+     * @return the photo, or null if no photo in this album_view has the caption
+     */
+    public Photo getPhoto(String caption) {
+        index();
+        return photosByCaption.get(caption);
+    }
+
+    /**
+     * Checks whether a photo is in this album_view
+     *
+     * @param photo the photo
+     * @return true if the album_view holds the photo, false otherwise
+     */
+    public boolean contains(Photo photo) {
+        if (photos == null) {
+            for (int photoId : photoIds)
+                if (photoId == photo.getId())
+                    return true;
+            return false;
+        }
+
+        if (photo.getId() == 0)
+            return photos.contains(photo);
+
+        index();
+        return photosById.containsKey(photo.getId());
+    }
+
+    /**
+     * Returns the position of a photo in this album_view
+     *
+     * @param photo the photo
+     * @return the position, or -1 if it is not in this album_view
+     */
+    public int indexOf(Photo photo) {
+        load();
+        return contains(photo) ? photos.indexOf(photo) : -1;
+    }
+
+    /**
+     * Adds a photo to the end of this album_view
+     *
+     * @param photo the new photo
+     */
+    public void addPhoto(Photo photo) {
+        index();
+        photos.add(photo);
+        photosById.put(photo.getId(), photo);
+        photosByCaption.put(photo.getCaption(), photo);
+    }
+
+    /**
+     * Adds a photo to the end of this album_view without reading the photos of an album_view
+     * that only knows their ids. The photo must be held elsewhere, as in the library's
+     * {@link PhotoTable}, for the loader to find it when the photos are read.
+     *
+     * @param photo the new photo
+     */
+    public void appendPhoto(Photo photo) {
+        if (photos != null) {
+            addPhoto(photo);
+            return;
+        }
+
+        int[] ids = Arrays.copyOf(photoIds, photoIds.length + 1);
+        ids[photoIds.length] = photo.getId();
+        photoIds = ids;
+    }
+
+    /**
+     * Removes the photo at the given position
+     *
+     * @param position position of the photo
+     * @return the removed photo
+     */
+    public Photo removePhoto(int position) {
+        index();
+        Photo photo = photos.remove(position);
+        photosById.remove(photo.getId());
+        if (photosByCaption.get(photo.getCaption()) == photo)
+            photosByCaption.remove(photo.getCaption());
+        return photo;
+    }
+
+    /**
+     * Updates the caption lookup after a photo of this album_view was recaptioned. A photo
+     * shared with other albums must be updated in each of them.
+     *
+     * @param photo           the recaptioned photo
+     * @param previousCaption the caption the photo had before
+     */
+    public void captionChanged(Photo photo, String previousCaption) {
+        if (photos == null)
+            return;
+
+        index();
+        if (photosByCaption.get(previousCaption) == photo)
+            photosByCaption.remove(previousCaption);
+        photosByCaption.put(photo.getCaption(), photo);
+    }
+
+    /**
+     * Replaces the photo ids read from a data file with the photos. Ids missing from the
+     * table are dropped. Albums read from older data files already hold their photos.
+     *
+     * @param table photos of the library by id
+     */
+    public void resolve(Map<Integer, Photo> table) {
+        if (photoIds == null || loader != null)
+            return;
+
+        for (int photoId : photoIds) {
+            Photo photo = table.get(photoId);
+            if (photo != null)
+                photos.add(photo);
+        }
+
+        photoIds = null;
+        reindex();
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("id", id);
+        fields.put("name", name);
+        fields.put("photoIds", getPhotoIds());
+        out.writeFields();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        id = fields.get("id", 0);
+        name = (String) fields.get("name", null);
+        photoIds = (int[]) fields.get("photoIds", null);
+
+        ArrayList<Photo> legacy = (ArrayList<Photo>) fields.get("photos", null);
+        photos = legacy != null ? legacy : new ArrayList<Photo>();
+    }
+
+    /**
+     * Rebuilds the lookup tables, which are not serialized. Photos read from older data
+     * files get their ids only after loading, so the tables are built on first use.
+     */
+    private void index() {
+        load();
+        if (photosById != null)
+            return;
+
+        photosById = new HashMap<Integer, Photo>();
+        photosByCaption = new HashMap<String, Photo>();
+        for (Photo photo : photos) {
+            photosById.put(photo.getId(), photo);
+            photosByCaption.put(photo.getCaption(), photo);
+        }
+    }
+
+    /**
+     * Has the loader read the photos if this album_view only knows their ids
+     */
+    private void load() {
+        if (photos == null)
+            loader.load(this);
+    }
+
+    /**
+     * Drops the lookup tables so they are rebuilt with the current ids
+     */
+    public void reindex() {
+        photosById = null;
+        photosByCaption = null;
     }
 
     /**
      * Compares this album_view to another
      *
      * @param other the album_view to be compared
-     * @return true if the albums are equal, false otherwise
+     * @return true if both are the same album_view, false otherwise
      */
-    public boolean equals(Album other) {
-        return name.equals(other.name);
+    @Override
+    public boolean equals(Object other) {
+        if (this == other)
+            return true;
+        if (!(other instanceof Album) || id == 0)
+            return false;
+        return id == ((Album) other).id;
+    }
+
+    @Override
+    public int hashCode() {
+        return id != 0 ? id : System.identityHashCode(this);
     }
 
     /**
      * Returns a string representation of this album_view
      */
     public String toString() {
-        String result = name + "\n" + photos.size() + " photo";
-        if (photos.size() != 1)
+        int count = getPhotoCount();
+        String result = name + "\n" + count + " photo";
+        if (count != 1)
             result += "s";
         return result;
     }
-}
\ No newline at end of file
+
+    /**
+     * Reads the photos of albums created with {@link #Album(String, int[], Loader)}.
+     */
+    public interface Loader {
+        /**
+         * Reads the photos of an album and hands them to {@link Album#setPhotos(List)}.
+         * Does nothing if another thread already did.
+         *
+         * @param album the album
+         */
+        void load(Album album);
+    }
+}
@@ -16,19 +16,40 @@ public class Photo implements Serializable {
 
 
     private static final long serialVersionUID = 6955723612371190680L;
+    private int id;
     private ArrayList<Tag> tags;
     private String caption;
     private SerializableBitmap bitmap;
 
     /**
-     * Constructor
+     * Creates a photo for an image already in the blob store
      *
      * @param caption the caption of the photo
+     * @param image   the stored image
      */
-    public Photo(String caption, Bitmap bitmap) {
+    public Photo(String caption, SerializableBitmap image) {
         this.caption = caption;
         this.tags = new ArrayList<Tag>();
-        this.bitmap = new SerializableBitmap(bitmap);
+        this.bitmap = image;
+    }
+
+    /**
+     * Returns the id of this photo, unique among all photos of the library. A photo shared
+     * by several albums has the same id in each.
+     *
+     * @return the id, or 0 if the photo was not added to the library yet
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Sets the id of this photo. Called once by the library when the photo is added.
+     *
+     * @param id the new id
+     */
+    public void setId(int id) {
+        this.id = id;
     }
 
     /**
@@ -48,6 +69,24 @@ public class Photo implements Serializable {
         return bitmap.getBitmap();
     }
 
+    /**
+     * Returns the small version of this photo shown in lists
+     *
+     * @return the thumbnail
+     */
+    public Bitmap getThumbnail() {
+        return bitmap.getThumbnail();
+    }
+
+    /**
+     * Returns the stored image reference of this photo
+     *
+     * @return the blob key and dimensions of the image
+     */
+    public SerializableBitmap getImage() {
+        return bitmap;
+    }
+
     /**
      * Returns the tags for this photo
      *
@@ -61,9 +100,19 @@ public class Photo implements Serializable {
      * Compares this photo to another
      *
      * @param other the photo to be compared to
-     * @return true if the photos are equal, false otherwise
+     * @return true if both are the same photo, false otherwise
      */
-    public boolean equals(Photo other) {
-        return this.caption.equals(other.caption);
+    @Override
+    public boolean equals(Object other) {
+        if (this == other)
+            return true;
+        if (!(other instanceof Photo) || id == 0)
+            return false;
+        return id == ((Photo) other).id;
+    }
+
+    @Override
+    public int hashCode() {
+        return id != 0 ? id : System.identityHashCode(this);
     }
 }
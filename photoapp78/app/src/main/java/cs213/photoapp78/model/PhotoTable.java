@@ -0,0 +1,124 @@
+package cs213.photoapp78.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Every photo of the library exactly once, keyed by id. Albums only refer to photos, and
+ * the table counts the references so a photo is dropped when the last album holding it
+ * lets go of it.
+ */
+public class PhotoTable {
+    private final HashMap<Integer, Entry> entries = new HashMap<Integer, Entry>();
+
+    /**
+     * Returns the photo with the given id
+     *
+     * @param id id of the photo
+     * @return the photo, or null if no album holds it
+     */
+    public Photo get(int id) {
+        Entry entry = entries.get(id);
+        return entry == null ? null : entry.photo;
+    }
+
+    /**
+     * Counts a new reference to a photo, adding the photo if it is not in the table yet
+     *
+     * @param photo the photo
+     * @return true if the photo was added, false if it was already in the table
+     */
+    public boolean retain(Photo photo) {
+        Entry entry = entries.get(photo.getId());
+
+        if (entry == null) {
+            entries.put(photo.getId(), new Entry(photo));
+            return true;
+        }
+
+        entry.references++;
+        return false;
+    }
+
+    /**
+     * Drops a reference to a photo, removing the photo with its last reference
+     *
+     * @param photo the photo
+     * @return true if that was the last reference and the photo was removed, false otherwise
+     */
+    public boolean release(Photo photo) {
+        Entry entry = entries.get(photo.getId());
+
+        if (entry == null)
+            return false;
+        if (--entry.references > 0)
+            return false;
+
+        entries.remove(photo.getId());
+        return true;
+    }
+
+    /**
+     * Sets the number of references to a photo whose albums were counted elsewhere, e.g.
+     * in a library file. The photo is added if needed, and removed if no reference is left.
+     *
+     * @param photo      the photo
+     * @param references number of albums holding the photo
+     */
+    public void put(Photo photo, int references) {
+        if (references <= 0) {
+            entries.remove(photo.getId());
+            return;
+        }
+
+        Entry entry = new Entry(photo);
+        entry.references = references;
+        entries.put(photo.getId(), entry);
+    }
+
+    /**
+     * Returns the number of albums holding a photo
+     *
+     * @param photo the photo
+     * @return number of references, 0 if the photo is not in the table
+     */
+    public int getReferences(Photo photo) {
+        Entry entry = entries.get(photo.getId());
+        return entry == null ? 0 : entry.references;
+    }
+
+    /**
+     * Returns all photos
+     *
+     * @return a new list of the photos in no particular order
+     */
+    public ArrayList<Photo> getPhotos() {
+        ArrayList<Photo> photos = new ArrayList<Photo>(entries.size());
+
+        for (Entry entry : entries.values())
+            photos.add(entry.photo);
+
+        return photos;
+    }
+
+    /**
+     * Returns the number of photos
+     *
+     * @return the number of distinct photos in all albums
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * A photo and the number of albums holding it.
+     */
+    private static class Entry {
+        final Photo photo;
+        int references = 1;
+
+        Entry(Photo photo) {
+            this.photo = photo;
+        }
+    }
+}
@@ -2,21 +2,371 @@ package cs213.photoapp78.model;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 
+import cs213.photoapp78.image.BitmapCache;
+import cs213.photoapp78.image.Codec;
+import cs213.photoapp78.image.PerceptualHash;
+import cs213.photoapp78.image.StorageTier;
+import cs213.photoapp78.image.Thumbnails;
+import cs213.photoapp78.metrics.Metrics;
+import cs213.photoapp78.storage.BlobStore;
 
+/**
+ * Reference to an image kept in the {@link BlobStore}. Only the blob keys of the image
+ * and its thumbnail, the {@link Codec} names they were stored with, the dimensions and
+ * the perceptual hash of the image are serialized with the model.
+ */
 public class SerializableBitmap implements Serializable {
+    private static final long serialVersionUID = 919579977179605075L;
+    private static final String TAG = "SerializableBitmap";
+    private String key;
+    private String format;
+    private volatile String thumbnailKey;
+    private volatile String thumbnailFormat;
+    private int width, height;
+    private long perceptualHash;
+    private boolean hashed;
+    /**
+     * Inline PNG bytes written by older versions of the app. They are moved into the
+     * blob store when read and are never written again.
+     */
     private byte[] bytes;
 
-    public SerializableBitmap(Bitmap bitmap) {
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
-        bytes = stream.toByteArray();
+    /**
+     * Stores an encoded image as it is, without decoding it. Only the dimensions are read
+     * from its header, and the thumbnail and perceptual hash come from a subsampled
+     * decode, so importing costs about as much as copying the file.
+     *
+     * @param in the encoded image, read to the end but not closed
+     * @throws IOException if the image could not be stored or is not a decodable image
+     */
+    public SerializableBitmap(InputStream in) throws IOException {
+        BlobStore store = BlobStore.getInstance();
+        key = store.put(in);
+        format = Codec.ORIGINAL;
+        File file = store.getFile(key);
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            throw new IOException("Not an image: " + key);
+        width = options.outWidth;
+        height = options.outHeight;
+
+        Bitmap sampled = Thumbnails.decodeSampled(file, Thumbnails.SIZE, Thumbnails.SIZE, Bitmap.Config.ARGB_8888);
+        if (sampled == null)
+            throw new IOException("Could not decode " + key);
+
+        Bitmap thumbnail = Thumbnails.scale(sampled);
+        Codec thumbnailCodec = StorageTier.THUMBNAIL.getCodec();
+        thumbnailKey = Thumbnails.store(thumbnail, thumbnailCodec);
+        thumbnailFormat = thumbnailCodec.getName();
+        perceptualHash = PerceptualHash.dHash(thumbnail);
+        hashed = true;
+
+        if (thumbnail != sampled)
+            thumbnail.recycle();
+        sampled.recycle();
     }
 
+    /**
+     * Refers to an image already in the blob store
+     *
+     * @param key          key of the image in the blob store
+     * @param thumbnailKey key of the thumbnail in the blob store, or null to create it on use
+     * @param width        width of the image
+     * @param height       height of the image
+     */
+    public SerializableBitmap(String key, String thumbnailKey, int width, int height) {
+        this(key, null, thumbnailKey, null, width, height);
+    }
+
+    /**
+     * Refers to an image already in the blob store, stored with known codecs
+     *
+     * @param key             key of the image in the blob store
+     * @param format          name of the codec of the image, or null if unknown
+     * @param thumbnailKey    key of the thumbnail in the blob store, or null to create it on use
+     * @param thumbnailFormat name of the codec of the thumbnail, or null if unknown
+     * @param width           width of the image
+     * @param height          height of the image
+     */
+    public SerializableBitmap(String key, String format, String thumbnailKey, String thumbnailFormat,
+                              int width, int height) {
+        this.key = key;
+        this.format = format;
+        this.thumbnailKey = thumbnailKey;
+        this.thumbnailFormat = thumbnailFormat;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Returns the image, decoding it from the blob store unless it is in the
+     * {@link BitmapCache}
+     *
+     * @return the image, or null if it could not be decoded
+     */
     public Bitmap getBitmap() {
-        return BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+        BitmapCache cache = BitmapCache.getInstance();
+        String cacheKey = BitmapCache.key(key, width, height);
+        Bitmap bitmap = cache.get(cacheKey);
+
+        if (bitmap == null) {
+            Metrics.Section section = Metrics.begin("bitmap.decode");
+            try {
+                bitmap = BitmapFactory.decodeFile(BlobStore.getInstance().getFile(key).getPath());
+            } finally {
+                section.end();
+            }
+            if (bitmap != null)
+                cache.put(cacheKey, bitmap);
+        }
+
+        return bitmap;
+    }
+
+    /**
+     * Returns the image scaled down for a display of the given size, decoding it at a
+     * reduced sample size unless it is in the {@link BitmapCache}
+     *
+     * @param maxWidth  width of the display
+     * @param maxHeight height of the display
+     * @return the image, at least as large as the display or the original, or null if it
+     * could not be decoded
+     */
+    public Bitmap getBitmap(int maxWidth, int maxHeight) {
+        BitmapCache cache = BitmapCache.getInstance();
+        String cacheKey = BitmapCache.key(key, maxWidth, maxHeight);
+        Bitmap bitmap = cache.get(cacheKey);
+
+        if (bitmap == null) {
+            Metrics.Section section = Metrics.begin("bitmap.decodeSampled");
+            try {
+                bitmap = Thumbnails.decodeSampled(BlobStore.getInstance().getFile(key), maxWidth, maxHeight,
+                        Bitmap.Config.ARGB_8888);
+            } finally {
+                section.end();
+            }
+            if (bitmap != null)
+                cache.put(cacheKey, bitmap);
+        }
+
+        return bitmap;
+    }
+
+    /**
+     * Returns the image decoded for a display of the given size only if it is already in
+     * the {@link BitmapCache}
+     *
+     * @param maxWidth  width of the display
+     * @param maxHeight height of the display
+     * @return the cached image, or null
+     */
+    public Bitmap peekBitmap(int maxWidth, int maxHeight) {
+        return BitmapCache.getInstance().get(BitmapCache.key(key, maxWidth, maxHeight));
+    }
+
+    /**
+     * Opens the image for decoding parts of it, without decoding any pixels yet
+     *
+     * @return a decoder of regions of the image, to be recycled by the caller
+     * @throws IOException if the image could not be read or its format does not support
+     *                     decoding regions
+     */
+    public BitmapRegionDecoder newRegionDecoder() throws IOException {
+        return BitmapRegionDecoder.newInstance(BlobStore.getInstance().getFile(key).getPath(), false);
+    }
+
+    /**
+     * Returns the thumbnail of the image, decoding it unless it is in the
+     * {@link BitmapCache}. Images stored before thumbnails existed get one created from a
+     * subsampled decode the first time it is needed.
+     *
+     * @return the thumbnail, or null if it could not be decoded
+     */
+    public Bitmap getThumbnail() {
+        BlobStore store = BlobStore.getInstance();
+
+        synchronized (this) {
+            if (thumbnailKey == null) {
+                Metrics.Section section = Metrics.begin("thumbnail.create");
+                try {
+                    Codec thumbnailCodec = StorageTier.THUMBNAIL.getCodec();
+                    thumbnailKey = Thumbnails.create(store.getFile(key), thumbnailCodec);
+                    thumbnailFormat = thumbnailCodec.getName();
+                } catch (IOException exception) {
+                    Log.w(TAG, "Could not create a thumbnail of " + key, exception);
+                    return null;
+                } finally {
+                    section.end();
+                }
+            }
+        }
+
+        BitmapCache cache = BitmapCache.getInstance();
+        String cacheKey = BitmapCache.key(thumbnailKey, Thumbnails.SIZE, Thumbnails.SIZE);
+        Bitmap thumbnail = cache.get(cacheKey);
+
+        if (thumbnail == null) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+            Metrics.Section section = Metrics.begin("thumbnail.decode");
+            try {
+                thumbnail = BitmapFactory.decodeFile(store.getFile(thumbnailKey).getPath(), options);
+            } finally {
+                section.end();
+            }
+            if (thumbnail != null)
+                cache.put(cacheKey, thumbnail);
+        }
+
+        return thumbnail;
+    }
+
+    /**
+     * Returns the thumbnail only if it is already decoded, without touching the disk
+     *
+     * @return the cached thumbnail, or null
+     */
+    public Bitmap peekThumbnail() {
+        String thumbnailKey = this.thumbnailKey;
+        if (thumbnailKey == null)
+            return null;
+
+        return BitmapCache.getInstance().get(BitmapCache.key(thumbnailKey, Thumbnails.SIZE, Thumbnails.SIZE));
+    }
+
+    /**
+     * Checks whether the perceptual hash is known. Images stored before hashes existed get
+     * one computed in the background after loading.
+     *
+     * @return true if {@link #getPerceptualHash()} is valid, false otherwise
+     */
+    public boolean hasPerceptualHash() {
+        return hashed;
+    }
+
+    /**
+     * Returns the perceptual hash of the image
+     *
+     * @return the {@link PerceptualHash#dHash(Bitmap)} of the thumbnail
+     */
+    public long getPerceptualHash() {
+        return perceptualHash;
+    }
+
+    /**
+     * Records the perceptual hash of the image
+     *
+     * @param perceptualHash the hash
+     */
+    public void setPerceptualHash(long perceptualHash) {
+        this.perceptualHash = perceptualHash;
+        hashed = true;
+    }
+
+    /**
+     * Computes the perceptual hash from the thumbnail without recording it
+     *
+     * @return the hash
+     * @throws IOException if the thumbnail could not be decoded
+     */
+    public long computePerceptualHash() throws IOException {
+        Bitmap thumbnail = getThumbnail();
+        if (thumbnail == null)
+            throw new IOException("Could not decode the thumbnail of " + key);
+
+        return PerceptualHash.dHash(thumbnail);
+    }
+
+    /**
+     * Returns the key of the thumbnail in the blob store
+     *
+     * @return the blob key, or null if no thumbnail was created yet
+     */
+    public String getThumbnailKey() {
+        return thumbnailKey;
+    }
+
+    /**
+     * Returns how the image was stored
+     *
+     * @return the {@link Codec} name, {@link Codec#ORIGINAL} for imported bytes, or null
+     * if the image was stored before formats were recorded
+     */
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * Returns how the thumbnail was stored
+     *
+     * @return the {@link Codec} name, or null if the thumbnail was stored before formats
+     * were recorded or does not exist yet
+     */
+    public String getThumbnailFormat() {
+        return thumbnailFormat;
+    }
+
+    /**
+     * Returns the key of the image in the blob store
+     *
+     * @return the blob key
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Returns the width of the image
+     *
+     * @return the width in pixels
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the image
+     *
+     * @return the height in pixels
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+
+        if (bytes != null) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+            width = options.outWidth;
+            height = options.outHeight;
+
+            // the inline images are PNG, so they are only decoded to store them otherwise
+            Codec codec = StorageTier.ORIGINAL.getCodec();
+            Bitmap bitmap = codec == Codec.LOSSLESS ? null : BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+            if (bitmap != null) {
+                key = Thumbnails.store(bitmap, codec);
+                format = codec.getName();
+                bitmap.recycle();
+            } else {
+                key = BlobStore.getInstance().put(bytes);
+                format = Codec.LOSSLESS.getName();
+            }
+            bytes = null;
+        }
     }
 }
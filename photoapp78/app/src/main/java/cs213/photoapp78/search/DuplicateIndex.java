@@ -0,0 +1,102 @@
+package cs213.photoapp78.search;
+
+import java.util.HashMap;
+
+import cs213.photoapp78.image.PerceptualHash;
+
+/**
+ * Finds photos whose perceptual hashes are within a few bits of a given hash.
+ * <p>
+ * The 64 bit hashes are split into eight bytes and each byte has its own table from byte
+ * value to photo ids. Two hashes differing in fewer than eight bits agree in at least one
+ * byte, so looking up the eight bytes of a hash yields every near match as a candidate,
+ * and only the candidates are compared bit by bit.
+ */
+public class DuplicateIndex {
+    /**
+     * Largest distance lookups are exact for
+     */
+    public static final int MAX_DISTANCE = 7;
+    private static final int CHUNKS = 8;
+
+    private final PostingList[][] tables = new PostingList[CHUNKS][256];
+    private final HashMap<Integer, Long> hashes = new HashMap<Integer, Long>();
+
+    /**
+     * Adds the hash of a photo, replacing an earlier one
+     *
+     * @param id   id of the photo
+     * @param hash perceptual hash of the photo
+     */
+    public synchronized void add(int id, long hash) {
+        remove(id);
+        hashes.put(id, hash);
+
+        for (int chunk = 0; chunk < CHUNKS; chunk++) {
+            int value = chunk(hash, chunk);
+            if (tables[chunk][value] == null)
+                tables[chunk][value] = new PostingList();
+            tables[chunk][value].add(id);
+        }
+    }
+
+    /**
+     * Removes the hash of a photo
+     *
+     * @param id id of the photo
+     */
+    public synchronized void remove(int id) {
+        Long hash = hashes.remove(id);
+        if (hash == null)
+            return;
+
+        for (int chunk = 0; chunk < CHUNKS; chunk++)
+            tables[chunk][chunk(hash, chunk)].remove(id);
+    }
+
+    /**
+     * Returns the photo whose hash is closest to the given one
+     *
+     * @param hash        a perceptual hash
+     * @param maxDistance largest number of differing bits to accept, at most
+     *                    {@link #MAX_DISTANCE}
+     * @return id of the closest photo, or -1 if no photo is close enough
+     */
+    public synchronized int findNearest(long hash, int maxDistance) {
+        if (maxDistance < 0 || maxDistance > MAX_DISTANCE)
+            throw new IllegalArgumentException("Distance " + maxDistance + " is not between 0 and " + MAX_DISTANCE);
+
+        int nearest = -1, nearestDistance = maxDistance + 1;
+
+        for (int chunk = 0; chunk < CHUNKS; chunk++) {
+            PostingList candidates = tables[chunk][chunk(hash, chunk)];
+            if (candidates == null)
+                continue;
+
+            for (int index = 0; index < candidates.size(); index++) {
+                int id = candidates.get(index);
+                int distance = PerceptualHash.distance(hash, hashes.get(id));
+
+                if (distance < nearestDistance || distance == nearestDistance && id < nearest) {
+                    nearest = id;
+                    nearestDistance = distance;
+                }
+            }
+        }
+
+        return nearest;
+    }
+
+    /**
+     * Returns the number of hashed photos
+     *
+     * @return the number of photos
+     */
+    public synchronized int size() {
+        return hashes.size();
+    }
+
+    private static int chunk(long hash, int chunk) {
+        return (int) (hash >>> (chunk * 8)) & 0xff;
+    }
+}
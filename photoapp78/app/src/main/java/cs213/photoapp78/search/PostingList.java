@@ -0,0 +1,218 @@
+package cs213.photoapp78.search;
+
+import java.util.Arrays;
+
+/**
+ * Sorted set of photo document ids, stored as a growable int array.
+ */
+public class PostingList {
+    private int[] ids;
+    private int size;
+
+    /**
+     * Creates an empty posting list
+     */
+    public PostingList() {
+        this(new int[4], 0);
+    }
+
+    private PostingList(int[] ids, int size) {
+        this.ids = ids;
+        this.size = size;
+    }
+
+    /**
+     * Adds an id. Ids handed out in increasing order are appended without shifting.
+     *
+     * @param id the id
+     * @return true if the id was added, false if it was already present
+     */
+    public boolean add(int id) {
+        int index = Arrays.binarySearch(ids, 0, size, id);
+        if (index >= 0)
+            return false;
+
+        index = -index - 1;
+        if (size == ids.length)
+            ids = Arrays.copyOf(ids, size * 2);
+
+        System.arraycopy(ids, index, ids, index + 1, size - index);
+        ids[index] = id;
+        size++;
+        return true;
+    }
+
+    /**
+     * Removes an id
+     *
+     * @param id the id
+     * @return true if the id was removed, false if it was not present
+     */
+    public boolean remove(int id) {
+        int index = Arrays.binarySearch(ids, 0, size, id);
+        if (index < 0)
+            return false;
+
+        System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+        size--;
+        return true;
+    }
+
+    /**
+     * Checks whether an id is present
+     *
+     * @param id the id
+     * @return true if the id is present, false otherwise
+     */
+    public boolean contains(int id) {
+        return Arrays.binarySearch(ids, 0, size, id) >= 0;
+    }
+
+    /**
+     * Returns the id at a position
+     *
+     * @param index position in ascending order
+     * @return the id
+     */
+    public int get(int index) {
+        if (index >= size)
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+
+        return ids[index];
+    }
+
+    /**
+     * Returns the number of ids
+     *
+     * @return the number of ids
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Checks whether the list has no ids
+     *
+     * @return true if the list is empty, false otherwise
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Merges two posting lists
+     *
+     * @param first  a posting list
+     * @param second another posting list
+     * @return a new list with the ids present in either list
+     */
+    public static PostingList union(PostingList first, PostingList second) {
+        int[] result = new int[first.size + second.size];
+        int i = 0, j = 0, count = 0;
+
+        while (i < first.size && j < second.size) {
+            int a = first.ids[i], b = second.ids[j];
+
+            if (a < b) {
+                result[count++] = a;
+                i++;
+            } else if (a > b) {
+                result[count++] = b;
+                j++;
+            } else {
+                result[count++] = a;
+                i++;
+                j++;
+            }
+        }
+
+        while (i < first.size)
+            result[count++] = first.ids[i++];
+        while (j < second.size)
+            result[count++] = second.ids[j++];
+
+        return new PostingList(result, count);
+    }
+
+    /**
+     * Intersects two posting lists. When one list is much shorter, its ids are looked up
+     * in the other by binary search instead of merging both.
+     *
+     * @param first  a posting list
+     * @param second another posting list
+     * @return a new list with the ids present in both lists
+     */
+    public static PostingList intersection(PostingList first, PostingList second) {
+        if (first.size > second.size)
+            return intersection(second, first);
+
+        int[] result = new int[first.size];
+        int count = 0;
+
+        if (first.size * 16 < second.size) {
+            int from = 0;
+
+            for (int i = 0; i < first.size; i++) {
+                int index = Arrays.binarySearch(second.ids, from, second.size, first.ids[i]);
+
+                if (index >= 0) {
+                    result[count++] = first.ids[i];
+                    from = index + 1;
+                } else
+                    from = -index - 1;
+            }
+        } else {
+            int i = 0, j = 0;
+
+            while (i < first.size && j < second.size) {
+                int a = first.ids[i], b = second.ids[j];
+
+                if (a < b)
+                    i++;
+                else if (a > b)
+                    j++;
+                else {
+                    result[count++] = a;
+                    i++;
+                    j++;
+                }
+            }
+        }
+
+        return new PostingList(result, count);
+    }
+
+    /**
+     * Subtracts one posting list from another
+     *
+     * @param first  the list to subtract from
+     * @param second the ids to leave out
+     * @return a new list with the ids of the first list missing from the second
+     */
+    public static PostingList difference(PostingList first, PostingList second) {
+        int[] result = new int[first.size];
+        int i = 0, j = 0, count = 0;
+
+        while (i < first.size) {
+            int a = first.ids[i];
+
+            while (j < second.size && second.ids[j] < a)
+                j++;
+
+            if (j == second.size || second.ids[j] != a)
+                result[count++] = a;
+            i++;
+        }
+
+        return new PostingList(result, count);
+    }
+
+    /**
+     * Returns a string representation of this posting list
+     *
+     * @return the ids in ascending order
+     */
+    public String toString() {
+        return Arrays.toString(Arrays.copyOf(ids, size));
+    }
+}
@@ -0,0 +1,296 @@
+package cs213.photoapp78.search;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import cs213.photoapp78.model.Photo;
+import cs213.photoapp78.model.Tag;
+
+/**
+ * Inverted index from tag values to the photos carrying them.
+ * <p>
+ * Every photo in at least one album gets a document id, and each distinct tag value maps
+ * to one {@link PostingList} of ids per tag name. Substring lookups go through an index
+ * of the trigrams of all distinct values, so only values sharing every trigram of the
+ * search text are compared against it. Photos shared by several albums are counted, and
+ * leave the index only when the last album drops them.
+ */
+public class TagIndex {
+    private static final int GRAM = 3;
+
+    private final ArrayList<Photo> photos = new ArrayList<Photo>();
+    private final IdentityHashMap<Photo, Document> documents = new IdentityHashMap<Photo, Document>();
+    private final HashMap<String, HashMap<String, PostingList>> values = new HashMap<String, HashMap<String, PostingList>>();
+    private final HashMap<String, HashSet<String>> grams = new HashMap<String, HashSet<String>>();
+
+    /**
+     * Adds a photo to the index, or counts one more album holding it
+     *
+     * @param photo the photo
+     */
+    public synchronized void addPhoto(Photo photo) {
+        Document document = documents.get(photo);
+
+        if (document != null) {
+            document.references++;
+            return;
+        }
+
+        document = new Document(photos.size());
+        documents.put(photo, document);
+        photos.add(photo);
+
+        for (Tag tag : photo.getTags())
+            post(document.id, tag);
+    }
+
+    /**
+     * Counts one album less holding a photo, removing the photo once none does
+     *
+     * @param photo the photo
+     */
+    public synchronized void removePhoto(Photo photo) {
+        Document document = documents.get(photo);
+
+        if (document == null || --document.references > 0)
+            return;
+
+        documents.remove(photo);
+        photos.set(document.id, null);
+
+        for (Tag tag : photo.getTags())
+            unpost(document.id, tag);
+    }
+
+    /**
+     * Indexes a tag just added to a photo
+     *
+     * @param photo the photo
+     * @param tag   the new tag
+     */
+    public synchronized void addTag(Photo photo, Tag tag) {
+        Document document = documents.get(photo);
+
+        if (document != null)
+            post(document.id, tag);
+    }
+
+    /**
+     * Drops a tag just removed from a photo, unless the photo still has an equal one
+     *
+     * @param photo the photo
+     * @param tag   the removed tag
+     */
+    public synchronized void removeTag(Photo photo, Tag tag) {
+        Document document = documents.get(photo);
+
+        if (document == null)
+            return;
+
+        for (Tag other : photo.getTags())
+            if (tag.equals(other))
+                return;
+
+        unpost(document.id, tag);
+    }
+
+    /**
+     * Finds the photos with a tag of exactly the given value
+     *
+     * @param name  tag name, or null for any name
+     * @param value the tag value
+     * @return ids of the matching photos
+     */
+    public synchronized PostingList find(String name, String value) {
+        HashMap<String, PostingList> names = values.get(value);
+        PostingList result = new PostingList();
+
+        if (names == null)
+            return result;
+
+        for (Map.Entry<String, PostingList> entry : names.entrySet())
+            if (name == null || name.equals(entry.getKey()))
+                result = PostingList.union(result, entry.getValue());
+
+        return result;
+    }
+
+    /**
+     * Finds the photos with a tag value containing the given text
+     *
+     * @param name tag name, or null for any name
+     * @param text the text to look for
+     * @return ids of the matching photos
+     */
+    public synchronized PostingList findContaining(String name, String text) {
+        PostingList result = new PostingList();
+
+        for (String value : candidates(text))
+            if (value.contains(text))
+                result = PostingList.union(result, find(name, value));
+
+        return result;
+    }
+
+    /**
+     * Returns the ids of all photos in the index
+     *
+     * @return ids of every indexed photo
+     */
+    public synchronized PostingList all() {
+        PostingList result = new PostingList();
+
+        for (int id = 0; id < photos.size(); id++)
+            if (photos.get(id) != null)
+                result.add(id);
+
+        return result;
+    }
+
+    /**
+     * Returns the photo with the given document id
+     *
+     * @param id the document id
+     * @return the photo, or null if it was removed
+     */
+    public synchronized Photo getPhoto(int id) {
+        return photos.get(id);
+    }
+
+    /**
+     * Returns the photos of a search result in document order
+     *
+     * @param ids ids of the photos
+     * @return the photos
+     */
+    public synchronized List<Photo> getPhotos(PostingList ids) {
+        ArrayList<Photo> result = new ArrayList<Photo>(ids.size());
+
+        for (int index = 0; index < ids.size(); index++) {
+            Photo photo = photos.get(ids.get(index));
+            if (photo != null)
+                result.add(photo);
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the number of photos in the index
+     *
+     * @return the number of photos
+     */
+    public synchronized int size() {
+        return documents.size();
+    }
+
+    /**
+     * Returns the values that may contain the text: all values sharing each of its
+     * trigrams, or every value if the text is too short to have one.
+     */
+    private Iterable<String> candidates(String text) {
+        if (text.length() < GRAM)
+            return new ArrayList<String>(values.keySet());
+
+        HashSet<String> smallest = null;
+        ArrayList<HashSet<String>> sets = new ArrayList<HashSet<String>>();
+
+        for (int start = 0; start + GRAM <= text.length(); start++) {
+            HashSet<String> set = grams.get(text.substring(start, start + GRAM));
+            if (set == null)
+                return new ArrayList<String>();
+
+            sets.add(set);
+            if (smallest == null || set.size() < smallest.size())
+                smallest = set;
+        }
+
+        ArrayList<String> result = new ArrayList<String>();
+        candidates:
+        for (String value : smallest) {
+            for (HashSet<String> set : sets)
+                if (set != smallest && !set.contains(value))
+                    continue candidates;
+
+            result.add(value);
+        }
+
+        return result;
+    }
+
+    private void post(int id, Tag tag) {
+        String value = tag.getValue();
+        if (value.isEmpty())
+            return;
+
+        HashMap<String, PostingList> names = values.get(value);
+        if (names == null) {
+            names = new HashMap<String, PostingList>();
+            values.put(value, names);
+
+            for (int start = 0; start + GRAM <= value.length(); start++) {
+                String gram = value.substring(start, start + GRAM);
+                HashSet<String> set = grams.get(gram);
+
+                if (set == null) {
+                    set = new HashSet<String>();
+                    grams.put(gram, set);
+                }
+                set.add(value);
+            }
+        }
+
+        PostingList ids = names.get(tag.getName());
+        if (ids == null) {
+            ids = new PostingList();
+            names.put(tag.getName(), ids);
+        }
+        ids.add(id);
+    }
+
+    private void unpost(int id, Tag tag) {
+        String value = tag.getValue();
+        HashMap<String, PostingList> names = values.get(value);
+        if (names == null)
+            return;
+
+        PostingList ids = names.get(tag.getName());
+        if (ids == null)
+            return;
+
+        ids.remove(id);
+        if (ids.isEmpty())
+            names.remove(tag.getName());
+
+        if (names.isEmpty()) {
+            values.remove(value);
+
+            for (int start = 0; start + GRAM <= value.length(); start++) {
+                String gram = value.substring(start, start + GRAM);
+                HashSet<String> set = grams.get(gram);
+
+                if (set != null) {
+                    set.remove(value);
+                    if (set.isEmpty())
+                        grams.remove(gram);
+                }
+            }
+        }
+    }
+
+    /**
+     * Document id of a photo and the number of albums holding it.
+     */
+    private static class Document {
+        final int id;
+        int references = 1;
+
+        Document(int id) {
+            this.id = id;
+        }
+    }
+}
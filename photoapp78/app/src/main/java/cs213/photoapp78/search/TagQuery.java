@@ -0,0 +1,375 @@
+package cs213.photoapp78.search;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import cs213.photoapp78.metrics.Metrics;
+import cs213.photoapp78.model.Photo;
+
+/**
+ * Boolean query over the tags of photos, evaluated against a {@link TagIndex}.
+ * <p>
+ * Queries are written as terms combined with {@code AND}, {@code OR}, {@code NOT} and
+ * parentheses, with {@code AND} binding tighter than {@code OR}. A term is one of
+ * <ul>
+ * <li>{@code name=value}, a tag with exactly that name and value,</li>
+ * <li>{@code name~text}, a tag with that name whose value contains the text,</li>
+ * <li>{@code text}, a tag of any name whose value contains the text.</li>
+ * </ul>
+ * Values with spaces or operator characters go in double quotes, for example
+ * {@code person=alice AND NOT location="new york"}. Tag names are case-insensitive and
+ * values are case-sensitive.
+ * <p>
+ * Each term is answered by the posting lists of its tag type. Conjunctions intersect
+ * their terms smallest first and subtract negated terms instead of complementing them.
+ */
+public abstract class TagQuery {
+
+    /**
+     * Evaluates the query
+     *
+     * @param index the index to evaluate against
+     * @return ids of the matching photos
+     */
+    public abstract PostingList evaluate(TagIndex index);
+
+    /**
+     * Evaluates the query and returns the matching photos
+     *
+     * @param index the index to evaluate against
+     * @return the matching photos in document order
+     */
+    public List<Photo> search(TagIndex index) {
+        Metrics.Section section = Metrics.begin("search.tags");
+        try {
+            synchronized (index) {
+                return index.getPhotos(evaluate(index));
+            }
+        } finally {
+            section.end();
+        }
+    }
+
+    /**
+     * Parses a query
+     *
+     * @param text the query
+     * @return the parsed query
+     * @throws ParseException if the query is malformed; the error offset points at the
+     *                        offending token
+     */
+    public static TagQuery parse(String text) throws ParseException {
+        Parser parser = new Parser(text);
+        TagQuery query = parser.parseOr();
+
+        if (parser.peek() != null)
+            throw new ParseException("Unexpected \"" + parser.peek().text + "\"", parser.peek().offset);
+
+        return query;
+    }
+
+    /**
+     * Matches photos with a tag of exactly the given name and value
+     *
+     * @param name  the tag name
+     * @param value the tag value
+     * @return the query
+     */
+    public static TagQuery equalTo(String name, String value) {
+        return new Term(name.toLowerCase(), value, true);
+    }
+
+    /**
+     * Matches photos with a tag whose value contains the text
+     *
+     * @param name the tag name, or null for any name
+     * @param text the text to look for
+     * @return the query
+     */
+    public static TagQuery contains(String name, String text) {
+        return new Term(name == null ? null : name.toLowerCase(), text, false);
+    }
+
+    /**
+     * Matches photos matching all the given queries
+     *
+     * @param queries the queries
+     * @return the query
+     */
+    public static TagQuery and(TagQuery... queries) {
+        return new And(new ArrayList<TagQuery>(Arrays.asList(queries)));
+    }
+
+    /**
+     * Matches photos matching any of the given queries
+     *
+     * @param queries the queries
+     * @return the query
+     */
+    public static TagQuery or(TagQuery... queries) {
+        return new Or(new ArrayList<TagQuery>(Arrays.asList(queries)));
+    }
+
+    /**
+     * Matches photos not matching the given query
+     *
+     * @param query the query
+     * @return the query
+     */
+    public static TagQuery not(TagQuery query) {
+        return new Not(query);
+    }
+
+    private static class Term extends TagQuery {
+        final String name, value;
+        final boolean exact;
+
+        Term(String name, String value, boolean exact) {
+            this.name = name;
+            this.value = value;
+            this.exact = exact;
+        }
+
+        @Override
+        public PostingList evaluate(TagIndex index) {
+            return exact ? index.find(name, value) : index.findContaining(name, value);
+        }
+
+        public String toString() {
+            String quoted = '"' + value.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+            return name == null ? quoted : name + (exact ? "=" : "~") + quoted;
+        }
+    }
+
+    private static class And extends TagQuery {
+        final List<TagQuery> queries;
+
+        And(List<TagQuery> queries) {
+            this.queries = queries;
+        }
+
+        @Override
+        public PostingList evaluate(TagIndex index) {
+            ArrayList<PostingList> included = new ArrayList<PostingList>();
+            ArrayList<TagQuery> excluded = new ArrayList<TagQuery>();
+
+            for (TagQuery query : queries) {
+                if (query instanceof Not)
+                    excluded.add(((Not) query).query);
+                else
+                    included.add(query.evaluate(index));
+            }
+
+            Collections.sort(included, new Comparator<PostingList>() {
+                @Override
+                public int compare(PostingList first, PostingList second) {
+                    return first.size() - second.size();
+                }
+            });
+
+            PostingList result = included.isEmpty() ? index.all() : included.get(0);
+            for (int i = 1; i < included.size() && !result.isEmpty(); i++)
+                result = PostingList.intersection(result, included.get(i));
+
+            for (int i = 0; i < excluded.size() && !result.isEmpty(); i++)
+                result = PostingList.difference(result, excluded.get(i).evaluate(index));
+
+            return result;
+        }
+
+        public String toString() {
+            return join(queries, " AND ");
+        }
+    }
+
+    private static class Or extends TagQuery {
+        final List<TagQuery> queries;
+
+        Or(List<TagQuery> queries) {
+            this.queries = queries;
+        }
+
+        @Override
+        public PostingList evaluate(TagIndex index) {
+            PostingList result = new PostingList();
+
+            for (TagQuery query : queries)
+                result = PostingList.union(result, query.evaluate(index));
+
+            return result;
+        }
+
+        public String toString() {
+            return join(queries, " OR ");
+        }
+    }
+
+    private static class Not extends TagQuery {
+        final TagQuery query;
+
+        Not(TagQuery query) {
+            this.query = query;
+        }
+
+        @Override
+        public PostingList evaluate(TagIndex index) {
+            return PostingList.difference(index.all(), query.evaluate(index));
+        }
+
+        public String toString() {
+            return "NOT " + query;
+        }
+    }
+
+    private static String join(List<TagQuery> queries, String separator) {
+        StringBuilder builder = new StringBuilder("(");
+
+        for (int i = 0; i < queries.size(); i++) {
+            if (i > 0)
+                builder.append(separator);
+            builder.append(queries.get(i));
+        }
+
+        return builder.append(')').toString();
+    }
+
+    /**
+     * Recursive descent parser over the tokens of a query.
+     */
+    private static class Parser {
+        private final ArrayList<Token> tokens = new ArrayList<Token>();
+        private final int length;
+        private int position;
+
+        Parser(String text) throws ParseException {
+            int index = 0;
+            length = text.length();
+
+            while (index < text.length()) {
+                char c = text.charAt(index);
+
+                if (Character.isWhitespace(c)) {
+                    index++;
+                } else if (c == '(' || c == ')' || c == '=' || c == '~') {
+                    tokens.add(new Token(String.valueOf(c), index, false));
+                    index++;
+                } else if (c == '"') {
+                    StringBuilder value = new StringBuilder();
+                    int start = index++;
+
+                    while (index < text.length() && text.charAt(index) != '"') {
+                        if (text.charAt(index) == '\\' && index + 1 < text.length())
+                            index++;
+                        value.append(text.charAt(index++));
+                    }
+
+                    if (index == text.length())
+                        throw new ParseException("Unterminated quote", start);
+
+                    tokens.add(new Token(value.toString(), start, true));
+                    index++;
+                } else {
+                    int start = index;
+
+                    while (index < text.length() && !Character.isWhitespace(text.charAt(index))
+                            && "()=~\"".indexOf(text.charAt(index)) < 0)
+                        index++;
+
+                    tokens.add(new Token(text.substring(start, index), start, false));
+                }
+            }
+        }
+
+        Token peek() {
+            return position < tokens.size() ? tokens.get(position) : null;
+        }
+
+        boolean accept(String keyword) {
+            Token token = peek();
+
+            if (token != null && !token.quoted && token.text.equalsIgnoreCase(keyword)) {
+                position++;
+                return true;
+            }
+
+            return false;
+        }
+
+        TagQuery parseOr() throws ParseException {
+            ArrayList<TagQuery> queries = new ArrayList<TagQuery>();
+            queries.add(parseAnd());
+
+            while (accept("OR"))
+                queries.add(parseAnd());
+
+            return queries.size() == 1 ? queries.get(0) : new Or(queries);
+        }
+
+        TagQuery parseAnd() throws ParseException {
+            ArrayList<TagQuery> queries = new ArrayList<TagQuery>();
+            queries.add(parseUnary());
+
+            while (accept("AND"))
+                queries.add(parseUnary());
+
+            return queries.size() == 1 ? queries.get(0) : new And(queries);
+        }
+
+        TagQuery parseUnary() throws ParseException {
+            if (accept("NOT"))
+                return new Not(parseUnary());
+
+            if (accept("(")) {
+                TagQuery query = parseOr();
+                if (!accept(")"))
+                    throw error("Expected \")\"");
+
+                return query;
+            }
+
+            Token token = next("Expected a tag");
+
+            if (accept("="))
+                return equalTo(token.text, next("Expected a value").text);
+            if (accept("~"))
+                return contains(token.text, next("Expected a value").text);
+
+            return contains(null, token.text);
+        }
+
+        private Token next(String message) throws ParseException {
+            Token token = peek();
+            if (token == null || !token.quoted && isReserved(token.text))
+                throw error(message);
+
+            position++;
+            return token;
+        }
+
+        private ParseException error(String message) {
+            Token token = peek();
+            return new ParseException(message, token == null ? length : token.offset);
+        }
+
+        private static boolean isReserved(String word) {
+            return word.equalsIgnoreCase("AND") || word.equalsIgnoreCase("OR") || word.equalsIgnoreCase("NOT")
+                    || "()=~".contains(word);
+        }
+    }
+
+    private static class Token {
+        final String text;
+        final int offset;
+        final boolean quoted;
+
+        Token(String text, int offset, boolean quoted) {
+            this.text = text;
+            this.offset = offset;
+            this.quoted = quoted;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package cs213.photoapp78.storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+
+/**
+ * Content-addressed store for image bytes kept under the app's data directory.
+ * Every blob is written once and named by the SHA-256 of its contents, so the
+ * model only needs to hold the key.
+ */
+public class BlobStore {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static BlobStore instance;
+
+    private final File directory;
+
+    private BlobStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Initializes the shared store. Calling this again with the same directory has no effect.
+     *
+     * @param directory directory the blobs are kept in
+     */
+    public static synchronized void initialize(String directory) {
+        if (instance == null || !instance.directory.getPath().equals(directory))
+            instance = new BlobStore(new File(directory));
+    }
+
+    /**
+     * Returns the shared store
+     *
+     * @return the store set up by {@link #initialize(String)}
+     */
+    public static synchronized BlobStore getInstance() {
+        if (instance == null)
+            throw new IllegalStateException("BlobStore has not been initialized");
+
+        return instance;
+    }
+
+    /**
+     * Stores the bytes unless a blob with the same contents already exists.
+     *
+     * @param bytes contents of the blob
+     * @return the key the blob can be read back with
+     * @throws IOException if the blob could not be written
+     */
+    public String put(byte[] bytes) throws IOException {
+        String key = hash(bytes);
+        File file = getFile(key);
+
+        if (file.isFile()) {
+            // keeps the blob from being swept before the new reference is saved
+            file.setLastModified(System.currentTimeMillis());
+            return key;
+        }
+
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs())
+            throw new IOException("Could not create " + parent);
+
+        File temp = File.createTempFile(key, ".tmp", parent);
+        FileOutputStream fileOutputStream = new FileOutputStream(temp);
+        try {
+            fileOutputStream.write(bytes);
+        } finally {
+            fileOutputStream.close();
+        }
+
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not store blob " + key);
+        }
+
+        return key;
+    }
+
+    /**
+     * Copies a stream into the store, hashing the bytes as they are copied, so the
+     * contents never have to be held in memory. The stream is read to the end but not
+     * closed.
+     *
+     * @param in contents of the blob
+     * @return the key the blob can be read back with
+     * @throws IOException if the stream could not be read or the blob not written
+     */
+    public String put(InputStream in) throws IOException {
+        File temporaryDirectory = new File(directory, "tmp");
+        if (!temporaryDirectory.isDirectory() && !temporaryDirectory.mkdirs())
+            throw new IOException("Could not create " + temporaryDirectory);
+
+        MessageDigest digest = newDigest();
+        File temp = File.createTempFile("blob", ".tmp", temporaryDirectory);
+        FileOutputStream fileOutputStream = new FileOutputStream(temp);
+        byte[] buffer = new byte[BUFFER_SIZE];
+
+        try {
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                digest.update(buffer, 0, read);
+                fileOutputStream.write(buffer, 0, read);
+            }
+        } catch (IOException exception) {
+            fileOutputStream.close();
+            temp.delete();
+            throw exception;
+        }
+        fileOutputStream.close();
+
+        String key = toHex(digest.digest());
+        File file = getFile(key);
+
+        if (file.isFile()) {
+            temp.delete();
+            file.setLastModified(System.currentTimeMillis());
+            return key;
+        }
+
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            temp.delete();
+            throw new IOException("Could not create " + parent);
+        }
+
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not store blob " + key);
+        }
+
+        return key;
+    }
+
+    /**
+     * Reads a blob fully into memory
+     *
+     * @param key key returned by {@link #put(byte[])}
+     * @return contents of the blob
+     * @throws IOException if the blob is missing or unreadable
+     */
+    public byte[] get(String key) throws IOException {
+        File file = getFile(key);
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream fileInputStream = new FileInputStream(file);
+
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                int read = fileInputStream.read(bytes, offset, bytes.length - offset);
+                if (read < 0)
+                    throw new IOException("Blob " + key + " is truncated");
+                offset += read;
+            }
+        } finally {
+            fileInputStream.close();
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Returns the file backing a blob. Blobs are spread over subdirectories named
+     * after the first two characters of their key.
+     *
+     * @param key key of the blob
+     * @return the file holding the blob
+     */
+    public File getFile(String key) {
+        return new File(new File(directory, key.substring(0, 2)), key);
+    }
+
+    /**
+     * Checks whether a blob is present
+     *
+     * @param key key of the blob
+     * @return true if the blob is stored, false otherwise
+     */
+    public boolean contains(String key) {
+        return getFile(key).isFile();
+    }
+
+    /**
+     * Removes a blob
+     *
+     * @param key key of the blob
+     * @return true if the blob was removed, false otherwise
+     */
+    public boolean delete(String key) {
+        return getFile(key).delete();
+    }
+
+    /**
+     * Deletes every blob that is neither in use nor recently written. Blobs written while
+     * a photo is being imported are not referenced by any saved album yet, so only blobs
+     * older than the given age are deleted. Temporary files left by interrupted writes
+     * are deleted the same way.
+     *
+     * @param live   keys of the blobs in use
+     * @param minAge age in milliseconds a blob must have to be deleted
+     * @return number of blobs deleted
+     */
+    public int sweep(Set<String> live, long minAge) {
+        File[] subdirectories = directory.listFiles();
+        if (subdirectories == null)
+            return 0;
+
+        long cutoff = System.currentTimeMillis() - minAge;
+        int deleted = 0;
+
+        for (File subdirectory : subdirectories) {
+            File[] files = subdirectory.listFiles();
+            if (files == null)
+                continue;
+
+            for (File file : files)
+                if (!live.contains(file.getName()) && file.lastModified() < cutoff && file.delete())
+                    deleted++;
+        }
+
+        return deleted;
+    }
+
+    private static String hash(byte[] bytes) {
+        return toHex(newDigest().digest(bytes));
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+
+        for (int index = 0; index < bytes.length; index++) {
+            chars[index * 2] = HEX[(bytes[index] >> 4) & 0xf];
+            chars[index * 2 + 1] = HEX[bytes[index] & 0xf];
+        }
+
+        return new String(chars);
+    }
+}
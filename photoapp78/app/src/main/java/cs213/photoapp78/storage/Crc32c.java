@@ -0,0 +1,117 @@
+package cs213.photoapp78.storage;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli) checksum, as used by iSCSI and ext4. The platform only offers
+ * {@link java.util.zip.CRC32C} from API level 34, so this is a table-driven version
+ * processing eight bytes per step.
+ */
+public class Crc32c implements Checksum {
+    private static final int POLYNOMIAL = 0x82F63B78;
+    private static final int[][] TABLES = new int[8][256];
+
+    static {
+        for (int value = 0; value < 256; value++) {
+            int crc = value;
+            for (int bit = 0; bit < 8; bit++)
+                crc = (crc >>> 1) ^ (POLYNOMIAL & -(crc & 1));
+            TABLES[0][value] = crc;
+        }
+
+        for (int value = 0; value < 256; value++)
+            for (int table = 1; table < 8; table++)
+                TABLES[table][value] = (TABLES[table - 1][value] >>> 8) ^ TABLES[0][TABLES[table - 1][value] & 0xFF];
+    }
+
+    private int crc = 0xFFFFFFFF;
+
+    /**
+     * Computes the checksum of part of an array
+     *
+     * @param bytes  the array
+     * @param offset start of the part
+     * @param length length of the part
+     * @return the checksum
+     */
+    public static int of(byte[] bytes, int offset, int length) {
+        Crc32c checksum = new Crc32c();
+        checksum.update(bytes, offset, length);
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * Computes the checksum of part of a buffer without changing its position
+     *
+     * @param buffer the buffer
+     * @param offset start of the part
+     * @param length length of the part
+     * @return the checksum
+     */
+    public static int of(ByteBuffer buffer, int offset, int length) {
+        Crc32c checksum = new Crc32c();
+        checksum.update(buffer, offset, length);
+        return (int) checksum.getValue();
+    }
+
+    @Override
+    public void update(int b) {
+        crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xFF];
+    }
+
+    @Override
+    public void update(byte[] bytes, int offset, int length) {
+        int crc = this.crc;
+        int end = offset + length;
+
+        for (; offset + 8 <= end; offset += 8) {
+            int low = crc ^ ((bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8
+                    | (bytes[offset + 2] & 0xFF) << 16 | (bytes[offset + 3] & 0xFF) << 24);
+            crc = TABLES[7][low & 0xFF] ^ TABLES[6][(low >>> 8) & 0xFF]
+                    ^ TABLES[5][(low >>> 16) & 0xFF] ^ TABLES[4][low >>> 24]
+                    ^ TABLES[3][bytes[offset + 4] & 0xFF] ^ TABLES[2][bytes[offset + 5] & 0xFF]
+                    ^ TABLES[1][bytes[offset + 6] & 0xFF] ^ TABLES[0][bytes[offset + 7] & 0xFF];
+        }
+
+        for (; offset < end; offset++)
+            crc = (crc >>> 8) ^ TABLES[0][(crc ^ bytes[offset]) & 0xFF];
+
+        this.crc = crc;
+    }
+
+    /**
+     * Adds part of a buffer, e.g. a memory-mapped file, without changing its position
+     *
+     * @param buffer the buffer
+     * @param offset start of the part
+     * @param length length of the part
+     */
+    public void update(ByteBuffer buffer, int offset, int length) {
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + offset, length);
+            return;
+        }
+
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        byte[] chunk = new byte[Math.min(length, 64 * 1024)];
+
+        while (length > 0) {
+            int count = Math.min(length, chunk.length);
+            view.get(chunk, 0, count);
+            update(chunk, 0, count);
+            length -= count;
+        }
+    }
+
+    @Override
+    public long getValue() {
+        return ~crc & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xFFFFFFFF;
+    }
+}
@@ -0,0 +1,580 @@
+package cs213.photoapp78.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import cs213.photoapp78.metrics.Metrics;
+import cs213.photoapp78.model.Album;
+import cs213.photoapp78.model.Photo;
+import cs213.photoapp78.model.SerializableBitmap;
+import cs213.photoapp78.model.Tag;
+
+/**
+ * Append-only log of the edits made since the last snapshot of the albums.
+ * <p>
+ * The file starts with the generation of the snapshot it continues, followed by
+ * length-prefixed records. Albums, photos and tags are addressed by their position at
+ * the time of the edit, so replaying the records in order onto the snapshot rebuilds
+ * the albums exactly.
+ * <p>
+ * Records are collected in memory as edits happen and written out together by
+ * {@link #flush()}, which only the persistence thread calls.
+ * <p>
+ * Each record carries a {@link Crc32c} checksum, and replay stops at the first record
+ * that does not match it. When the journal is reset for a new snapshot, the old journal
+ * is kept next to it, so the previous snapshot can still be brought up to date if the new
+ * one is damaged.
+ */
+public class Journal {
+    private static final int MAGIC = 0x504A5243;
+    /**
+     * Journals written before records had checksums. They are rewritten with checksums
+     * when replayed.
+     */
+    private static final int LEGACY_MAGIC = 0x504A524E;
+
+    private static final byte ADD_ALBUM = 1;
+    private static final byte REMOVE_ALBUM = 2;
+    private static final byte RENAME_ALBUM = 3;
+    private static final byte ADD_PHOTO = 4;
+    private static final byte COPY_PHOTO = 5;
+    private static final byte REMOVE_PHOTO = 6;
+    private static final byte RECAPTION_PHOTO = 7;
+    private static final byte ADD_TAG = 8;
+    private static final byte REMOVE_TAG = 9;
+    private static final byte BATCH = 10;
+
+    private final File file;
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long generation;
+    private long length;
+
+    /**
+     * Creates a journal backed by the given file
+     *
+     * @param file the journal file
+     */
+    public Journal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Replays the journal onto a snapshot. A journal left over from an older generation
+     * is already contained in the snapshot and is discarded, and a record cut off or
+     * damaged by a crash is dropped with all records after it.
+     *
+     * @param generation generation of the snapshot
+     * @param albums     albums read from the snapshot
+     * @return number of records replayed
+     * @throws IOException if the journal could not be read or reset
+     */
+    public int replay(long generation, ArrayList<Album> albums) throws IOException {
+        if (!file.isFile()) {
+            reset(generation);
+            return 0;
+        }
+
+        Replay replay = read(file, generation, albums);
+
+        if (replay == null) {
+            reset(generation);
+            return 0;
+        }
+
+        if (replay.legacyRecords != null) {
+            rewrite(generation, replay.legacyRecords);
+            return replay.count;
+        }
+
+        if (replay.length < file.length()) {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            randomAccessFile.setLength(replay.length);
+            randomAccessFile.close();
+        }
+
+        this.generation = generation;
+        this.length = replay.length;
+        return replay.count;
+    }
+
+    /**
+     * Replays the journal that was replaced by the last reset, for loading the previous
+     * snapshot when the current one is damaged. The file is left as it is.
+     *
+     * @param generation generation of the previous snapshot
+     * @param albums     albums read from the previous snapshot
+     * @return true if the journal continued that snapshot and was replayed, false otherwise
+     * @throws IOException if the journal could not be read
+     */
+    public boolean replayPrevious(long generation, ArrayList<Album> albums) throws IOException {
+        File previous = previous();
+        return previous.isFile() && read(previous, generation, albums) != null;
+    }
+
+    /**
+     * Applies the valid records of a journal file
+     *
+     * @return the outcome, or null if the file does not continue the given generation
+     */
+    private static Replay read(File file, long generation, ArrayList<Album> albums) throws IOException {
+        Replay replay = new Replay();
+        long fileLength = file.length();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+        try {
+            int magic = in.readInt();
+            if ((magic != MAGIC && magic != LEGACY_MAGIC) || in.readLong() != generation)
+                return null;
+
+            boolean checked = magic == MAGIC;
+            if (!checked)
+                replay.legacyRecords = new ArrayList<byte[]>();
+            replay.length = 12;
+
+            while (true) {
+                int size = in.readInt();
+                int checksum = checked ? in.readInt() : 0;
+                if (size < 0 || size > fileLength - replay.length)
+                    break;
+
+                byte[] record = new byte[size];
+                in.readFully(record);
+                if (checked && Crc32c.of(record, 0, size) != checksum)
+                    break;
+
+                apply(new DataInputStream(new ByteArrayInputStream(record)), albums);
+                replay.length += (checked ? 8 : 4) + size;
+                replay.count++;
+                if (!checked)
+                    replay.legacyRecords.add(record);
+            }
+        } catch (EOFException endOfJournal) {
+            // clean end of file or a record torn by a crash
+        } finally {
+            in.close();
+        }
+
+        return replay.length < 12 ? null : replay;
+    }
+
+    /**
+     * Empties the journal after a snapshot of the given generation was written
+     *
+     * @param generation generation of the new snapshot
+     * @throws IOException if the journal could not be written
+     */
+    public void reset(long generation) throws IOException {
+        File temp = writeTemp(generation, new ArrayList<byte[]>());
+
+        if (file.isFile() && !file.renameTo(previous())) {
+            temp.delete();
+            throw new IOException("Could not keep " + file);
+        }
+        if (!temp.renameTo(file))
+            throw new IOException("Could not replace " + file);
+
+        this.generation = generation;
+        this.length = 12;
+    }
+
+    /**
+     * Replaces a journal written before records had checksums with the same records
+     * carrying checksums
+     */
+    private void rewrite(long generation, List<byte[]> records) throws IOException {
+        File temp = writeTemp(generation, records);
+
+        if (!temp.renameTo(file))
+            throw new IOException("Could not replace " + file);
+
+        this.generation = generation;
+        this.length = file.length();
+    }
+
+    private File writeTemp(long generation, List<byte[]> records) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOutputStream = new FileOutputStream(temp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOutputStream));
+
+        try {
+            out.writeInt(MAGIC);
+            out.writeLong(generation);
+            for (byte[] record : records)
+                writeRecord(out, record);
+            out.flush();
+            fileOutputStream.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        return temp;
+    }
+
+    private File previous() {
+        return new File(file.getPath() + ".prev");
+    }
+
+    /**
+     * Returns the generation of the snapshot this journal continues
+     *
+     * @return the generation
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Returns the size of the journal file including records not yet written
+     *
+     * @return size in bytes
+     */
+    public synchronized long getLength() {
+        return length + pending.size();
+    }
+
+    /**
+     * Appends all records collected so far to the journal file in a single write and
+     * syncs the file to disk
+     *
+     * @throws IOException if the records could not be written; they are kept for the
+     *                     next attempt
+     */
+    public void flush() throws IOException {
+        byte[] bytes;
+        synchronized (this) {
+            if (pending.size() == 0)
+                return;
+
+            bytes = pending.toByteArray();
+        }
+
+        Metrics.Section section = Metrics.begin("journal.flush");
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(bytes);
+            out.getFD().sync();
+            Metrics.counter("journal.bytesWritten").add(bytes.length);
+        } finally {
+            out.close();
+            section.end();
+        }
+
+        synchronized (this) {
+            byte[] all = pending.toByteArray();
+            pending = new ByteArrayOutputStream();
+            pending.write(all, bytes.length, all.length - bytes.length);
+            length += bytes.length;
+        }
+    }
+
+    /**
+     * Drops the records collected so far because a snapshot taken at the same time
+     * already contains them.
+     */
+    public synchronized void discardPending() {
+        pending = new ByteArrayOutputStream();
+    }
+
+    /**
+     * Records a new album
+     *
+     * @param album the new album
+     * @throws IOException if the record could not be encoded
+     */
+    public void addAlbum(Album album) throws IOException {
+        Record record = new Record(ADD_ALBUM);
+        record.out.writeUTF(album.getName());
+        record.out.writeInt(album.getId());
+        append(record);
+    }
+
+    /**
+     * Records the removal of an album
+     *
+     * @param album position of the album
+     * @throws IOException if the record could not be encoded
+     */
+    public void removeAlbum(int album) throws IOException {
+        Record record = new Record(REMOVE_ALBUM);
+        record.out.writeInt(album);
+        append(record);
+    }
+
+    /**
+     * Records the renaming of an album
+     *
+     * @param album position of the album
+     * @param name  new name of the album
+     * @throws IOException if the record could not be encoded
+     */
+    public void renameAlbum(int album, String name) throws IOException {
+        Record record = new Record(RENAME_ALBUM);
+        record.out.writeInt(album);
+        record.out.writeUTF(name);
+        append(record);
+    }
+
+    /**
+     * Records a photo added to the end of an album
+     *
+     * @param album position of the album
+     * @param photo the new photo
+     * @throws IOException if the record could not be encoded
+     */
+    public void addPhoto(int album, Photo photo) throws IOException {
+        append(encodeAddPhoto(album, photo));
+    }
+
+    /**
+     * Records photos added to the end of an album together. The photos are written as a
+     * single record, so after a crash either all or none of them are replayed.
+     *
+     * @param album  position of the album
+     * @param photos the new photos
+     * @throws IOException if the record could not be encoded
+     */
+    public void addPhotos(int album, List<Photo> photos) throws IOException {
+        Record record = new Record(BATCH);
+        record.out.writeInt(photos.size());
+
+        for (Photo photo : photos) {
+            byte[] bytes = encodeAddPhoto(album, photo).bytes.toByteArray();
+            record.out.writeInt(bytes.length);
+            record.out.write(bytes);
+        }
+        append(record);
+    }
+
+    private static Record encodeAddPhoto(int album, Photo photo) throws IOException {
+        Record record = new Record(ADD_PHOTO);
+        SerializableBitmap image = photo.getImage();
+        record.out.writeInt(album);
+        record.out.writeUTF(photo.getCaption());
+        record.out.writeUTF(image.getKey());
+        record.out.writeInt(image.getWidth());
+        record.out.writeInt(image.getHeight());
+        record.out.writeInt(photo.getTags().size());
+
+        for (Tag tag : photo.getTags()) {
+            record.out.writeUTF(tag.getName());
+            record.out.writeUTF(tag.getValue());
+        }
+        record.out.writeUTF(image.getThumbnailKey() == null ? "" : image.getThumbnailKey());
+        record.out.writeInt(photo.getId());
+        record.out.writeBoolean(image.hasPerceptualHash());
+        record.out.writeLong(image.getPerceptualHash());
+        record.out.writeUTF(image.getFormat() == null ? "" : image.getFormat());
+        record.out.writeUTF(image.getThumbnailFormat() == null ? "" : image.getThumbnailFormat());
+        return record;
+    }
+
+    /**
+     * Records a photo added to the end of another album. The albums then share the photo.
+     *
+     * @param source      position of the album holding the photo
+     * @param photo       position of the photo in the source album
+     * @param destination position of the album the photo is added to
+     * @throws IOException if the record could not be encoded
+     */
+    public void copyPhoto(int source, int photo, int destination) throws IOException {
+        Record record = new Record(COPY_PHOTO);
+        record.out.writeInt(source);
+        record.out.writeInt(photo);
+        record.out.writeInt(destination);
+        append(record);
+    }
+
+    /**
+     * Records the removal of a photo from an album
+     *
+     * @param album position of the album
+     * @param photo position of the photo
+     * @throws IOException if the record could not be encoded
+     */
+    public void removePhoto(int album, int photo) throws IOException {
+        Record record = new Record(REMOVE_PHOTO);
+        record.out.writeInt(album);
+        record.out.writeInt(photo);
+        append(record);
+    }
+
+    /**
+     * Records a new caption of a photo
+     *
+     * @param album   position of the album
+     * @param photo   position of the photo
+     * @param caption the new caption
+     * @throws IOException if the record could not be encoded
+     */
+    public void recaptionPhoto(int album, int photo, String caption) throws IOException {
+        Record record = new Record(RECAPTION_PHOTO);
+        record.out.writeInt(album);
+        record.out.writeInt(photo);
+        record.out.writeUTF(caption);
+        append(record);
+    }
+
+    /**
+     * Records a tag added to a photo
+     *
+     * @param album position of the album
+     * @param photo position of the photo
+     * @param tag   the new tag
+     * @throws IOException if the record could not be encoded
+     */
+    public void addTag(int album, int photo, Tag tag) throws IOException {
+        Record record = new Record(ADD_TAG);
+        record.out.writeInt(album);
+        record.out.writeInt(photo);
+        record.out.writeUTF(tag.getName());
+        record.out.writeUTF(tag.getValue());
+        append(record);
+    }
+
+    /**
+     * Records the removal of a tag from a photo
+     *
+     * @param album position of the album
+     * @param photo position of the photo
+     * @param tag   position of the tag
+     * @throws IOException if the record could not be encoded
+     */
+    public void removeTag(int album, int photo, int tag) throws IOException {
+        Record record = new Record(REMOVE_TAG);
+        record.out.writeInt(album);
+        record.out.writeInt(photo);
+        record.out.writeInt(tag);
+        append(record);
+    }
+
+    private synchronized void append(Record record) throws IOException {
+        writeRecord(new DataOutputStream(pending), record.bytes.toByteArray());
+    }
+
+    private static void writeRecord(DataOutputStream out, byte[] record) throws IOException {
+        out.writeInt(record.length);
+        out.writeInt(Crc32c.of(record, 0, record.length));
+        out.write(record);
+    }
+
+    private static void apply(DataInputStream in, ArrayList<Album> albums) throws IOException {
+        byte operation = in.readByte();
+
+        switch (operation) {
+            case ADD_ALBUM: {
+                Album album = new Album(in.readUTF());
+                // records written before ids existed end after the name
+                if (in.available() > 0)
+                    album.setId(in.readInt());
+                albums.add(album);
+                break;
+            }
+            case REMOVE_ALBUM:
+                albums.remove(in.readInt());
+                break;
+            case RENAME_ALBUM:
+                albums.get(in.readInt()).setName(in.readUTF());
+                break;
+            case ADD_PHOTO: {
+                Album album = albums.get(in.readInt());
+                String caption = in.readUTF(), key = in.readUTF();
+                int width = in.readInt(), height = in.readInt();
+                ArrayList<Tag> tags = new ArrayList<Tag>();
+
+                for (int count = in.readInt(); count > 0; count--)
+                    tags.add(new Tag(in.readUTF(), in.readUTF()));
+
+                // older records end after the tags, the thumbnail, the id or the hash
+                String thumbnailKey = in.available() > 0 ? in.readUTF() : "";
+                int id = in.available() > 0 ? in.readInt() : 0;
+                boolean hashed = in.available() > 0 && in.readBoolean();
+                long hash = in.available() > 0 ? in.readLong() : 0;
+                String format = in.available() > 0 ? in.readUTF() : "";
+                String thumbnailFormat = in.available() > 0 ? in.readUTF() : "";
+
+                Photo photo = new Photo(caption, new SerializableBitmap(key,
+                        format.isEmpty() ? null : format, thumbnailKey.isEmpty() ? null : thumbnailKey,
+                        thumbnailFormat.isEmpty() ? null : thumbnailFormat, width, height));
+                photo.setId(id);
+                if (hashed)
+                    photo.getImage().setPerceptualHash(hash);
+                photo.getTags().addAll(tags);
+                album.addPhoto(photo);
+                break;
+            }
+            case COPY_PHOTO: {
+                Photo photo = albums.get(in.readInt()).getPhotos().get(in.readInt());
+                albums.get(in.readInt()).addPhoto(photo);
+                break;
+            }
+            case REMOVE_PHOTO:
+                albums.get(in.readInt()).removePhoto(in.readInt());
+                break;
+            case RECAPTION_PHOTO: {
+                Photo photo = albums.get(in.readInt()).getPhotos().get(in.readInt());
+                String previous = photo.getCaption();
+                photo.setCaption(in.readUTF());
+
+                for (Album album : albums)
+                    if (album.contains(photo))
+                        album.captionChanged(photo, previous);
+                break;
+            }
+            case ADD_TAG: {
+                Photo photo = albums.get(in.readInt()).getPhotos().get(in.readInt());
+                photo.getTags().add(new Tag(in.readUTF(), in.readUTF()));
+                break;
+            }
+            case REMOVE_TAG: {
+                Photo photo = albums.get(in.readInt()).getPhotos().get(in.readInt());
+                photo.getTags().remove(in.readInt());
+                break;
+            }
+            case BATCH:
+                for (int count = in.readInt(); count > 0; count--) {
+                    byte[] record = new byte[in.readInt()];
+                    in.readFully(record);
+                    apply(new DataInputStream(new ByteArrayInputStream(record)), albums);
+                }
+                break;
+            default:
+                throw new IOException("Unknown journal record " + operation);
+        }
+    }
+
+    /**
+     * Outcome of reading a journal file.
+     */
+    private static class Replay {
+        int count;
+        long length;
+        /**
+         * Records of a journal without checksums, to be rewritten with them
+         */
+        ArrayList<byte[]> legacyRecords;
+    }
+
+    /**
+     * Buffer a single record is encoded into before it is appended.
+     */
+    private static class Record {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+
+        Record(byte operation) throws IOException {
+            out.writeByte(operation);
+        }
+    }
+}
@@ -0,0 +1,593 @@
+package cs213.photoapp78.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+
+import cs213.photoapp78.model.Album;
+import cs213.photoapp78.model.Photo;
+import cs213.photoapp78.model.SerializableBitmap;
+import cs213.photoapp78.model.Tag;
+
+/**
+ * Snapshot of the library in a binary file that is memory-mapped and read in place.
+ * <p>
+ * The file starts with a fixed header, followed by a table of fixed-size album records,
+ * a table of fixed-size photo records sorted by photo id, and a data area holding the
+ * strings, tag lists and photo id lists the records point to. Any album or photo can be
+ * read by computing the position of its record, so only the pages holding what is
+ * actually read are loaded from disk.
+ * <p>
+ * Strings are stored once however many records use them, so tag names and image formats
+ * take a few bytes per file rather than per photo. String lengths and the photo ids of
+ * albums are written as varints, the ids as differences from the previous id.
+ * <p>
+ * The header stores the size of each record and the oldest version able to read the file.
+ * A version that only appends fields to the records keeps that version, so older readers
+ * skip the new fields, while a version changing the layout raises it and older readers
+ * refuse the file instead of misreading it. The model classes themselves are no longer
+ * serialized, so they can change freely.
+ * <p>
+ * The header, the record tables and the data area each carry a {@link Crc32c} checksum.
+ * The header and the tables are checked when the file is opened, so the counts and
+ * offsets in the records can be trusted. The data area is most of the file and is only
+ * checked by {@link #verify()}, which must pass before anything read from the file is
+ * written elsewhere. Until then, what the records point to is read with bounds checks,
+ * and damage found that way is reported as an {@link IOException}.
+ */
+public class LibraryFile {
+    private static final int MAGIC = 0x504C4942;
+    private static final int VERSION = 3;
+    private static final int COMPATIBLE_VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+    private static final int ALBUM_RECORD_SIZE = 20;
+    private static final int PHOTO_RECORD_SIZE = 56;
+    private static final int NULL = -1;
+    private static final int HASHED = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer buffer;
+    private final int version;
+    private final HashMap<Integer, String> strings = new HashMap<Integer, String>();
+    private final long generation;
+    private final int nextAlbumId, nextPhotoId;
+    private final int albumCount, albumRecordSize, albumTable;
+    private final int photoCount, photoRecordSize, photoTable;
+    private volatile boolean verified;
+
+    private LibraryFile(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+            throw new IOException("Not a library file");
+        version = buffer.getInt(4);
+        int compatibleVersion = version >= 2 ? buffer.getInt(48) : version;
+        if (compatibleVersion > VERSION)
+            throw new IOException("Library file version " + version + " is not supported");
+
+        generation = buffer.getLong(8);
+        nextAlbumId = buffer.getInt(16);
+        nextPhotoId = buffer.getInt(20);
+        albumCount = buffer.getInt(24);
+        albumRecordSize = buffer.getInt(28);
+        albumTable = buffer.getInt(32);
+        photoCount = buffer.getInt(36);
+        photoRecordSize = buffer.getInt(40);
+        photoTable = buffer.getInt(44);
+
+        if (albumRecordSize < ALBUM_RECORD_SIZE || photoRecordSize < PHOTO_RECORD_SIZE)
+            throw new IOException("Library file records are too short");
+        if ((long) albumTable + (long) albumCount * albumRecordSize > buffer.capacity()
+                || (long) photoTable + (long) photoCount * photoRecordSize > buffer.capacity())
+            throw new IOException("Library file is truncated");
+
+        if (version >= 3 && (Crc32c.of(buffer, 0, 60) != buffer.getInt(60)
+                || Crc32c.of(buffer, albumTable, getDataStart() - albumTable) != buffer.getInt(52)))
+            throw new IOException("Library file is damaged");
+    }
+
+    /**
+     * Maps a library file into memory
+     *
+     * @param file the file
+     * @return the mapped file
+     * @throws IOException if the file could not be mapped or is not a library file
+     */
+    public static LibraryFile open(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new LibraryFile(buffer);
+        } finally {
+            // the mapping stays valid after the file is closed
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Reads a library file held in memory
+     *
+     * @param bytes contents of the file
+     * @return the library file
+     * @throws IOException if the bytes are not a library file
+     */
+    public static LibraryFile wrap(byte[] bytes) throws IOException {
+        return new LibraryFile(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Encodes the library
+     *
+     * @param albums      all albums, which need not have read their photos
+     * @param photos      every photo held by the albums, sorted by id
+     * @param references  number of albums holding each photo, in the order of the photos
+     * @param generation  generation of the journal continuing this snapshot
+     * @param nextAlbumId id the next new album gets
+     * @param nextPhotoId id the next new photo gets
+     * @return contents of the file
+     * @throws IOException if the library could not be encoded
+     */
+    public static byte[] encode(List<Album> albums, List<Photo> photos, int[] references, long generation,
+                                int nextAlbumId, int nextPhotoId) throws IOException {
+        int albumTable = HEADER_SIZE;
+        int photoTable = albumTable + albums.size() * ALBUM_RECORD_SIZE;
+        Data data = new Data(photoTable + photos.size() * PHOTO_RECORD_SIZE);
+
+        HashMap<Integer, Photo> photosById = new HashMap<Integer, Photo>();
+        for (Photo photo : photos)
+            photosById.put(photo.getId(), photo);
+
+        ByteArrayOutputStream tableBytes = new ByteArrayOutputStream();
+        DataOutputStream tables = new DataOutputStream(tableBytes);
+
+        for (Album album : albums) {
+            int[] ids = album.getPhotoIds();
+            Photo first = ids.length == 0 ? null : photosById.get(ids[0]);
+            String cover = first == null ? null : first.getImage().getThumbnailKey();
+
+            tables.writeInt(album.getId());
+            tables.writeInt(data.string(album.getName()));
+            tables.writeInt(ids.length);
+            tables.writeInt(data.ids(ids));
+            tables.writeInt(data.string(cover));
+        }
+
+        for (int index = 0; index < photos.size(); index++) {
+            Photo photo = photos.get(index);
+            SerializableBitmap image = photo.getImage();
+
+            tables.writeInt(photo.getId());
+            tables.writeInt(data.string(photo.getCaption()));
+            tables.writeInt(data.string(image.getKey()));
+            tables.writeInt(data.string(image.getFormat()));
+            tables.writeInt(data.string(image.getThumbnailKey()));
+            tables.writeInt(data.string(image.getThumbnailFormat()));
+            tables.writeInt(image.getWidth());
+            tables.writeInt(image.getHeight());
+            tables.writeInt(image.hasPerceptualHash() ? HASHED : 0);
+            tables.writeLong(image.getPerceptualHash());
+            tables.writeInt(photo.getTags().size());
+            tables.writeInt(data.tags(photo.getTags()));
+            tables.writeInt(references[index]);
+        }
+
+        ByteArrayOutputStream fileBytes = new ByteArrayOutputStream(data.offset());
+        DataOutputStream file = new DataOutputStream(fileBytes);
+        file.writeInt(MAGIC);
+        file.writeInt(VERSION);
+        file.writeLong(generation);
+        file.writeInt(nextAlbumId);
+        file.writeInt(nextPhotoId);
+        file.writeInt(albums.size());
+        file.writeInt(ALBUM_RECORD_SIZE);
+        file.writeInt(albumTable);
+        file.writeInt(photos.size());
+        file.writeInt(PHOTO_RECORD_SIZE);
+        file.writeInt(photoTable);
+        file.writeInt(COMPATIBLE_VERSION);
+        file.write(new byte[HEADER_SIZE - file.size()]);
+
+        tables.flush();
+        tableBytes.writeTo(file);
+        data.bytes.writeTo(file);
+        file.flush();
+
+        byte[] bytes = fileBytes.toByteArray();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.putInt(52, Crc32c.of(bytes, albumTable, data.start - albumTable));
+        buffer.putInt(56, Crc32c.of(bytes, data.start, bytes.length - data.start));
+        buffer.putInt(60, Crc32c.of(bytes, 0, 60));
+        return bytes;
+    }
+
+    /**
+     * Checks the data area against its checksum. The file is read once for this, and
+     * later calls return right away.
+     *
+     * @throws IOException if the file is damaged
+     */
+    public void verify() throws IOException {
+        if (verified || version < 3)
+            return;
+
+        int data = getDataStart();
+        if (Crc32c.of(buffer, data, buffer.capacity() - data) != buffer.getInt(56))
+            throw new IOException("Library file is damaged");
+
+        verified = true;
+    }
+
+    /**
+     * Returns the generation of the journal continuing this snapshot
+     *
+     * @return the generation
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Returns the id the next new album gets
+     *
+     * @return the album id
+     */
+    public int getNextAlbumId() {
+        return nextAlbumId;
+    }
+
+    /**
+     * Returns the id the next new photo gets
+     *
+     * @return the photo id
+     */
+    public int getNextPhotoId() {
+        return nextPhotoId;
+    }
+
+    /**
+     * Returns the size of the file
+     *
+     * @return size in bytes
+     */
+    public int getLength() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Returns the number of albums
+     *
+     * @return the number of albums
+     */
+    public int getAlbumCount() {
+        return albumCount;
+    }
+
+    /**
+     * Returns the id of an album
+     *
+     * @param album position of the album
+     * @return the id
+     */
+    public int getAlbumId(int album) {
+        return buffer.getInt(albumRecord(album));
+    }
+
+    /**
+     * Returns the name of an album
+     *
+     * @param album position of the album
+     * @return the name
+     * @throws IOException if the name is damaged
+     */
+    public String getAlbumName(int album) throws IOException {
+        return string(buffer.getInt(albumRecord(album) + 4));
+    }
+
+    /**
+     * Returns the number of photos in an album
+     *
+     * @param album position of the album
+     * @return the number of photos
+     */
+    public int getAlbumPhotoCount(int album) {
+        return buffer.getInt(albumRecord(album) + 8);
+    }
+
+    /**
+     * Returns the ids of the photos in an album
+     *
+     * @param album position of the album
+     * @return the photo ids in album order
+     * @throws IOException if the ids are damaged
+     */
+    public int[] getAlbumPhotoIds(int album) throws IOException {
+        int record = albumRecord(album);
+        int count = buffer.getInt(record + 8);
+        int offset = buffer.getInt(record + 12);
+        // every id takes at least a byte
+        checkData(offset, version < 2 ? 4L * count : count);
+        int[] ids = new int[count];
+
+        if (version < 2) {
+            for (int index = 0; index < ids.length; index++)
+                ids[index] = buffer.getInt(offset + index * 4);
+            return ids;
+        }
+
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        int previous = 0;
+        for (int index = 0; index < ids.length; index++) {
+            int difference = readVarint(view);
+            previous += (difference >>> 1) ^ -(difference & 1);
+            ids[index] = previous;
+        }
+
+        return ids;
+    }
+
+    /**
+     * Returns the thumbnail of the first photo of an album
+     *
+     * @param album position of the album
+     * @return the blob key of the thumbnail, or null if the album is empty or the photo has
+     * no thumbnail yet
+     * @throws IOException if the key is damaged
+     */
+    public String getAlbumCoverKey(int album) throws IOException {
+        return string(buffer.getInt(albumRecord(album) + 16));
+    }
+
+    /**
+     * Returns the number of photos
+     *
+     * @return the number of distinct photos in all albums
+     */
+    public int getPhotoCount() {
+        return photoCount;
+    }
+
+    /**
+     * Finds the record of a photo
+     *
+     * @param id id of the photo
+     * @return position of the record, or -1 if there is no photo with this id
+     */
+    public int findPhoto(int id) {
+        int low = 0, high = photoCount - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int middleId = buffer.getInt(photoRecord(middle));
+
+            if (middleId < id)
+                low = middle + 1;
+            else if (middleId > id)
+                high = middle - 1;
+            else
+                return middle;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns the id of a photo
+     *
+     * @param photo position of the record
+     * @return the id
+     */
+    public int getPhotoId(int photo) {
+        return buffer.getInt(photoRecord(photo));
+    }
+
+    /**
+     * Returns the number of albums holding a photo
+     *
+     * @param photo position of the record
+     * @return the number of albums
+     */
+    public int getPhotoReferences(int photo) {
+        return buffer.getInt(photoRecord(photo) + 52);
+    }
+
+    /**
+     * Returns the caption of a photo without reading the rest of it
+     *
+     * @param photo position of the record
+     * @return the caption
+     * @throws IOException if the caption is damaged
+     */
+    public String getPhotoCaption(int photo) throws IOException {
+        return string(buffer.getInt(photoRecord(photo) + 4));
+    }
+
+    /**
+     * Returns the blob keys of the image and the thumbnail of a photo
+     *
+     * @param photo position of the record
+     * @return the image key, followed by the thumbnail key or null
+     * @throws IOException if the keys are damaged
+     */
+    public String[] getPhotoKeys(int photo) throws IOException {
+        int record = photoRecord(photo);
+        return new String[]{string(buffer.getInt(record + 8)), string(buffer.getInt(record + 16))};
+    }
+
+    /**
+     * Creates the photo stored in a record
+     *
+     * @param photo position of the record
+     * @return a new photo object
+     * @throws IOException if the strings or tags of the photo are damaged
+     */
+    public Photo readPhoto(int photo) throws IOException {
+        int record = photoRecord(photo);
+        SerializableBitmap image = new SerializableBitmap(string(buffer.getInt(record + 8)),
+                string(buffer.getInt(record + 12)), string(buffer.getInt(record + 16)),
+                string(buffer.getInt(record + 20)), buffer.getInt(record + 24), buffer.getInt(record + 28));
+
+        if ((buffer.getInt(record + 32) & HASHED) != 0)
+            image.setPerceptualHash(buffer.getLong(record + 36));
+
+        Photo result = new Photo(string(buffer.getInt(record + 4)), image);
+        result.setId(buffer.getInt(record));
+
+        int tags = buffer.getInt(record + 44), offset = buffer.getInt(record + 48);
+        checkData(offset, 8L * tags);
+        for (int index = 0; index < tags; index++)
+            result.getTags().add(new Tag(string(buffer.getInt(offset + index * 8)),
+                    string(buffer.getInt(offset + index * 8 + 4))));
+
+        return result;
+    }
+
+    private int albumRecord(int album) {
+        if (album < 0 || album >= albumCount)
+            throw new IndexOutOfBoundsException("Album " + album + ", count " + albumCount);
+
+        return albumTable + album * albumRecordSize;
+    }
+
+    private int photoRecord(int photo) {
+        if (photo < 0 || photo >= photoCount)
+            throw new IndexOutOfBoundsException("Photo " + photo + ", count " + photoCount);
+
+        return photoTable + photo * photoRecordSize;
+    }
+
+    private int getDataStart() {
+        return photoTable + photoCount * photoRecordSize;
+    }
+
+    /**
+     * Checks that bytes a record points to are inside the file
+     */
+    private void checkData(int offset, long length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > buffer.capacity())
+            throw new IOException("Library file is damaged");
+    }
+
+    /**
+     * Reads a string. A string is stored once, so the same object is returned for every
+     * record using it.
+     */
+    private String string(int offset) throws IOException {
+        if (offset == NULL)
+            return null;
+
+        synchronized (strings) {
+            String value = strings.get(offset);
+            if (value != null)
+                return value;
+
+            checkData(offset, version < 2 ? 4 : 1);
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset);
+            int length = version < 2 ? view.getInt() : readVarint(view);
+            checkData(view.position(), length);
+            byte[] bytes = new byte[length];
+            view.get(bytes);
+
+            value = new String(bytes, UTF_8);
+            strings.put(offset, value);
+            return value;
+        }
+    }
+
+    private static int readVarint(ByteBuffer view) throws IOException {
+        int value = 0;
+
+        for (int shift = 0; ; shift += 7) {
+            if (shift > 28 || !view.hasRemaining())
+                throw new IOException("Library file is damaged");
+
+            byte next = view.get();
+            value |= (next & 0x7F) << shift;
+            if (next >= 0)
+                return value;
+        }
+    }
+
+    /**
+     * The data area while a file is encoded. Every method appends a value and returns its
+     * offset in the file.
+     */
+    private static class Data {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        final HashMap<String, Integer> written = new HashMap<String, Integer>();
+        final int start;
+
+        Data(int start) {
+            this.start = start;
+        }
+
+        int offset() {
+            return start + out.size();
+        }
+
+        int string(String value) throws IOException {
+            if (value == null)
+                return NULL;
+
+            Integer existing = written.get(value);
+            if (existing != null)
+                return existing;
+
+            int offset = offset();
+            byte[] encoded = value.getBytes(UTF_8);
+            varint(encoded.length);
+            out.write(encoded);
+            written.put(value, offset);
+            return offset;
+        }
+
+        int ids(int[] ids) throws IOException {
+            int offset = offset();
+            int previous = 0;
+
+            for (int id : ids) {
+                int difference = id - previous;
+                varint((difference << 1) ^ (difference >> 31));
+                previous = id;
+            }
+            return offset;
+        }
+
+        void varint(int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                out.writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte(value);
+        }
+
+        int ints(int[] values) throws IOException {
+            int offset = offset();
+            for (int value : values)
+                out.writeInt(value);
+            return offset;
+        }
+
+        int tags(List<Tag> tags) throws IOException {
+            int[] strings = new int[tags.size() * 2];
+            for (int index = 0; index < tags.size(); index++) {
+                strings[index * 2] = string(tags.get(index).getName());
+                strings[index * 2 + 1] = string(tags.get(index).getValue());
+            }
+
+            return ints(strings);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package cs213.photoapp78.storage;
+
+import android.util.Log;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a write task on a background thread some time after the data was marked dirty.
+ * Every change made while a write is pending is covered by that one write, so a burst
+ * of edits costs a single trip to disk.
+ */
+public class PersistenceExecutor {
+    private static final String TAG = "PersistenceExecutor";
+
+    private final ScheduledExecutorService executor;
+    private final Runnable write;
+    private final long delayMillis;
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicInteger writeCount = new AtomicInteger();
+
+    /**
+     * Creates an executor with its own writer thread
+     *
+     * @param writeTask   task that writes everything changed so far
+     * @param delayMillis how long to wait for further changes before writing
+     */
+    public PersistenceExecutor(final Runnable writeTask, long delayMillis) {
+        this.delayMillis = delayMillis;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "persistence");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        this.write = new Runnable() {
+            @Override
+            public void run() {
+                scheduled.set(false);
+                if (!dirty.getAndSet(false))
+                    return;
+
+                writeTask.run();
+                writeCount.incrementAndGet();
+            }
+        };
+    }
+
+    /**
+     * Notes that there are changes to write. The write is scheduled unless one is
+     * already pending.
+     */
+    public void markDirty() {
+        dirty.set(true);
+        if (scheduled.compareAndSet(false, true))
+            executor.schedule(write, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts writing pending changes right away instead of waiting for the delay to pass.
+     *
+     * @return a future completing once the write is done
+     */
+    public Future<?> flush() {
+        return executor.submit(write);
+    }
+
+    /**
+     * Writes all pending changes and waits for the write to finish
+     *
+     * @param timeout how long to wait
+     * @param unit    unit of the timeout
+     * @return true if the write finished in time, false if it did not or failed
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public boolean awaitFlush(long timeout, TimeUnit unit) throws InterruptedException {
+        try {
+            flush().get(timeout, unit);
+            return true;
+        } catch (TimeoutException exception) {
+            return false;
+        } catch (ExecutionException exception) {
+            Log.e(TAG, "Write failed", exception.getCause());
+            return false;
+        }
+    }
+
+    /**
+     * Runs a task on the writer thread, after the writes already started and before the
+     * ones started later
+     *
+     * @param task the task
+     */
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * Stops the writer thread once the writes already scheduled have run. Changes marked
+     * dirty afterwards are not written.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Returns how many writes have run, for tests that check writes are coalesced.
+     *
+     * @return number of completed writes
+     */
+    public int getWriteCount() {
+        return writeCount.get();
+    }
+}
@@ -0,0 +1,130 @@
+package cs213.photoapp78;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+import cs213.photoapp78.benchmark.Benchmark;
+import cs213.photoapp78.benchmark.SyntheticLibrary;
+import cs213.photoapp78.model.Album;
+import cs213.photoapp78.model.Photo;
+import cs213.photoapp78.search.TagQuery;
+import cs213.photoapp78.storage.BlobStore;
+
+import static org.junit.Assert.*;
+
+/**
+ * Times what the activities do with a library: saving it, loading it at startup, opening
+ * an album, searching tags and checking imports for duplicates. Each size writes its own
+ * report, see {@link Benchmark}.
+ */
+public class LibraryBenchmark {
+    private static final int PROBES = 1000;
+
+    @Before
+    public void assumeEnabled() {
+        Benchmark.assumeEnabled();
+    }
+
+    @Test
+    public void smallLibrary() throws Exception {
+        run(new Benchmark("LibraryBenchmark-small"), 10, 100, 2);
+    }
+
+    @Test
+    public void largeLibrary() throws Exception {
+        run(new Benchmark("LibraryBenchmark-large"), 100, 200, 3);
+    }
+
+    private static void run(Benchmark benchmark, int albums, int photosPerAlbum, int tagsPerPhoto) throws Exception {
+        final File dataDir = Benchmark.createDirectory("library");
+
+        try {
+            BlobStore.initialize(new File(dataDir, "blobs").getPath());
+            final SyntheticLibrary synthetic = new SyntheticLibrary(albums, photosPerAlbum, tagsPerPhoto, 0);
+            final List<Photo> probes = synthetic.createProbes(PROBES);
+            final String caption = synthetic.getCaption(0, photosPerAlbum / 2);
+            final TagQuery equalTo = TagQuery.parse("person=person17 OR location=location3");
+            final TagQuery contains = TagQuery.parse("person~son12 AND NOT event=event4");
+
+            benchmark.measure("save", 2, 10, new Benchmark.Task() {
+                @Override
+                public void run() throws Exception {
+                    synthetic.writeTo(dataDir);
+                }
+            });
+
+            benchmark.measure("load", 2, 10, new Benchmark.Task() {
+                @Override
+                public void run() throws Exception {
+                    PhotoLibrary library = PhotoLibrary.open(dataDir.getPath());
+                    assertEquals(synthetic.getAlbums().size(), library.getAlbums().size());
+                    library.close();
+                }
+            });
+
+            benchmark.measure("load and open an album", 2, 10, new Benchmark.Task() {
+                @Override
+                public void run() throws Exception {
+                    PhotoLibrary library = PhotoLibrary.open(dataDir.getPath());
+                    assertNotNull(library.getAlbum(0).getPhoto(caption));
+                    library.close();
+                }
+            });
+
+            benchmark.measure("load and build the search indexes", 1, 5, new Benchmark.Task() {
+                @Override
+                public void run() throws Exception {
+                    PhotoLibrary library = PhotoLibrary.open(dataDir.getPath());
+                    library.getTagIndex();
+                    library.close();
+                }
+            });
+
+            final PhotoLibrary library = PhotoLibrary.open(dataDir.getPath());
+            library.getTagIndex();
+
+            benchmark.measure("search tag values", 20, 100, new Benchmark.Task() {
+                @Override
+                public void run() throws Exception {
+                    equalTo.search(library.getTagIndex());
+                }
+            });
+
+            benchmark.measure("search tag substrings", 20, 100, new Benchmark.Task() {
+                @Override
+                public void run() throws Exception {
+                    contains.search(library.getTagIndex());
+                }
+            });
+
+            benchmark.measure("check " + PROBES + " imports for duplicates", 5, 20, new Benchmark.Task() {
+                @Override
+                public void run() throws Exception {
+                    int found = 0;
+                    for (Photo probe : probes)
+                        if (library.findDuplicate(probe) != null)
+                            found++;
+                    assertTrue(found >= PROBES / 2);
+                }
+            });
+
+            benchmark.measure("check " + PROBES + " imports for caption clashes", 5, 20, new Benchmark.Task() {
+                @Override
+                public void run() throws Exception {
+                    Album album = library.getAlbum(0);
+                    for (Photo probe : probes)
+                        assertNull(album.getPhoto(probe.getCaption()));
+                }
+            });
+
+            library.close();
+            System.out.println(synthetic);
+            benchmark.report();
+        } finally {
+            Benchmark.deleteDirectory(dataDir);
+        }
+    }
+}
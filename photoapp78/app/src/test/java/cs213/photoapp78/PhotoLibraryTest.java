@@ -0,0 +1,390 @@
+package cs213.photoapp78;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import cs213.photoapp78.benchmark.Benchmark;
+import cs213.photoapp78.benchmark.SyntheticLibrary;
+import cs213.photoapp78.model.Album;
+import cs213.photoapp78.model.Photo;
+import cs213.photoapp78.model.SerializableBitmap;
+import cs213.photoapp78.storage.BlobStore;
+import cs213.photoapp78.storage.Journal;
+import cs213.photoapp78.storage.LibraryFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks how the library saves its edits and what it does with the files it finds when
+ * it is opened.
+ */
+public class PhotoLibraryTest {
+    private File dataDir;
+
+    @Before
+    public void createDataDir() throws Exception {
+        dataDir = Benchmark.createDirectory("library");
+        BlobStore.initialize(new File(dataDir, "blobs").getPath());
+    }
+
+    @After
+    public void deleteDataDir() {
+        Benchmark.deleteDirectory(dataDir);
+    }
+
+    @Test
+    public void burstOfEditsIsWrittenOnce() throws Exception {
+        PhotoLibrary library = PhotoLibrary.open(dataDir.getPath());
+        int writes = library.getSaver().getWriteCount();
+
+        for (int index = 0; index < 20; index++)
+            library.addAlbum(new Album("Album " + index));
+
+        assertTrue(library.awaitFlush(5, TimeUnit.SECONDS));
+        assertEquals(writes + 1, library.getSaver().getWriteCount());
+        library.close();
+
+        PhotoLibrary reopened = PhotoLibrary.open(dataDir.getPath());
+        assertEquals(21, reopened.getAlbums().size());
+        assertEquals("Album 19", reopened.getAlbum(20).getName());
+        reopened.close();
+    }
+
+    @Test
+    public void failedWriteIsReported() throws Exception {
+        PhotoLibrary library = PhotoLibrary.open(dataDir.getPath());
+        assertTrue(library.awaitFlush(5, TimeUnit.SECONDS));
+
+        // directories in place of the journal and of the snapshot being written
+        File journal = new File(dataDir, "journal.dat"), kept = new File(dataDir, "journal.kept");
+        File temp = new File(dataDir, "library.dat.tmp");
+        assertTrue(journal.renameTo(kept));
+        assertTrue(journal.mkdir());
+        assertTrue(temp.mkdir());
+
+        library.addAlbum(new Album("Unsaved"));
+        assertFalse(library.awaitFlush(5, TimeUnit.SECONDS));
+
+        // the snapshot is tried again once it can be written
+        assertTrue(journal.delete());
+        assertTrue(kept.renameTo(journal));
+        assertTrue(temp.delete());
+        assertTrue(library.awaitFlush(5, TimeUnit.SECONDS));
+        library.close();
+
+        PhotoLibrary reopened = PhotoLibrary.open(dataDir.getPath());
+        assertEquals(Arrays.asList("stock", "Unsaved"), names(reopened));
+        reopened.close();
+    }
+
+    @Test
+    public void truncatedSnapshotFallsBackOnThePreviousOne() throws Exception {
+        // a snapshot of generation 1 and its journal, replaced by a snapshot of generation 2
+        // that was cut off, as by a crash of a device not honouring the sync
+        new SyntheticLibrary(2, 3, 1, 0).writeTo(dataDir);
+        File data = new File(dataDir, "library.dat");
+        Journal journal = new Journal(new File(dataDir, "journal.dat"));
+        journal.replay(1, new ArrayList<Album>());
+        journal.addAlbum(album(3, "Before the snapshot"));
+        journal.flush();
+
+        DataSaver.saveData(LibraryFile.encode(new ArrayList<Album>(), new ArrayList<Photo>(), new int[0], 2, 4, 7),
+                data.getPath());
+        journal.reset(2);
+        journal.addAlbum(album(4, "After the snapshot"));
+        journal.flush();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(data, "rw");
+        randomAccessFile.setLength(data.length() - 1);
+        randomAccessFile.close();
+
+        PhotoLibrary library = PhotoLibrary.open(dataDir.getPath());
+        List<String> expected = Arrays.asList("Album 0", "Album 1", "Before the snapshot", "After the snapshot");
+        assertEquals(expected, names(library));
+        // three photos of its own and the first one of the album before it
+        assertEquals(4, library.getAlbum(1).getPhotoCount());
+
+        // the recovered albums are saved as a new snapshot
+        assertTrue(library.awaitFlush(5, TimeUnit.SECONDS));
+        library.close();
+        PhotoLibrary reopened = PhotoLibrary.open(dataDir.getPath());
+        assertEquals(expected, names(reopened));
+        reopened.close();
+    }
+
+    @Test
+    public void unreadableLibraryIsLeftAlone() throws Exception {
+        SyntheticLibrary synthetic = new SyntheticLibrary(2, 3, 1, 100);
+        synthetic.writeTo(dataDir);
+        synthetic.writeTo(dataDir);
+        File journalFile = new File(dataDir, "journal.dat");
+        Journal journal = new Journal(journalFile);
+        journal.replay(1, new ArrayList<Album>());
+        journal.addAlbum(album(3, "Journaled"));
+        journal.flush();
+
+        File data = new File(dataDir, "library.dat"), previous = new File(dataDir, "library.dat.prev");
+        // in the header, so neither file can be opened
+        damage(data, 20);
+        damage(previous, 20);
+        byte[] journalBytes = read(journalFile);
+
+        // old enough for the sweep to delete them if they were thought unused
+        List<File> blobs = listFiles(new File(dataDir, "blobs"));
+        assertEquals(6, blobs.size());
+        for (File blob : blobs)
+            assertTrue(blob.setLastModified(System.currentTimeMillis() - 2 * 60 * 60 * 1000));
+
+        PhotoLibrary library = PhotoLibrary.open(dataDir.getPath());
+        assertTrue(library.getAlbums().isEmpty());
+        library.addAlbum(new Album("New"));
+        // the edit is not saved
+        assertFalse(library.awaitFlush(5, TimeUnit.SECONDS));
+        library.close();
+
+        for (File blob : blobs)
+            assertTrue(blob.getName(), blob.isFile());
+        assertArrayEquals(journalBytes, read(journalFile));
+        assertFalse(data.exists());
+        assertTrue(new File(dataDir, "library.dat.bad").isFile());
+        assertTrue(previous.isFile());
+
+        // still nothing to read on the next start, instead of a new empty library
+        PhotoLibrary reopened = PhotoLibrary.open(dataDir.getPath());
+        assertTrue(reopened.getAlbums().isEmpty());
+        assertTrue(reopened.awaitFlush(5, TimeUnit.SECONDS));
+        reopened.close();
+        assertEquals(blobs.size(), listFiles(new File(dataDir, "blobs")).size());
+        assertFalse(data.exists());
+    }
+
+    @Test
+    public void damagedTableFallsBackOnThePreviousSnapshot() throws Exception {
+        SyntheticLibrary synthetic = new SyntheticLibrary(2, 3, 1, 0);
+        synthetic.writeTo(dataDir);
+        synthetic.writeTo(dataDir);
+        new Journal(new File(dataDir, "journal.dat")).replay(1, new ArrayList<Album>());
+        File data = new File(dataDir, "library.dat");
+        // the offset of the name of the first album, pointing outside the file
+        damage(data, 64 + 4);
+
+        PhotoLibrary library = PhotoLibrary.open(dataDir.getPath());
+        assertEquals(Arrays.asList("Album 0", "Album 1"), names(library));
+        assertEquals(synthetic.getCaption(1, 2), library.getAlbum(1).getPhotos().get(2).getCaption());
+        assertTrue(library.awaitFlush(5, TimeUnit.SECONDS));
+        library.close();
+
+        assertTrue(new File(dataDir, "library.dat.bad").isFile());
+        PhotoLibrary reopened = PhotoLibrary.open(dataDir.getPath());
+        assertEquals(Arrays.asList("Album 0", "Album 1"), names(reopened));
+        reopened.close();
+    }
+
+    @Test
+    public void snapshotFoundDamagedAfterLoadingIsSetAside() throws Exception {
+        SyntheticLibrary synthetic = new SyntheticLibrary(2, 3, 1, 100);
+        synthetic.writeTo(dataDir);
+        synthetic.writeTo(dataDir);
+        new Journal(new File(dataDir, "journal.dat")).replay(1, new ArrayList<Album>());
+        File data = new File(dataDir, "library.dat");
+        damage(data, data.length() - 1);
+
+        List<File> blobs = listFiles(new File(dataDir, "blobs"));
+        for (File blob : blobs)
+            assertTrue(blob.setLastModified(System.currentTimeMillis() - 2 * 60 * 60 * 1000));
+
+        // the data area is only checked in the background, before anything is written
+        PhotoLibrary library = PhotoLibrary.open(dataDir.getPath());
+        assertEquals(2, library.getAlbums().size());
+        library.addAlbum(new Album("New"));
+        assertFalse(library.awaitFlush(5, TimeUnit.SECONDS));
+        library.close();
+
+        assertFalse(data.exists());
+        assertTrue(new File(dataDir, "library.dat.bad").isFile());
+        for (File blob : blobs)
+            assertTrue(blob.getName(), blob.isFile());
+
+        PhotoLibrary reopened = PhotoLibrary.open(dataDir.getPath());
+        assertEquals(Arrays.asList("Album 0", "Album 1"), names(reopened));
+        assertTrue(reopened.awaitFlush(5, TimeUnit.SECONDS));
+        reopened.close();
+        assertTrue(data.isFile());
+    }
+
+    @Test
+    public void legacyDataFileIsReplacedOnceRead() throws Exception {
+        SyntheticLibrary synthetic = new SyntheticLibrary(2, 3, 1, 100);
+        File legacy = new File(dataDir, "data.dat");
+        writeLegacy(legacy, synthetic, Integer.MAX_VALUE);
+
+        PhotoLibrary library = PhotoLibrary.open(dataDir.getPath());
+        assertEquals(Arrays.asList("Album 0", "Album 1"), names(library));
+        assertTrue(library.awaitFlush(5, TimeUnit.SECONDS));
+        library.close();
+
+        assertFalse(legacy.exists());
+        PhotoLibrary reopened = PhotoLibrary.open(dataDir.getPath());
+        assertEquals(Arrays.asList("Album 0", "Album 1"), names(reopened));
+        assertEquals(synthetic.getCaption(1, 2), reopened.getAlbum(1).getPhotos().get(2).getCaption());
+        reopened.close();
+    }
+
+    @Test
+    public void unreadableLegacyDataFileIsLeftAlone() throws Exception {
+        SyntheticLibrary synthetic = new SyntheticLibrary(2, 3, 1, 100);
+        File legacy = new File(dataDir, "data.dat");
+        writeLegacy(legacy, synthetic, 200);
+        byte[] legacyBytes = read(legacy);
+
+        List<File> blobs = listFiles(new File(dataDir, "blobs"));
+        for (File blob : blobs)
+            assertTrue(blob.setLastModified(System.currentTimeMillis() - 2 * 60 * 60 * 1000));
+
+        PhotoLibrary library = PhotoLibrary.open(dataDir.getPath());
+        assertTrue(library.getAlbums().isEmpty());
+        library.addAlbum(new Album("New"));
+        // the edit is not saved
+        assertFalse(library.awaitFlush(5, TimeUnit.SECONDS));
+        library.close();
+
+        assertArrayEquals(legacyBytes, read(legacy));
+        assertFalse(new File(dataDir, "library.dat").exists());
+        for (File blob : blobs)
+            assertTrue(blob.getName(), blob.isFile());
+    }
+
+    @Test
+    public void photoWithoutThumbnailIsKeptWhenRead() throws Exception {
+        Photo withThumbnail = photo(1, "thumbnail");
+        Photo withoutThumbnail = photo(2, null);
+        Album album = album(1, "Album");
+        album.addPhoto(withThumbnail);
+        album.addPhoto(withoutThumbnail);
+        DataSaver.saveData(LibraryFile.encode(Arrays.asList(album), Arrays.asList(withThumbnail, withoutThumbnail),
+                new int[]{1, 1}, 1, 2, 3), new File(dataDir, "library.dat").getPath());
+
+        PhotoLibrary library = PhotoLibrary.open(dataDir.getPath());
+        Album loaded = library.getAlbum(0);
+        List<Photo> read = library.readPhotos(loaded.getPhotoIds(), 0, 2);
+
+        // the copy of a photo with a thumbnail is left to the garbage collector
+        assertNull(library.getPhoto(1));
+        // the thumbnail created for the other one is saved with the photo of the table
+        assertSame(read.get(1), library.getPhoto(2));
+        assertSame(read.get(1), loaded.getPhotos().get(1));
+        assertEquals(1, library.getReferences(read.get(1)));
+        library.close();
+    }
+
+    @Test
+    public void albumIsNotReadToFindCaptionsOrAddPhotos() throws Exception {
+        SyntheticLibrary synthetic = new SyntheticLibrary(2, 3, 1, 0);
+        synthetic.writeTo(dataDir);
+        new Journal(new File(dataDir, "journal.dat")).replay(1, new ArrayList<Album>());
+
+        PhotoLibrary library = PhotoLibrary.open(dataDir.getPath());
+        Album album = library.getAlbum(0);
+        String caption = synthetic.getCaption(0, 1);
+        assertEquals(Collections.singleton(caption), library.findCaptions(album, Arrays.asList(caption, "missing.jpg")));
+
+        library.addPhotos(album, Arrays.asList(photo(100, null)));
+        assertFalse(album.isLoaded());
+        assertEquals(4, album.getPhotoCount());
+        assertEquals(Collections.singleton("IMG_100.jpg"), library.findCaptions(album, Arrays.asList("IMG_100.jpg")));
+
+        // a copy read for browsing is edited as the photo of the album
+        Photo copy = library.readPhotos(album.getPhotoIds(), 0, 1).get(0);
+        assertNull(library.getPhoto(copy.getId()));
+        library.recaptionPhoto(album, copy, "renamed.jpg");
+        assertEquals("renamed.jpg", album.getPhotos().get(0).getCaption());
+        assertEquals("IMG_100.jpg", album.getPhotos().get(3).getCaption());
+        assertTrue(library.awaitFlush(5, TimeUnit.SECONDS));
+        library.close();
+
+        PhotoLibrary reopened = PhotoLibrary.open(dataDir.getPath());
+        List<Photo> photos = reopened.getAlbum(0).getPhotos();
+        assertEquals(4, photos.size());
+        assertEquals("renamed.jpg", photos.get(0).getCaption());
+        assertEquals("IMG_100.jpg", photos.get(3).getCaption());
+        reopened.close();
+    }
+
+    /**
+     * Writes a library as data files were written before the library file, cut off after
+     * the given number of bytes
+     */
+    private static void writeLegacy(File file, SyntheticLibrary library, int length) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(library.getAlbums());
+        out.writeLong(0);
+        out.writeObject(library.getPhotos());
+        out.close();
+
+        FileOutputStream fileOutputStream = new FileOutputStream(file);
+        fileOutputStream.write(bytes.toByteArray(), 0, Math.min(length, bytes.size()));
+        fileOutputStream.close();
+    }
+
+    private static void damage(File file, long offset) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.seek(offset);
+        int value = randomAccessFile.read();
+        randomAccessFile.seek(offset);
+        randomAccessFile.write(value ^ 0x10);
+        randomAccessFile.close();
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        randomAccessFile.readFully(bytes);
+        randomAccessFile.close();
+        return bytes;
+    }
+
+    private static List<File> listFiles(File directory) {
+        ArrayList<File> files = new ArrayList<File>();
+        File[] children = directory.listFiles();
+        for (int index = 0; children != null && index < children.length; index++) {
+            if (children[index].isDirectory())
+                files.addAll(listFiles(children[index]));
+            else
+                files.add(children[index]);
+        }
+        return files;
+    }
+
+    private static Album album(int id, String name) {
+        Album album = new Album(name);
+        album.setId(id);
+        return album;
+    }
+
+    private static Photo photo(int id, String thumbnailKey) {
+        Photo photo = new Photo("IMG_" + id + ".jpg",
+                new SerializableBitmap("image" + id, "original", thumbnailKey, null, 4000, 3000));
+        photo.setId(id);
+        return photo;
+    }
+
+    private static List<String> names(PhotoLibrary library) {
+        ArrayList<String> names = new ArrayList<String>();
+        for (Album album : library.getAlbums())
+            names.add(album.getName());
+        return names;
+    }
+}
@@ -0,0 +1,189 @@
+package cs213.photoapp78.benchmark;
+
+import org.junit.Assume;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Minimal benchmark harness for plain JVM tests. Each measurement runs a task a number of
+ * times to warm up the JIT, then times a number of further runs and keeps the minimum,
+ * median and mean.
+ * <p>
+ * {@link #report()} prints the results and writes them to
+ * {@code build/reports/benchmarks/<suite>.tsv}. The report of the previous run is kept as
+ * {@code <suite>.previous.tsv}, and the median of each measurement is compared with it,
+ * so running the suite before and after a change shows the difference.
+ * <p>
+ * Benchmarks take minutes, so they are skipped by {@link #assumeEnabled()} unless the
+ * tests are run with {@code -Pbenchmarks=true}.
+ */
+public class Benchmark {
+    private static final File REPORTS = new File("build/reports/benchmarks");
+
+    private final String suite;
+    private final LinkedHashMap<String, long[]> results = new LinkedHashMap<String, long[]>();
+
+    /**
+     * A piece of work to time.
+     */
+    public interface Task {
+        /**
+         * Runs the work once
+         *
+         * @throws Exception if the work failed, which fails the benchmark
+         */
+        void run() throws Exception;
+    }
+
+    /**
+     * Creates a suite of measurements
+     *
+     * @param suite name of the report
+     */
+    public Benchmark(String suite) {
+        this.suite = suite;
+    }
+
+    /**
+     * Skips the calling test unless benchmarks were asked for, by running the tests with
+     * {@code -Pbenchmarks=true}
+     */
+    public static void assumeEnabled() {
+        Assume.assumeTrue("Benchmarks are only run with -Pbenchmarks=true", Boolean.getBoolean("benchmarks"));
+    }
+
+    /**
+     * Times a task
+     *
+     * @param name    name of the measurement, unique within the suite
+     * @param warmups number of untimed runs
+     * @param runs    number of timed runs
+     * @param task    the task
+     * @throws Exception if the task failed
+     */
+    public void measure(String name, int warmups, int runs, Task task) throws Exception {
+        for (int run = 0; run < warmups; run++)
+            task.run();
+
+        long[] times = new long[runs];
+        for (int run = 0; run < runs; run++) {
+            long start = System.nanoTime();
+            task.run();
+            times[run] = System.nanoTime() - start;
+        }
+
+        Arrays.sort(times);
+        long total = 0;
+        for (long time : times)
+            total += time;
+
+        results.put(name, new long[]{times[0], times[runs / 2], total / runs});
+    }
+
+    /**
+     * Prints the results, compared with the previous report, and writes the new report
+     *
+     * @throws IOException if the report could not be written
+     */
+    public void report() throws IOException {
+        File file = new File(REPORTS, suite + ".tsv");
+        File previousFile = new File(REPORTS, suite + ".previous.tsv");
+        Map<String, Long> previous = read(file);
+
+        System.out.println(suite);
+        for (Map.Entry<String, long[]> result : results.entrySet()) {
+            long[] times = result.getValue();
+            String line = String.format("  %-48s min %10.3f ms  median %10.3f ms  mean %10.3f ms",
+                    result.getKey(), times[0] / 1e6, times[1] / 1e6, times[2] / 1e6);
+
+            Long before = previous.get(result.getKey());
+            if (before != null && before > 0)
+                line += String.format("  %+6.1f%% vs previous", (times[1] - before) * 100.0 / before);
+            System.out.println(line);
+        }
+
+        if (!REPORTS.isDirectory() && !REPORTS.mkdirs())
+            throw new IOException("Could not create " + REPORTS);
+        if (file.isFile()) {
+            previousFile.delete();
+            file.renameTo(previousFile);
+        }
+
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        try {
+            out.println("name\tmin_ns\tmedian_ns\tmean_ns");
+            for (Map.Entry<String, long[]> result : results.entrySet()) {
+                long[] times = result.getValue();
+                out.println(result.getKey() + "\t" + times[0] + "\t" + times[1] + "\t" + times[2]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads the medians of a report
+     *
+     * @return medians by measurement, empty if there is no report
+     */
+    private static Map<String, Long> read(File file) throws IOException {
+        LinkedHashMap<String, Long> medians = new LinkedHashMap<String, Long>();
+        if (!file.isFile())
+            return medians;
+
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            in.readLine();
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                String[] fields = line.split("\t");
+                if (fields.length >= 3)
+                    medians.put(fields[0], Long.parseLong(fields[2]));
+            }
+        } catch (NumberFormatException exception) {
+            throw new IOException("Malformed report " + file, exception);
+        } finally {
+            in.close();
+        }
+
+        return medians;
+    }
+
+    /**
+     * Creates an empty directory for a benchmark to work in
+     *
+     * @param name prefix of the directory name
+     * @return the directory
+     * @throws IOException if it could not be created
+     */
+    public static File createDirectory(String name) throws IOException {
+        File directory = File.createTempFile(name, "");
+        if (!directory.delete() || !directory.mkdir())
+            throw new IOException("Could not create " + directory);
+        return directory;
+    }
+
+    /**
+     * Deletes a directory created by {@link #createDirectory(String)} with its contents
+     *
+     * @param directory the directory
+     */
+    public static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files) {
+                if (file.isDirectory())
+                    deleteDirectory(file);
+                else
+                    file.delete();
+            }
+        directory.delete();
+    }
+}
@@ -0,0 +1,176 @@
+package cs213.photoapp78.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+import cs213.photoapp78.DataSaver;
+import cs213.photoapp78.model.Album;
+import cs213.photoapp78.model.Photo;
+import cs213.photoapp78.model.SerializableBitmap;
+import cs213.photoapp78.model.Tag;
+import cs213.photoapp78.storage.BlobStore;
+import cs213.photoapp78.storage.LibraryFile;
+
+/**
+ * Generates a library of a given size for benchmarks. Every tenth photo is shared with
+ * the next album, tag values are drawn from a small vocabulary like real names and
+ * places, and every photo gets a random perceptual hash. The same sizes always give the
+ * same library.
+ */
+public class SyntheticLibrary {
+    private static final String[] TAG_NAMES = {"person", "location", "event"};
+    private static final int VALUES_PER_TAG = 500;
+    private static final int SHARE_EVERY = 10;
+
+    private final int albumCount, photosPerAlbum, tagsPerPhoto, imageBytes;
+    private final ArrayList<Album> albums = new ArrayList<Album>();
+    private final ArrayList<Photo> photos = new ArrayList<Photo>();
+    private final Random random = new Random(42);
+    private final int[] references;
+
+    /**
+     * Generates a library. With image bytes, the images are random blobs in the blob store,
+     * which must have been initialized; otherwise the photos refer to blobs that do not
+     * exist.
+     *
+     * @param albumCount     number of albums
+     * @param photosPerAlbum number of photos created in each album
+     * @param tagsPerPhoto   number of tags of each photo
+     * @param imageBytes     size of each image, or 0 for no images
+     * @throws IOException if an image could not be stored
+     */
+    public SyntheticLibrary(int albumCount, int photosPerAlbum, int tagsPerPhoto, int imageBytes) throws IOException {
+        this.albumCount = albumCount;
+        this.photosPerAlbum = photosPerAlbum;
+        this.tagsPerPhoto = tagsPerPhoto;
+        this.imageBytes = imageBytes;
+
+        for (int albumIndex = 0; albumIndex < albumCount; albumIndex++) {
+            Album album = new Album("Album " + albumIndex);
+            album.setId(albumIndex + 1);
+            albums.add(album);
+
+            for (int photoIndex = 0; photoIndex < photosPerAlbum; photoIndex++)
+                album.addPhoto(createPhoto());
+        }
+
+        references = new int[photos.size()];
+        for (int index = 0; index < references.length; index++)
+            references[index] = 1;
+
+        for (int albumIndex = 0; albumIndex + 1 < albumCount; albumIndex++)
+            for (int photoIndex = 0; photoIndex < photosPerAlbum; photoIndex += SHARE_EVERY) {
+                Photo photo = albums.get(albumIndex).getPhotos().get(photoIndex);
+                albums.get(albumIndex + 1).addPhoto(photo);
+                references[photo.getId() - 1]++;
+            }
+    }
+
+    /**
+     * Returns the albums
+     *
+     * @return the albums in library order
+     */
+    public ArrayList<Album> getAlbums() {
+        return albums;
+    }
+
+    /**
+     * Returns every photo once
+     *
+     * @return the photos, sorted by id
+     */
+    public ArrayList<Photo> getPhotos() {
+        return photos;
+    }
+
+    /**
+     * Returns a caption that is in the given album
+     *
+     * @param album position of the album
+     * @param photo position of the photo in it
+     * @return the caption
+     */
+    public String getCaption(int album, int photo) {
+        return albums.get(album).getPhotos().get(photo).getCaption();
+    }
+
+    /**
+     * Encodes the library as a library file
+     *
+     * @return contents of the file
+     * @throws IOException if the library could not be encoded
+     */
+    public byte[] encode() throws IOException {
+        return LibraryFile.encode(albums, photos, references, 1, albumCount + 1, photos.size() + 1);
+    }
+
+    /**
+     * Writes the library to a data directory, as the app would have saved it
+     *
+     * @param dataDir the directory
+     * @throws IOException if the library could not be written
+     */
+    public void writeTo(File dataDir) throws IOException {
+        DataSaver.saveData(encode(), new File(dataDir, "library.dat").getPath());
+    }
+
+    /**
+     * Creates photos that are not in the library, half of them near copies of photos that
+     * are, with a few bits of the perceptual hash changed
+     *
+     * @param count number of photos
+     * @return the photos
+     */
+    public ArrayList<Photo> createProbes(int count) {
+        ArrayList<Photo> probes = new ArrayList<Photo>();
+
+        for (int index = 0; index < count; index++) {
+            long hash = random.nextLong();
+            if (index % 2 == 0)
+                hash = photos.get(random.nextInt(photos.size())).getImage().getPerceptualHash()
+                        ^ (1L << random.nextInt(64)) ^ (1L << random.nextInt(64));
+
+            SerializableBitmap image = new SerializableBitmap(randomKey(), "original", null, null, 4000, 3000);
+            image.setPerceptualHash(hash);
+            probes.add(new Photo("probe " + index, image));
+        }
+
+        return probes;
+    }
+
+    @Override
+    public String toString() {
+        return albumCount + " albums x " + photosPerAlbum + " photos x " + tagsPerPhoto + " tags"
+                + (imageBytes > 0 ? " x " + imageBytes + " bytes" : "");
+    }
+
+    private Photo createPhoto() throws IOException {
+        String key;
+        if (imageBytes > 0) {
+            byte[] bytes = new byte[imageBytes];
+            random.nextBytes(bytes);
+            key = BlobStore.getInstance().put(bytes);
+        } else
+            key = randomKey();
+
+        SerializableBitmap image = new SerializableBitmap(key, "original", randomKey(), "jpeg:85", 4000, 3000);
+        image.setPerceptualHash(random.nextLong());
+
+        Photo photo = new Photo("IMG_" + (10000 + photos.size()) + ".jpg", image);
+        photo.setId(photos.size() + 1);
+        for (int tag = 0; tag < tagsPerPhoto; tag++) {
+            String name = TAG_NAMES[tag % TAG_NAMES.length];
+            photo.getTags().add(new Tag(name, name + random.nextInt(VALUES_PER_TAG)));
+        }
+
+        photos.add(photo);
+        return photo;
+    }
+
+    private String randomKey() {
+        return Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong());
+    }
+}
@@ -0,0 +1,81 @@
+package cs213.photoapp78.search;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks lookups in the duplicate index against comparing the hash with every photo.
+ */
+public class DuplicateIndexTest {
+
+    @Test
+    public void findNearestMatchesBruteForce() {
+        Random random = new Random(7);
+        DuplicateIndex index = new DuplicateIndex();
+        HashMap<Integer, Long> hashes = new HashMap<Integer, Long>();
+
+        for (int id = 0; id < 2000; id++) {
+            // most photos are near copies of an earlier one, as when a burst is imported
+            long hash = id > 0 && random.nextInt(3) > 0
+                    ? flip(random, hashes.get(random.nextInt(id)), random.nextInt(12)) : random.nextLong();
+            hashes.put(id, hash);
+            index.add(id, hash);
+        }
+
+        for (int query = 0; query < 2000; query++) {
+            long hash = flip(random, hashes.get(random.nextInt(hashes.size())), random.nextInt(10));
+
+            for (int maxDistance = 0; maxDistance <= DuplicateIndex.MAX_DISTANCE; maxDistance++)
+                assertEquals(bruteForce(hashes, hash, maxDistance), index.findNearest(hash, maxDistance));
+        }
+    }
+
+    @Test
+    public void removedAndReplacedHashesAreNotFound() {
+        DuplicateIndex index = new DuplicateIndex();
+        index.add(1, 0x00ff00ff00ff00ffL);
+        index.add(2, 0x00ff00ff00ff00feL);
+        assertEquals(1, index.findNearest(0x00ff00ff00ff00ffL, 0));
+        assertEquals(1, index.findNearest(0x00ff00ff00ff00fdL, 1));
+
+        index.remove(1);
+        assertEquals(2, index.findNearest(0x00ff00ff00ff00ffL, 1));
+        assertEquals(-1, index.findNearest(0x00ff00ff00ff00ffL, 0));
+
+        index.add(2, 0L);
+        assertEquals(-1, index.findNearest(0x00ff00ff00ff00feL, DuplicateIndex.MAX_DISTANCE));
+        assertEquals(2, index.findNearest(0x8000000000000001L, 2));
+        assertEquals(1, index.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void distanceBeyondTheChunksIsRejected() {
+        new DuplicateIndex().findNearest(0, DuplicateIndex.MAX_DISTANCE + 1);
+    }
+
+    private static int bruteForce(Map<Integer, Long> hashes, long hash, int maxDistance) {
+        int nearest = -1, nearestDistance = maxDistance + 1;
+
+        for (Map.Entry<Integer, Long> entry : hashes.entrySet()) {
+            int distance = Long.bitCount(hash ^ entry.getValue()), id = entry.getKey();
+
+            if (distance < nearestDistance || distance == nearestDistance && id < nearest) {
+                nearest = id;
+                nearestDistance = distance;
+            }
+        }
+
+        return nearest;
+    }
+
+    private static long flip(Random random, long hash, int bits) {
+        for (int bit = 0; bit < bits; bit++)
+            hash ^= 1L << random.nextInt(64);
+        return hash;
+    }
+}
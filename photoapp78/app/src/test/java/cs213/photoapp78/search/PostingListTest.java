@@ -0,0 +1,107 @@
+package cs213.photoapp78.search;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the set operations of posting lists against sorted sets of the same ids.
+ */
+public class PostingListTest {
+
+    @Test
+    public void addKeepsIdsSortedAndUnique() {
+        PostingList list = new PostingList();
+        assertTrue(list.isEmpty());
+        assertTrue(list.add(7));
+        assertTrue(list.add(2));
+        assertTrue(list.add(9));
+        assertTrue(list.add(5));
+        assertTrue(list.add(1));
+        assertFalse(list.add(5));
+
+        assertEquals("[1, 2, 5, 7, 9]", list.toString());
+        assertTrue(list.contains(7));
+        assertFalse(list.contains(3));
+
+        assertTrue(list.remove(2));
+        assertFalse(list.remove(2));
+        assertEquals("[1, 5, 7, 9]", list.toString());
+        assertEquals(4, list.size());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void getBeyondSizeThrows() {
+        PostingList list = new PostingList();
+        list.add(1);
+        list.get(1);
+    }
+
+    @Test
+    public void operationsOfEmptyLists() {
+        PostingList empty = new PostingList(), list = of(1, 2, 3);
+
+        assertEquals("[1, 2, 3]", PostingList.union(empty, list).toString());
+        assertEquals("[1, 2, 3]", PostingList.union(list, empty).toString());
+        assertTrue(PostingList.intersection(empty, list).isEmpty());
+        assertTrue(PostingList.difference(empty, list).isEmpty());
+        assertEquals("[1, 2, 3]", PostingList.difference(list, empty).toString());
+    }
+
+    @Test
+    public void operationsOfOverlappingLists() {
+        PostingList first = of(1, 3, 5, 7, 9), second = of(3, 4, 5, 10);
+
+        assertEquals("[1, 3, 4, 5, 7, 9, 10]", PostingList.union(first, second).toString());
+        assertEquals("[3, 5]", PostingList.intersection(first, second).toString());
+        assertEquals("[1, 7, 9]", PostingList.difference(first, second).toString());
+        assertEquals("[4, 10]", PostingList.difference(second, first).toString());
+    }
+
+    @Test
+    public void operationsMatchSortedSets() {
+        Random random = new Random(42);
+
+        // the sizes cover both the merge and the binary search intersection
+        int[][] sizes = {{0, 50}, {10, 10}, {5, 1000}, {1000, 5}, {300, 700}};
+        for (int[] size : sizes) {
+            TreeSet<Integer> firstSet = randomSet(random, size[0]), secondSet = randomSet(random, size[1]);
+            PostingList first = of(firstSet), second = of(secondSet);
+
+            TreeSet<Integer> union = new TreeSet<Integer>(firstSet);
+            union.addAll(secondSet);
+            TreeSet<Integer> intersection = new TreeSet<Integer>(firstSet);
+            intersection.retainAll(secondSet);
+            TreeSet<Integer> difference = new TreeSet<Integer>(firstSet);
+            difference.removeAll(secondSet);
+
+            assertEquals(union.toString(), PostingList.union(first, second).toString());
+            assertEquals(intersection.toString(), PostingList.intersection(first, second).toString());
+            assertEquals(difference.toString(), PostingList.difference(first, second).toString());
+        }
+    }
+
+    private static TreeSet<Integer> randomSet(Random random, int size) {
+        TreeSet<Integer> set = new TreeSet<Integer>();
+        while (set.size() < size)
+            set.add(random.nextInt(4000));
+        return set;
+    }
+
+    private static PostingList of(Iterable<Integer> ids) {
+        PostingList list = new PostingList();
+        for (int id : ids)
+            list.add(id);
+        return list;
+    }
+
+    private static PostingList of(int... ids) {
+        PostingList list = new PostingList();
+        for (int id : ids)
+            list.add(id);
+        return list;
+    }
+}
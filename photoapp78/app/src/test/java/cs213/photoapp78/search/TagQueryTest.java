@@ -0,0 +1,142 @@
+package cs213.photoapp78.search;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import cs213.photoapp78.model.Photo;
+import cs213.photoapp78.model.SerializableBitmap;
+import cs213.photoapp78.model.Tag;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks how tag queries are parsed and what they find in a small index.
+ */
+public class TagQueryTest {
+    private TagIndex index;
+
+    @Before
+    public void createIndex() {
+        index = new TagIndex();
+        index.addPhoto(photo("alice.jpg", "person", "alice", "location", "new york"));
+        index.addPhoto(photo("bob.jpg", "person", "bob", "location", "paris"));
+        index.addPhoto(photo("both.jpg", "person", "alice", "person", "bob", "location", "newark"));
+        index.addPhoto(photo("empty.jpg"));
+    }
+
+    @Test
+    public void andBindsTighterThanOr() throws Exception {
+        assertEquals("((person=\"alice\" AND location=\"paris\") OR person=\"bob\")",
+                TagQuery.parse("person=alice AND location=paris OR person=bob").toString());
+        assertEquals("(person=\"alice\" AND (location=\"paris\" OR person=\"bob\"))",
+                TagQuery.parse("person=alice and (location=paris or person=bob)").toString());
+    }
+
+    @Test
+    public void termsAndQuotes() throws Exception {
+        assertEquals("(NOT location~\"new\" AND \"ali\")", TagQuery.parse("NOT Location~new AND ali").toString());
+        assertEquals("location=\"new york\"", TagQuery.parse("location=\"new york\"").toString());
+        assertEquals("person=\"say \\\"hi\\\"\"", TagQuery.parse("person=\"say \\\"hi\\\"\"").toString());
+        // quoted keywords are values
+        assertEquals("\"AND\"", TagQuery.parse("\"AND\"").toString());
+    }
+
+    @Test
+    public void malformedQueriesPointAtTheToken() {
+        assertParseError("person=", 7);
+        assertParseError("person=alice AND", 16);
+        assertParseError("(person=alice", 13);
+        assertParseError("person=alice)", 12);
+        assertParseError("person=\"alice", 7);
+        assertParseError("OR person=bob", 0);
+    }
+
+    @Test
+    public void exactTerms() throws Exception {
+        assertEquals(Arrays.asList("alice.jpg", "both.jpg"), search("person=alice"));
+        assertEquals(Arrays.asList("alice.jpg", "both.jpg"), search("PERSON=alice"));
+        assertEquals(Arrays.asList(), search("person=Alice"));
+        assertEquals(Arrays.asList("alice.jpg"), search("location=\"new york\""));
+    }
+
+    @Test
+    public void containingTerms() throws Exception {
+        assertEquals(Arrays.asList("alice.jpg", "both.jpg"), search("location~new"));
+        assertEquals(Arrays.asList("alice.jpg"), search("location~york"));
+        assertEquals(Arrays.asList("bob.jpg", "both.jpg"), search("ob"));
+        assertEquals(Arrays.asList(), search("person~york"));
+    }
+
+    @Test
+    public void booleanOperators() throws Exception {
+        assertEquals(Arrays.asList("both.jpg"), search("person=alice AND person=bob"));
+        assertEquals(Arrays.asList("alice.jpg", "bob.jpg", "both.jpg"), search("person=alice OR person=bob"));
+        assertEquals(Arrays.asList("alice.jpg"), search("person=alice AND NOT person=bob"));
+        assertEquals(Arrays.asList("empty.jpg"), search("NOT person=alice AND NOT person=bob"));
+        assertEquals(Arrays.asList("bob.jpg", "empty.jpg"), search("NOT person=alice"));
+        assertEquals(Arrays.asList("alice.jpg", "bob.jpg"), search("(person=alice OR location=paris) AND NOT location~ark"));
+    }
+
+    @Test
+    public void indexFollowsTagEdits() throws Exception {
+        Photo photo = index.getPhoto(3);
+        Tag tag = new Tag("person", "carol");
+        photo.getTags().add(tag);
+        index.addTag(photo, tag);
+        assertEquals(Arrays.asList("empty.jpg"), search("person=carol"));
+
+        photo.getTags().remove(tag);
+        index.removeTag(photo, tag);
+        assertEquals(Arrays.asList(), search("person=carol"));
+
+        // a photo in two albums stays until both drop it
+        Photo alice = index.getPhoto(0);
+        index.addPhoto(alice);
+        index.removePhoto(alice);
+        assertEquals(Arrays.asList("alice.jpg"), search("location=\"new york\""));
+        index.removePhoto(alice);
+        assertEquals(Arrays.asList(), search("location=\"new york\""));
+        assertEquals(3, index.size());
+    }
+
+    @Test
+    public void builtQueriesMatchParsedOnes() throws Exception {
+        TagQuery built = TagQuery.or(TagQuery.and(TagQuery.equalTo("Person", "alice"),
+                TagQuery.not(TagQuery.contains("location", "york"))), TagQuery.contains(null, "par"));
+        assertEquals(captions(TagQuery.parse("person=alice AND NOT location~york OR par").search(index)),
+                captions(built.search(index)));
+        assertEquals(Arrays.asList("bob.jpg", "both.jpg"), captions(built.search(index)));
+    }
+
+    private List<String> search(String query) throws ParseException {
+        return captions(TagQuery.parse(query).search(index));
+    }
+
+    private static void assertParseError(String query, int offset) {
+        try {
+            TagQuery.parse(query);
+            fail("Parsed " + query);
+        } catch (ParseException exception) {
+            assertEquals(query, offset, exception.getErrorOffset());
+        }
+    }
+
+    private static List<String> captions(List<Photo> photos) {
+        ArrayList<String> captions = new ArrayList<String>();
+        for (Photo photo : photos)
+            captions.add(photo.getCaption());
+        return captions;
+    }
+
+    private static Photo photo(String caption, String... tags) {
+        Photo photo = new Photo(caption, new SerializableBitmap("key-" + caption, "original", null, null, 0, 0));
+        for (int i = 0; i < tags.length; i += 2)
+            photo.getTags().add(new Tag(tags[i], tags[i + 1]));
+        return photo;
+    }
+}
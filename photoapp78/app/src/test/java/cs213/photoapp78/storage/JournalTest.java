@@ -0,0 +1,278 @@
+package cs213.photoapp78.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import cs213.photoapp78.benchmark.Benchmark;
+import cs213.photoapp78.model.Album;
+import cs213.photoapp78.model.Photo;
+import cs213.photoapp78.model.SerializableBitmap;
+import cs213.photoapp78.model.Tag;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that replaying the journal rebuilds the edits made to the albums, and what is
+ * left of them when the journal was cut off or damaged by a crash.
+ */
+public class JournalTest {
+    private File directory;
+    private File file;
+
+    @Before
+    public void createDirectory() throws Exception {
+        directory = Benchmark.createDirectory("journal");
+        file = new File(directory, "journal.dat");
+    }
+
+    @After
+    public void deleteDirectory() {
+        Benchmark.deleteDirectory(directory);
+    }
+
+    @Test
+    public void replayRebuildsEveryEdit() throws Exception {
+        Journal journal = open(1);
+        journal.addAlbum(album(1, "Holiday"));
+        journal.addAlbum(album(2, "Family"));
+        journal.addPhoto(0, photo(1, "beach.jpg"));
+        journal.addPhotos(0, Arrays.asList(photo(2, "dinner.jpg"), photo(3, "sunset.jpg")));
+        journal.copyPhoto(0, 0, 1);
+        journal.recaptionPhoto(0, 1, "lunch.jpg");
+        journal.addTag(0, 0, new Tag("person", "Ann"));
+        journal.addTag(0, 0, new Tag("location", "Nice"));
+        journal.removeTag(0, 0, 0);
+        journal.removePhoto(0, 2);
+        journal.renameAlbum(1, "Relatives");
+        journal.addAlbum(album(3, "Empty"));
+        journal.removeAlbum(2);
+        journal.flush();
+
+        ArrayList<Album> replayed = new ArrayList<Album>();
+        assertEquals(13, new Journal(file).replay(1, replayed));
+
+        assertEquals(Arrays.asList("Holiday", "Relatives"), names(replayed));
+        assertEquals(Arrays.asList("beach.jpg", "lunch.jpg"), captions(replayed.get(0)));
+        assertEquals(Arrays.asList("beach.jpg"), captions(replayed.get(1)));
+        assertEquals(1, replayed.get(0).getId());
+
+        Photo photo = replayed.get(0).getPhotos().get(0);
+        // a copied photo is the same object in both albums
+        assertSame(photo, replayed.get(1).getPhotos().get(0));
+        assertEquals(1, photo.getId());
+        assertEquals(1, photo.getTags().size());
+        assertEquals("location=Nice", photo.getTags().get(0).getName() + "=" + photo.getTags().get(0).getValue());
+        assertEquals("thumb-beach.jpg", photo.getImage().getThumbnailKey());
+        assertEquals("jpeg:85", photo.getImage().getThumbnailFormat());
+        assertEquals("original", photo.getImage().getFormat());
+        assertTrue(photo.getImage().hasPerceptualHash());
+        assertEquals(0x1234L, photo.getImage().getPerceptualHash());
+        assertEquals(4000, photo.getImage().getWidth());
+        assertEquals(3000, photo.getImage().getHeight());
+    }
+
+    @Test
+    public void tornRecordIsDroppedAndCutOff() throws Exception {
+        Journal journal = open(1);
+        journal.addAlbum(album(1, "First"));
+        journal.addAlbum(album(2, "Second"));
+        journal.flush();
+        long intact = file.length();
+        journal.addAlbum(album(3, "Torn"));
+        journal.flush();
+
+        truncate(file.length() - 3);
+        ArrayList<Album> albums = new ArrayList<Album>();
+        assertEquals(2, new Journal(file).replay(1, albums));
+        assertEquals(Arrays.asList("First", "Second"), names(albums));
+        assertEquals(intact, file.length());
+
+        // records appended after the cut continue the valid ones
+        Journal reopened = new Journal(file);
+        reopened.replay(1, new ArrayList<Album>());
+        reopened.addAlbum(album(4, "After"));
+        reopened.flush();
+
+        albums.clear();
+        assertEquals(3, new Journal(file).replay(1, albums));
+        assertEquals(Arrays.asList("First", "Second", "After"), names(albums));
+    }
+
+    @Test
+    public void damagedRecordIsDroppedWithTheRest() throws Exception {
+        Journal journal = open(1);
+        journal.addAlbum(album(1, "First"));
+        journal.flush();
+        long second = file.length();
+        journal.addAlbum(album(2, "Second"));
+        journal.addAlbum(album(3, "Third"));
+        journal.flush();
+
+        // the last byte of the name of the second album, after its size and checksum
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.seek(second + 8 + 1 + 2 + "Second".length() - 1);
+        randomAccessFile.write('X');
+        randomAccessFile.close();
+
+        ArrayList<Album> albums = new ArrayList<Album>();
+        assertEquals(1, new Journal(file).replay(1, albums));
+        assertEquals(Arrays.asList("First"), names(albums));
+        assertEquals(second, file.length());
+    }
+
+    @Test
+    public void batchIsReplayedCompletelyOrNotAtAll() throws Exception {
+        Journal journal = open(1);
+        journal.addAlbum(album(1, "Album"));
+        journal.flush();
+        long beforeBatch = file.length();
+        journal.addPhotos(0, Arrays.asList(photo(1, "one.jpg"), photo(2, "two.jpg"), photo(3, "three.jpg")));
+        journal.flush();
+        long afterBatch = file.length();
+
+        ArrayList<Album> albums = new ArrayList<Album>();
+        assertEquals(2, new Journal(file).replay(1, albums));
+        assertEquals(Arrays.asList("one.jpg", "two.jpg", "three.jpg"), captions(albums.get(0)));
+
+        // cut inside the last photo of the batch
+        truncate(afterBatch - 10);
+        albums.clear();
+        assertEquals(1, new Journal(file).replay(1, albums));
+        assertEquals(0, albums.get(0).getPhotoCount());
+        assertEquals(beforeBatch, file.length());
+    }
+
+    @Test
+    public void journalOfAnotherGenerationIsSetAside() throws Exception {
+        Journal journal = open(1);
+        journal.addAlbum(album(1, "Old"));
+        journal.flush();
+
+        ArrayList<Album> albums = new ArrayList<Album>();
+        assertEquals(0, new Journal(file).replay(2, albums));
+        assertTrue(albums.isEmpty());
+        assertEquals(12, file.length());
+
+        // the replaced journal still brings the previous snapshot up to date
+        assertTrue(new Journal(file).replayPrevious(1, albums));
+        assertEquals(Arrays.asList("Old"), names(albums));
+        assertFalse(new Journal(file).replayPrevious(3, new ArrayList<Album>()));
+    }
+
+    @Test
+    public void resetKeepsThePreviousJournal() throws Exception {
+        Journal journal = open(1);
+        journal.addAlbum(album(1, "Before"));
+        journal.flush();
+        journal.reset(2);
+        journal.addAlbum(album(2, "After"));
+        journal.flush();
+
+        ArrayList<Album> previous = new ArrayList<Album>();
+        assertTrue(new Journal(file).replayPrevious(1, previous));
+        assertEquals(Arrays.asList("Before"), names(previous));
+
+        ArrayList<Album> current = new ArrayList<Album>();
+        assertEquals(1, new Journal(file).replay(2, current));
+        assertEquals(Arrays.asList("After"), names(current));
+    }
+
+    @Test
+    public void legacyJournalIsRewrittenWithChecksums() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0x504A524E);
+        out.writeLong(5);
+        // records written before albums had ids end after the name
+        for (String name : new String[]{"Legacy", "Journal"}) {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream recordOut = new DataOutputStream(record);
+            recordOut.writeByte(1);
+            recordOut.writeUTF(name);
+            out.writeInt(record.size());
+            out.write(record.toByteArray());
+        }
+        FileOutputStream fileOutputStream = new FileOutputStream(file);
+        fileOutputStream.write(bytes.toByteArray());
+        fileOutputStream.close();
+
+        ArrayList<Album> albums = new ArrayList<Album>();
+        assertEquals(2, new Journal(file).replay(5, albums));
+        assertEquals(Arrays.asList("Legacy", "Journal"), names(albums));
+        assertEquals(0, albums.get(0).getId());
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        assertEquals(0x504A5243, randomAccessFile.readInt());
+        assertEquals(5, randomAccessFile.readLong());
+        randomAccessFile.close();
+
+        albums.clear();
+        assertEquals(2, new Journal(file).replay(5, albums));
+        assertEquals(Arrays.asList("Legacy", "Journal"), names(albums));
+    }
+
+    @Test
+    public void pendingRecordsAreCountedAndDiscarded() throws Exception {
+        Journal journal = open(1);
+        assertEquals(12, journal.getLength());
+        journal.addAlbum(album(1, "Pending"));
+        assertTrue(journal.getLength() > 12);
+
+        journal.discardPending();
+        assertEquals(12, journal.getLength());
+        journal.flush();
+        assertEquals(12, file.length());
+    }
+
+    private Journal open(long generation) throws IOException {
+        Journal journal = new Journal(file);
+        assertEquals(0, journal.replay(generation, new ArrayList<Album>()));
+        return journal;
+    }
+
+    private void truncate(long length) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(length);
+        randomAccessFile.close();
+    }
+
+    private static Album album(int id, String name) {
+        Album album = new Album(name);
+        album.setId(id);
+        return album;
+    }
+
+    private static Photo photo(int id, String caption) {
+        SerializableBitmap image = new SerializableBitmap("key-" + caption, "original", "thumb-" + caption,
+                "jpeg:85", 4000, 3000);
+        image.setPerceptualHash(0x1234L);
+        Photo photo = new Photo(caption, image);
+        photo.setId(id);
+        return photo;
+    }
+
+    private static List<String> names(List<Album> albums) {
+        ArrayList<String> names = new ArrayList<String>();
+        for (Album album : albums)
+            names.add(album.getName());
+        return names;
+    }
+
+    private static List<String> captions(Album album) {
+        ArrayList<String> captions = new ArrayList<String>();
+        for (Photo photo : album.getPhotos())
+            captions.add(photo.getCaption());
+        return captions;
+    }
+}
@@ -0,0 +1,117 @@
+package cs213.photoapp78.storage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import cs213.photoapp78.benchmark.Benchmark;
+import cs213.photoapp78.benchmark.SyntheticLibrary;
+import cs213.photoapp78.model.Album;
+import cs213.photoapp78.model.Photo;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the library file with the Java serialization data files were written with
+ * before. Reports the size of a library of 100 albums with 200 photos each in both
+ * formats and the time taken to write it and to read all of it back.
+ */
+public class LibraryFileBenchmark {
+
+    @Before
+    public void assumeEnabled() {
+        Benchmark.assumeEnabled();
+    }
+
+    @Test
+    public void compareWithSerialization() throws Exception {
+        final SyntheticLibrary library = new SyntheticLibrary(100, 200, 3, 0);
+        final int photoCount = library.getPhotos().size();
+        final byte[] serialized = serialize(library.getAlbums(), library.getPhotos());
+        final byte[] encoded = library.encode();
+        Benchmark benchmark = new Benchmark("LibraryFileBenchmark");
+
+        benchmark.measure("serialization write", 10, 10, new Benchmark.Task() {
+            @Override
+            public void run() throws Exception {
+                serialize(library.getAlbums(), library.getPhotos());
+            }
+        });
+
+        benchmark.measure("serialization read", 10, 10, new Benchmark.Task() {
+            @Override
+            public void run() throws Exception {
+                assertEquals(photoCount, deserialize(serialized));
+            }
+        });
+
+        benchmark.measure("library file write", 10, 10, new Benchmark.Task() {
+            @Override
+            public void run() throws Exception {
+                library.encode();
+            }
+        });
+
+        benchmark.measure("library file read", 10, 10, new Benchmark.Task() {
+            @Override
+            public void run() throws Exception {
+                assertEquals(photoCount, decode(encoded));
+            }
+        });
+
+        System.out.println(library + ": serialization " + serialized.length + " bytes, library file "
+                + encoded.length + " bytes");
+        benchmark.report();
+
+        assertTrue(encoded.length < serialized.length);
+    }
+
+    private static byte[] serialize(ArrayList<Album> albums, ArrayList<Photo> photos) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+
+        out.writeObject(albums);
+        out.writeLong(1);
+        out.writeObject(photos);
+        out.close();
+
+        return bytes.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int deserialize(byte[] serialized) throws IOException, ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized));
+        ArrayList<Album> albums = (ArrayList<Album>) in.readObject();
+        in.readLong();
+
+        HashMap<Integer, Photo> table = new HashMap<Integer, Photo>();
+        for (Photo photo : (ArrayList<Photo>) in.readObject())
+            table.put(photo.getId(), photo);
+        in.close();
+
+        for (Album album : albums)
+            album.resolve(table);
+        return table.size();
+    }
+
+    private static int decode(byte[] library) throws IOException {
+        LibraryFile file = LibraryFile.wrap(library);
+        HashMap<Integer, Photo> table = new HashMap<Integer, Photo>();
+
+        for (int album = 0; album < file.getAlbumCount(); album++) {
+            file.getAlbumName(album);
+            for (int id : file.getAlbumPhotoIds(album))
+                if (!table.containsKey(id))
+                    table.put(id, file.readPhoto(file.findPhoto(id)));
+        }
+
+        return table.size();
+    }
+}
@@ -0,0 +1,337 @@
+package cs213.photoapp78.storage;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import cs213.photoapp78.model.Album;
+import cs213.photoapp78.model.Photo;
+import cs213.photoapp78.model.SerializableBitmap;
+import cs213.photoapp78.model.Tag;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that library files read back what was encoded, that files of earlier and later
+ * versions are read as far as they are compatible, and that damaged or cut off files are
+ * rejected.
+ */
+public class LibraryFileTest {
+
+    @Test
+    public void encodedLibraryReadsBack() throws Exception {
+        String longCaption = new String(new char[300]).replace('\0', 'x');
+        Photo first = photo(5, "Über.jpg", "person", "Zoë", "location", "東京");
+        Photo second = photo(1000000, longCaption);
+        second.getImage().setPerceptualHash(-1L);
+        Photo third = new Photo(null, new SerializableBitmap("legacy-key", null, 0, 0));
+        third.setId(70000);
+
+        // ids far apart and out of order take several varint bytes and negative differences
+        Album album = album(3, "Reise", first, second, third);
+        Album shared = album(9, "Shared", third, first);
+        Album empty = album(10, "");
+
+        LibraryFile file = LibraryFile.wrap(LibraryFile.encode(Arrays.asList(album, shared, empty),
+                Arrays.asList(first, third, second), new int[]{2, 2, 1}, 42, 11, 1000001));
+
+        assertEquals(42, file.getGeneration());
+        assertEquals(11, file.getNextAlbumId());
+        assertEquals(1000001, file.getNextPhotoId());
+        assertEquals(3, file.getAlbumCount());
+        assertEquals(3, file.getPhotoCount());
+
+        assertEquals(3, file.getAlbumId(0));
+        assertEquals("Reise", file.getAlbumName(0));
+        assertEquals(3, file.getAlbumPhotoCount(0));
+        assertArrayEquals(new int[]{5, 1000000, 70000}, file.getAlbumPhotoIds(0));
+        assertEquals("thumb-Über.jpg", file.getAlbumCoverKey(0));
+        assertArrayEquals(new int[]{70000, 5}, file.getAlbumPhotoIds(1));
+        assertNull(file.getAlbumCoverKey(1));
+        assertEquals("", file.getAlbumName(2));
+        assertArrayEquals(new int[0], file.getAlbumPhotoIds(2));
+        assertNull(file.getAlbumCoverKey(2));
+
+        assertEquals(0, file.findPhoto(5));
+        assertEquals(1, file.findPhoto(70000));
+        assertEquals(2, file.findPhoto(1000000));
+        assertEquals(-1, file.findPhoto(6));
+        assertEquals(2, file.getPhotoReferences(0));
+        assertArrayEquals(new String[]{"legacy-key", null}, file.getPhotoKeys(1));
+
+        Photo read = file.readPhoto(0);
+        assertEquals(5, read.getId());
+        assertEquals("Über.jpg", read.getCaption());
+        assertEquals("key-Über.jpg", read.getImage().getKey());
+        assertEquals("original", read.getImage().getFormat());
+        assertEquals("jpeg:85", read.getImage().getThumbnailFormat());
+        assertEquals(4000, read.getImage().getWidth());
+        assertEquals(3000, read.getImage().getHeight());
+        assertFalse(read.getImage().hasPerceptualHash());
+        assertEquals(Arrays.asList("person: Zoë", "location: 東京"), tags(read));
+
+        read = file.readPhoto(2);
+        assertEquals(longCaption, read.getCaption());
+        assertTrue(read.getImage().hasPerceptualHash());
+        assertEquals(-1L, read.getImage().getPerceptualHash());
+
+        read = file.readPhoto(1);
+        assertNull(read.getCaption());
+        assertNull(read.getImage().getFormat());
+        assertNull(read.getImage().getThumbnailKey());
+
+        // strings are stored and read once
+        assertSame(file.readPhoto(0).getImage().getFormat(), file.readPhoto(2).getImage().getFormat());
+    }
+
+    @Test
+    public void readsVersion1() throws Exception {
+        // fixed-width strings and ids, no compatible version and no checksums
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(data);
+        int start = 64 + 20 + 2 * 56;
+        int name = start + out.size();
+        writeString(out, "Old album");
+        int ids = start + out.size();
+        out.writeInt(7);
+        out.writeInt(3);
+        int caption = start + out.size();
+        writeString(out, "old.jpg");
+        int key = start + out.size();
+        writeString(out, "old-key");
+        int tags = start + out.size();
+        out.writeInt(caption);
+        out.writeInt(key);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream file = new DataOutputStream(bytes);
+        writeHeader(file, 1, 1, 2, 20, 56);
+        file.write(new byte[64 - file.size()]);
+        file.writeInt(4);
+        file.writeInt(name);
+        file.writeInt(2);
+        file.writeInt(ids);
+        file.writeInt(-1);
+        for (int id : new int[]{3, 7}) {
+            file.writeInt(id);
+            file.writeInt(caption);
+            file.writeInt(key);
+            file.writeInt(-1);
+            file.writeInt(-1);
+            file.writeInt(-1);
+            file.writeInt(0);
+            file.writeInt(0);
+            file.writeInt(0);
+            file.writeLong(0);
+            file.writeInt(id == 7 ? 1 : 0);
+            file.writeInt(tags);
+            file.writeInt(1);
+        }
+        data.writeTo(file);
+
+        LibraryFile library = LibraryFile.wrap(bytes.toByteArray());
+        assertEquals(5, library.getGeneration());
+        assertEquals("Old album", library.getAlbumName(0));
+        assertArrayEquals(new int[]{7, 3}, library.getAlbumPhotoIds(0));
+        Photo photo = library.readPhoto(library.findPhoto(7));
+        assertEquals("old.jpg", photo.getCaption());
+        assertEquals("old-key", photo.getImage().getKey());
+        assertEquals(Arrays.asList("old.jpg: old-key"), tags(photo));
+        assertEquals(0, library.readPhoto(library.findPhoto(3)).getTags().size());
+    }
+
+    @Test
+    public void readsVersion2() throws Exception {
+        // the same layout as now, without checksums
+        byte[] bytes = encodeSample();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.putInt(4, 2);
+        buffer.putInt(52, 0);
+        buffer.putInt(56, 0);
+        buffer.putInt(60, 0);
+
+        LibraryFile file = LibraryFile.wrap(bytes);
+        assertArrayEquals(new int[]{2, 1}, file.getAlbumPhotoIds(0));
+        assertEquals("second.jpg", file.readPhoto(file.findPhoto(2)).getCaption());
+    }
+
+    @Test
+    public void readsLaterVersionAppendingFields() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream file = new DataOutputStream(bytes);
+        int start = 64 + 24 + 60;
+        writeHeader(file, 4, 1, 1, 24, 60);
+        file.writeInt(2);
+        file.write(new byte[64 - file.size()]);
+        // an album record and a photo record with four more bytes each
+        file.writeInt(1);
+        file.writeInt(start);
+        file.writeInt(1);
+        file.writeInt(start + 6);
+        file.writeInt(-1);
+        file.writeInt(0xCAFE);
+        file.writeInt(8);
+        file.writeInt(start);
+        file.writeInt(start);
+        for (int field = 0; field < 3; field++)
+            file.writeInt(-1);
+        file.write(new byte[20]);
+        file.writeInt(0);
+        file.writeInt(0);
+        file.writeInt(1);
+        file.writeInt(0xCAFE);
+        file.writeByte(5);
+        file.writeBytes("album");
+        file.writeByte(16);
+
+        byte[] contents = bytes.toByteArray();
+        ByteBuffer buffer = ByteBuffer.wrap(contents);
+        buffer.putInt(52, Crc32c.of(contents, 64, start - 64));
+        buffer.putInt(56, Crc32c.of(contents, start, contents.length - start));
+        buffer.putInt(60, Crc32c.of(contents, 0, 60));
+
+        LibraryFile library = LibraryFile.wrap(contents);
+        library.verify();
+        assertEquals("album", library.getAlbumName(0));
+        assertArrayEquals(new int[]{8}, library.getAlbumPhotoIds(0));
+        assertEquals("album", library.readPhoto(library.findPhoto(8)).getCaption());
+    }
+
+    @Test
+    public void refusesIncompatibleVersion() throws Exception {
+        byte[] bytes = encodeSample();
+        ByteBuffer.wrap(bytes).putInt(48, 4);
+        assertRejected(bytes, "Library file version 3 is not supported");
+    }
+
+    @Test
+    public void refusesTruncatedFile() throws Exception {
+        byte[] bytes = encodeSample();
+
+        assertRejected(Arrays.copyOf(bytes, 40), "Not a library file");
+        assertRejected(Arrays.copyOf(bytes, 64 + 20 + 30), "Library file is truncated");
+        // a file cut off in the data area still has complete tables
+        assertDamaged(Arrays.copyOf(bytes, bytes.length - 3));
+    }
+
+    @Test
+    public void refusesDamagedFile() throws Exception {
+        byte[] bytes = encodeSample();
+        byte[] damaged = bytes.clone();
+        damaged[12] ^= 0x10;
+        assertRejected(damaged, "Library file is damaged");
+
+        damaged = bytes.clone();
+        damaged[64 + 3] ^= 0x10;
+        assertRejected(damaged, "Library file is damaged");
+
+        // the data area is only checked when verified
+        damaged = bytes.clone();
+        damaged[bytes.length - 1] ^= 0x10;
+        assertDamaged(damaged);
+
+        LibraryFile.wrap(bytes).verify();
+    }
+
+    @Test
+    public void reportsOffsetsOutsideTheFile() throws Exception {
+        byte[] bytes = encodeSample();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        // the name and the photo ids of the album, with the checksums made to match
+        buffer.putInt(64 + 4, bytes.length + 100);
+        buffer.putInt(64 + 8, Integer.MAX_VALUE);
+        buffer.putInt(52, Crc32c.of(bytes, 64, 20 + 2 * 56));
+        buffer.putInt(60, Crc32c.of(bytes, 0, 60));
+
+        LibraryFile file = LibraryFile.wrap(bytes);
+        try {
+            file.getAlbumName(0);
+            fail("Read a name outside the file");
+        } catch (IOException exception) {
+            assertEquals("Library file is damaged", exception.getMessage());
+        }
+        try {
+            file.getAlbumPhotoIds(0);
+            fail("Read more photo ids than the file holds");
+        } catch (IOException exception) {
+            assertEquals("Library file is damaged", exception.getMessage());
+        }
+        assertEquals("first.jpg", file.readPhoto(0).getCaption());
+    }
+
+    private static byte[] encodeSample() throws IOException {
+        Photo first = photo(1, "first.jpg", "person", "Ann");
+        Photo second = photo(2, "second.jpg");
+        return LibraryFile.encode(Arrays.asList(album(1, "Album", second, first)), Arrays.asList(first, second),
+                new int[]{1, 1}, 1, 2, 3);
+    }
+
+    private static void assertRejected(byte[] bytes, String message) {
+        try {
+            LibraryFile.wrap(bytes);
+            fail("Read a file that should be rejected with " + message);
+        } catch (IOException exception) {
+            assertEquals(message, exception.getMessage());
+        }
+    }
+
+    private static void assertDamaged(byte[] bytes) throws IOException {
+        LibraryFile file = LibraryFile.wrap(bytes);
+        try {
+            file.verify();
+            fail("Verified a damaged file");
+        } catch (IOException exception) {
+            assertEquals("Library file is damaged", exception.getMessage());
+        }
+    }
+
+    private static void writeHeader(DataOutputStream file, int version, int albums, int photos,
+                                    int albumRecordSize, int photoRecordSize) throws IOException {
+        file.writeInt(0x504C4942);
+        file.writeInt(version);
+        file.writeLong(5);
+        file.writeInt(albums + 1);
+        file.writeInt(10);
+        file.writeInt(albums);
+        file.writeInt(albumRecordSize);
+        file.writeInt(64);
+        file.writeInt(photos);
+        file.writeInt(photoRecordSize);
+        file.writeInt(64 + albums * albumRecordSize);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static Album album(int id, String name, Photo... photos) {
+        Album album = new Album(name);
+        album.setId(id);
+        for (Photo photo : photos)
+            album.addPhoto(photo);
+        return album;
+    }
+
+    private static Photo photo(int id, String caption, String... tags) {
+        Photo photo = new Photo(caption, new SerializableBitmap("key-" + caption, "original", "thumb-" + caption,
+                "jpeg:85", 4000, 3000));
+        photo.setId(id);
+        for (int index = 0; index < tags.length; index += 2)
+            photo.getTags().add(new Tag(tags[index], tags[index + 1]));
+        return photo;
+    }
+
+    private static ArrayList<String> tags(Photo photo) {
+        ArrayList<String> tags = new ArrayList<String>();
+        for (Tag tag : photo.getTags())
+            tags.add(tag.toString());
+        return tags;
+    }
+}
@@ -0,0 +1,63 @@
+package cs213.photoapp78.storage;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that bursts of changes are written once and that failed writes are reported.
+ */
+public class PersistenceExecutorTest {
+
+    @Test
+    public void burstIsWrittenOnce() throws Exception {
+        final AtomicInteger writes = new AtomicInteger();
+        PersistenceExecutor executor = new PersistenceExecutor(new Runnable() {
+            @Override
+            public void run() {
+                writes.incrementAndGet();
+            }
+        }, 200);
+
+        for (int change = 0; change < 100; change++)
+            executor.markDirty();
+
+        assertTrue(executor.awaitFlush(5, TimeUnit.SECONDS));
+        // the scheduled write finds nothing left to write
+        Thread.sleep(400);
+        assertEquals(1, writes.get());
+        assertEquals(1, executor.getWriteCount());
+        executor.shutdown();
+    }
+
+    @Test
+    public void cleanExecutorDoesNotWrite() throws Exception {
+        PersistenceExecutor executor = new PersistenceExecutor(new Runnable() {
+            @Override
+            public void run() {
+                fail("Nothing was marked dirty");
+            }
+        }, 0);
+
+        assertTrue(executor.awaitFlush(5, TimeUnit.SECONDS));
+        assertEquals(0, executor.getWriteCount());
+        executor.shutdown();
+    }
+
+    @Test
+    public void failedWriteIsReported() throws Exception {
+        PersistenceExecutor executor = new PersistenceExecutor(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("Disk full");
+            }
+        }, 10000);
+
+        executor.markDirty();
+        assertFalse(executor.awaitFlush(5, TimeUnit.SECONDS));
+        executor.shutdown();
+    }
+}